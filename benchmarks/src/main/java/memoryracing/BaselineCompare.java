@@ -0,0 +1,144 @@
+package memoryracing;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 比較兩份 JMH JSON 結果。以 benchmark 名稱加參數配對，主要分數 (平均耗時) 或 gc.alloc.rate.norm
+ * (每次操作配置位元組) 超過基準 (1 + tolerance) 倍即視為退步。
+ *
+ * 單獨使用：java -cp benchmarks.jar memoryracing.BaselineCompare baseline.json current.json [tolerance]
+ */
+final class BaselineCompare {
+    private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+    private static final double ALLOC_SLACK_BYTES = 16; // 配置量接近 0 時避免量測雜訊誤判
+
+    private BaselineCompare() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineCompare <baseline.json> <current.json> [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) : 0.10;
+        int regressions = compare(Paths.get(args[0]), Paths.get(args[1]), tolerance, System.out);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /** 回傳退步的項目數 */
+    static int compare(Path baselinePath, Path currentPath, double tolerance, PrintStream out) throws IOException {
+        Map<String, double[]> base = load(baselinePath), cur = load(currentPath);
+        int regressions = 0;
+        for (Map.Entry<String, double[]> e : cur.entrySet()) {
+            double[] b = base.get(e.getKey()), c = e.getValue();
+            if (b == null) { out.println("[NEW]  " + e.getKey()); continue; }
+            boolean slower = c[0] > b[0] * (1 + tolerance);
+            boolean moreAlloc = !Double.isNaN(b[1]) && !Double.isNaN(c[1]) && c[1] > b[1] * (1 + tolerance) + ALLOC_SLACK_BYTES;
+            String tag = (slower || moreAlloc) ? "[FAIL] " : "[OK]   ";
+            if (slower || moreAlloc) regressions++;
+            out.printf("%s%s  time %.3f -> %.3f (%+.1f%%)  alloc %.1f -> %.1f B/op%n",
+                    tag, e.getKey(), b[0], c[0], (c[0] / b[0] - 1) * 100, b[1], c[1]);
+        }
+        for (String k : base.keySet()) if (!cur.containsKey(k)) out.println("[GONE] " + k);
+        out.println(regressions == 0 ? "與基準相比沒有退步" : regressions + " 項退步超過 " + (int) (tolerance * 100) + "%");
+        return regressions;
+    }
+
+    /** benchmark 名稱加參數 -> {主要分數, 每次操作配置位元組} */
+    @SuppressWarnings("unchecked")
+    static Map<String, double[]> load(Path path) throws IOException {
+        Map<String, double[]> out = new TreeMap<>();
+        for (Object o : (List<Object>) new Json(Files.readString(path)).parse()) {
+            Map<String, Object> run = (Map<String, Object>) o;
+            StringBuilder key = new StringBuilder((String) run.get("benchmark"));
+            Map<String, Object> params = (Map<String, Object>) run.get("params");
+            if (params != null) new TreeMap<>(params).forEach((k, v) -> key.append(' ').append(k).append('=').append(v));
+            double score = number(((Map<String, Object>) run.get("primaryMetric")).get("score"));
+            double alloc = Double.NaN;
+            Map<String, Object> secondary = (Map<String, Object>) run.get("secondaryMetrics");
+            if (secondary != null && secondary.get(ALLOC_NORM) != null) alloc = number(((Map<String, Object>) secondary.get(ALLOC_NORM)).get("score"));
+            out.put(key.toString(), new double[]{score, alloc});
+        }
+        return out;
+    }
+
+    private static double number(Object v) {
+        if (v instanceof Number) return ((Number) v).doubleValue();
+        return (v == null) ? Double.NaN : Double.parseDouble(v.toString()); // JMH 以字串 "NaN" 表示無值
+    }
+
+    /** 只支援 JMH 輸出用到的 JSON 子集的小型解析器 */
+    private static final class Json {
+        private final String s;
+        private int i;
+
+        Json(String s) { this.s = s; }
+
+        Object parse() {
+            skip();
+            char c = s.charAt(i);
+            if (c == '{') return object();
+            if (c == '[') return array();
+            if (c == '"') return string();
+            if (s.startsWith("true", i)) { i += 4; return Boolean.TRUE; }
+            if (s.startsWith("false", i)) { i += 5; return Boolean.FALSE; }
+            if (s.startsWith("null", i)) { i += 4; return null; }
+            int start = i;
+            while (i < s.length() && "+-.eE0123456789".indexOf(s.charAt(i)) >= 0) i++;
+            return Double.parseDouble(s.substring(start, i));
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            i++; skip();
+            if (s.charAt(i) == '}') { i++; return m; }
+            while (true) {
+                skip(); String k = string(); skip(); expect(':');
+                m.put(k, parse()); skip();
+                if (s.charAt(i++) == '}') return m;
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> l = new ArrayList<>();
+            i++; skip();
+            if (s.charAt(i) == ']') { i++; return l; }
+            while (true) {
+                l.add(parse()); skip();
+                if (s.charAt(i++) == ']') return l;
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder b = new StringBuilder();
+            while (true) {
+                char c = s.charAt(i++);
+                if (c == '"') return b.toString();
+                if (c == '\\') {
+                    char e = s.charAt(i++);
+                    switch (e) {
+                        case 'n': b.append('\n'); break;
+                        case 't': b.append('\t'); break;
+                        case 'r': b.append('\r'); break;
+                        case 'b': b.append('\b'); break;
+                        case 'f': b.append('\f'); break;
+                        case 'u': b.append((char) Integer.parseInt(s.substring(i, i + 4), 16)); i += 4; break;
+                        default: b.append(e);
+                    }
+                } else b.append(c);
+            }
+        }
+
+        private void expect(char c) {
+            if (s.charAt(i) != c) throw new IllegalArgumentException("expected '" + c + "' at " + i);
+            i++;
+        }
+
+        private void skip() { while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++; }
+    }
+}
@@ -0,0 +1,44 @@
+package memoryracing;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 執行所有 benchmark (附 GC profiler 量測配置率)，結果存成 JSON 並與基準檔比較；
+ * 任何一項變慢或配置量增加超過容許範圍時以非零結束碼結束。基準檔不存在時以本次結果建立。
+ *
+ * 用法：java [-Dbaseline=...] [-Dresult=...] [-Dtolerance=0.10] -jar benchmarks/target/benchmarks.jar [JMH 選項]
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        Path baseline = Paths.get(System.getProperty("baseline", "benchmarks/baselines/baseline.json"));
+        Path current = Paths.get(System.getProperty("result", "benchmarks/baselines/current.json"));
+        double tolerance = Double.parseDouble(System.getProperty("tolerance", "0.10"));
+
+        Path dir = current.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        Options opts = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(current.toString())
+                .build();
+        new Runner(opts).run();
+
+        if (!Files.exists(baseline)) {
+            Files.copy(current, baseline);
+            System.out.println("尚無基準檔，已將本次結果存為 " + baseline);
+            return;
+        }
+        int regressions = BaselineCompare.compare(baseline, current, tolerance, System.out);
+        if (regressions > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,41 @@
+package memoryracing;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** GameEngine.updateWorld() 在各狀態與難度下的單步成本 */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class EngineBenchmark {
+    @Param({"START", "INSTRUCTIONS", "COUNTDOWN", "RACING", "QUIZ", "ROUND_END", "GAME_OVER"})
+    public String state;
+
+    @Param({"EASY", "NORMAL", "HARD"})
+    public String difficulty;
+
+    private GameEngine engine;
+    private GameEngine.State target;
+    private GameEngine.Difficulty diff;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        target = GameEngine.State.valueOf(state);
+        diff = GameEngine.Difficulty.valueOf(difficulty);
+        engine = new GameEngine(42);
+        EngineFixtures.enter(engine, target, diff);
+    }
+
+    @Benchmark
+    public void updateWorld(Blackhole bh) {
+        engine.updateWorld(EngineFixtures.DT);
+        // COUNTDOWN 等狀態會自行結束，離開時重新進入以維持量測對象
+        if (engine.currentState != target) EngineFixtures.enter(engine, target, diff);
+        bh.consume(engine.skyObjects.count);
+    }
+}
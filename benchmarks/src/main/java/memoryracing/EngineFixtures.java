@@ -0,0 +1,59 @@
+package memoryracing;
+
+import java.awt.event.KeyEvent;
+
+/** 將 GameEngine 推進到指定的狀態與難度，供各個 benchmark 建立一致的起點 */
+final class EngineFixtures {
+    static final float DT = 1f / GameEngine.BASE_TICK_RATE;
+    private static final int SKY_WARMUP_TICKS = 600; // 約 10 秒，讓天空物件數量進入穩定狀態
+
+    private EngineFixtures() {}
+
+    static void enter(GameEngine e, GameEngine.State target, GameEngine.Difficulty diff) {
+        e.difficulty = diff;
+        switch (target) {
+            case START:
+            case INSTRUCTIONS:
+                e.setState(target);
+                warmUp(e);
+                break;
+            case COUNTDOWN:
+                e.startCountdown();
+                break;
+            case RACING:
+                e.initRound();
+                warmUp(e);
+                break;
+            case QUIZ:
+                raceToQuiz(e);
+                break;
+            case ROUND_END:
+                e.currentRound = 1;
+                raceToQuiz(e);
+                answerUntilDone(e);
+                e.difficulty = diff;
+                break;
+            case GAME_OVER:
+                e.currentRound = 3;
+                raceToQuiz(e);
+                answerUntilDone(e);
+                break;
+        }
+    }
+
+    private static void warmUp(GameEngine e) {
+        for (int i = 0; i < SKY_WARMUP_TICKS; i++) e.updateWorld(DT);
+    }
+
+    private static void raceToQuiz(GameEngine e) {
+        e.initRound();
+        warmUp(e);
+        int[] keys = {KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT};
+        for (int i = 0; e.currentState == GameEngine.State.RACING; i++) e.handleInput(keys[i & 1]);
+    }
+
+    private static void answerUntilDone(GameEngine e) {
+        int[] keys = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3};
+        for (int i = 0; e.currentState == GameEngine.State.QUIZ; i++) e.handleInput(keys[i % keys.length]);
+    }
+}
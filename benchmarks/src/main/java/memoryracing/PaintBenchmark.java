@@ -0,0 +1,47 @@
+package memoryracing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/** GamePanel 繪製每個畫面到離屏 BufferedImage 的成本 (軟體繪圖管線) */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class PaintBenchmark {
+    @Param({"START", "INSTRUCTIONS", "COUNTDOWN", "RACING", "QUIZ", "ROUND_END", "GAME_OVER"})
+    public String screen;
+
+    private GamePanel panel;
+    private BufferedImage canvas;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // 由儲存庫根目錄或 project/ 目錄執行都能找到圖片
+        if (System.getProperty("memoryracing.home") == null && new File("project/image").isDirectory()) System.setProperty("memoryracing.home", "project");
+        panel = new GamePanel();
+        panel.getGameLoop().stop(); // 由 benchmark 控制，不讓模擬執行緒同時改動狀態
+        panel.setSize(MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT);
+        panel.getAssets().awaitReady();
+        GameEngine engine = panel.getEngine();
+        engine.setListener(null); // 不彈出對話框
+        synchronized (engine) {
+            EngineFixtures.enter(engine, GameEngine.State.valueOf(screen), GameEngine.Difficulty.HARD);
+        }
+        canvas = new BufferedImage(MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        Graphics2D g = canvas.createGraphics();
+        panel.paint(g);
+        g.dispose();
+        return canvas;
+    }
+}
@@ -0,0 +1,47 @@
+package memoryracing;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** QuizSystem.generateQuestion 在不同回合紀錄長度下的成本 */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class QuizBenchmark {
+    @Param({"EASY", "NORMAL", "HARD"})
+    public String difficulty;
+
+    @Param({"8", "64", "512"})
+    public int roundImages;
+
+    private QuizSystem quiz;
+    private GameEngine.Difficulty diff;
+    private SpriteRegistry sprites;
+    private RoundMemory memory;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        diff = GameEngine.Difficulty.valueOf(difficulty);
+        quiz = new QuizSystem();
+        random = new Random(42);
+        sprites = new SpriteRegistry(8, 4);
+        int[] pool = sprites.internAll(quiz.getPool(diff));
+        memory = new RoundMemory(sprites.size(), roundImages);
+        for (int i = 0; i < roundImages; i++) {
+            memory.record((diff == GameEngine.Difficulty.HARD) ? sprites.taskId(random.nextInt(8)) : pool[random.nextInt(pool.length)]);
+        }
+    }
+
+    @Benchmark
+    public void generateQuestion(Blackhole bh) {
+        quiz.generateQuestion(diff, memory, sprites, random);
+        bh.consume(quiz.getOptions());
+    }
+}
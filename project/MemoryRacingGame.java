@@ -1,11 +1,73 @@
+package memoryracing;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.sound.sampled.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * 雙人記憶競速挑戰 - 音樂功能強化版
@@ -18,73 +80,364 @@ public class MemoryRacingGame extends JFrame {
     public static final int WIDTH = 1000;
     public static final int HEIGHT = 700;
     private GamePanel gamePanel;
+    private CanvasRenderer renderer; // memoryracing.renderer=canvas 時才建立
+    private boolean fullScreen;
+
+    public MemoryRacingGame() { this(new GamePanel(), "記憶競速大對決"); }
 
-    public MemoryRacingGame() {
-        setTitle("記憶競速大對決");
-        setSize(WIDTH, HEIGHT);
+    /**
+     * 以指定模式 (本機、重播或連線) 的畫面建立視窗，以 open() 顯示。
+     * -Dmemoryracing.renderer=canvas 改用 BufferStrategy 主動繪製 (memoryracing.buffers 為 2 或 3)，
+     * 視窗可任意縮放；再加上 -Dmemoryracing.fullscreen=true 進入全螢幕。預設沿用 Swing 的 repaint。
+     */
+    public MemoryRacingGame(GamePanel panel, String title) {
+        setTitle(title);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setResizable(false);
+        gamePanel = panel;
+        if (System.getProperty("memoryracing.renderer", "swing").equals("canvas")) {
+            renderer = new CanvasRenderer(panel, Integer.getInteger("memoryracing.buffers", 2));
+            panel.setCanvasRenderer(renderer);
+            setIgnoreRepaint(true);
+            add(renderer.getCanvas());
+            fullScreen = Boolean.getBoolean("memoryracing.fullscreen");
+            if (fullScreen) setUndecorated(true); // 必須在視窗可顯示 (pack) 之前設定
+            else pack();
+        } else {
+            setSize(WIDTH, HEIGHT);
+            setResizable(false);
+            add(gamePanel);
+        }
         setLocationRelativeTo(null);
 
-        gamePanel = new GamePanel();
-        add(gamePanel);
-
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent e) {
-                gamePanel.getEngine().handleInput(e.getKeyCode());
+                gamePanel.handleKey(e.getKeyCode());
+            }
+            @Override
+            public void keyReleased(KeyEvent e) {
+                gamePanel.handleKeyRelease(e.getKeyCode());
+            }
+            @Override
+            public void keyTyped(KeyEvent e) {
+                gamePanel.handleKeyTyped(e.getKeyChar());
             }
         });
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new MemoryRacingGame().setVisible(true));
+    /** 顯示視窗；Canvas 模式由 CanvasRenderer 決定全螢幕並對齊螢幕更新率 */
+    public void open() {
+        if (renderer != null) renderer.show(this, fullScreen);
+        else setVisible(true);
+    }
+
+    /** 加上 --replay <檔案> 以原速重播錄下的比賽；--join <主機[:port]> [名稱] 加入 NetServer 連線對戰 */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("--replay")) {
+            ReplayPlayer replay = new ReplayPlayer(Replay.read(Path.of(args[1])));
+            SwingUtilities.invokeLater(() -> new MemoryRacingGame(new GamePanel(replay), "記憶競速大對決 - 重播").open());
+        } else if (args.length >= 2 && args[0].equals("--join")) {
+            int colon = args[1].lastIndexOf(':');
+            String host = (colon < 0) ? args[1] : args[1].substring(0, colon);
+            int port = (colon < 0) ? NetProtocol.DEFAULT_PORT : Integer.parseInt(args[1].substring(colon + 1));
+            String name = (args.length >= 3) ? args[2] : System.getProperty("user.name", "");
+            NetClient client = new NetClient(new InetSocketAddress(host, port), name, NetLink.Conditions.fromSystemProperties());
+            SwingUtilities.invokeLater(() -> new MemoryRacingGame(new GamePanel(client), "記憶競速大對決 - 連線對戰").open());
+        } else SwingUtilities.invokeLater(() -> new MemoryRacingGame().open());
     }
 }
 
 // ==========================================
 // 1. 音效管理系統 (SoundManager)
 // ==========================================
+/**
+ * 音訊子系統：一條常駐的混音執行緒獨佔一個 SourceDataLine (16 位元 PCM)，每次寫入一個週期的樣本。
+ * 背景音樂由另一條讀取執行緒以固定數量的區塊串流 (素材包的映射區或 music/bgm.wav)，記憶體用量與曲長無關；
+ * 短音效在開始時預先合成成 PCM，觸發後由固定數量的聲部軟體混音，聲部用完時搶走播放最久的那個。
+ * 觸發端只有模擬執行緒 (GameListener 回呼)，經由無鎖的 InputQueue 交給混音執行緒，建構子不會阻塞。
+ * 緩衝大小與聲部數可用 -Dmemoryracing.audio.buffer (毫秒)、-Dmemoryracing.audio.voices 調整。
+ */
 class SoundManager {
-    private Clip bgmClip;
-    private boolean isMuted = false;
+    /** 短音效，順序即預先合成的緩衝索引 */
+    enum Sfx { STEP, BEEP, GO, CORRECT, WRONG }
+
+    public static final int DEFAULT_BUFFER_MILLIS = 40, DEFAULT_VOICES = 8;
+    private static final float DEFAULT_RATE = 44100f;
+    private static final int CHUNK_BYTES = 16 * 1024, CHUNKS = 8; // 音樂讀取緩衝最多 128 KB
     private final String BGM_PATH = "music/bgm.wav";
 
-    public SoundManager() {
-        loadBGM();
+    private final AssetBundle bundle;
+    private final int bufferMillis;
+    private final InputQueue triggers = new InputQueue(64); // kind 為 Sfx 序號，nanos 為觸發時間
+    private final Histogram latency = new Histogram();      // 觸發到出聲，微秒
+    private final int[] voiceSfx, voicePos;                 // voicePos < 0 表示空閒
+    private final long[] voiceTrigger;
+    private SourceDataLine line;
+    private short[][] effects;
+    private volatile boolean isMuted = false;
+    private volatile boolean ready;
+    private volatile long underruns, stolen, starved;
+    private volatile int activeVoices;
+
+    public SoundManager() { this(null); }
+
+    /** bundle 不為 null 時從素材包取 PCM 資料，否則讀取 music/bgm.wav */
+    public SoundManager(AssetBundle bundle) {
+        this(bundle, Integer.getInteger("memoryracing.audio.buffer", DEFAULT_BUFFER_MILLIS),
+                Integer.getInteger("memoryracing.audio.voices", DEFAULT_VOICES), null);
+    }
+
+    /** line 為 null 時向 AudioSystem 取得輸出 */
+    SoundManager(AssetBundle bundle, int bufferMillis, int voices, SourceDataLine line) {
+        this.bundle = bundle;
+        this.bufferMillis = Math.max(5, bufferMillis);
+        this.line = line;
+        voiceSfx = new int[Math.max(1, voices)];
+        voicePos = new int[voiceSfx.length];
+        voiceTrigger = new long[voiceSfx.length];
+        Arrays.fill(voicePos, -1);
+        Thread t = new Thread(this::runMixer, "AudioMixer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.start();
+    }
+
+    /** 只能從模擬執行緒呼叫；音訊尚未就緒或佇列已滿時直接略過 */
+    public void play(Sfx sfx) {
+        if (ready && !isMuted) triggers.offer(sfx.ordinal(), 0, System.nanoTime());
+    }
+
+    public void toggleMute() {
+        isMuted = !isMuted;
+    }
+
+    public boolean isMuted() {
+        return isMuted;
     }
 
-    private void loadBGM() {
+    public boolean isReady() { return ready; }
+    /** 寫入前輸出緩衝已經播空的次數 */
+    public long getUnderruns() { return underruns; }
+    /** 聲部不足而被搶走的次數 */
+    public long getStolenVoices() { return stolen; }
+    /** 音樂讀取跟不上、該週期沒有音樂可混的次數 */
+    public long getStarvedPeriods() { return starved; }
+    public int getActiveVoices() { return activeVoices; }
+    public int getVoiceCount() { return voiceSfx.length; }
+    /** 觸發到樣本離開輸出緩衝的估計時間 (微秒) */
+    public Histogram getLatency() { return latency; }
+
+    private void runMixer() {
+        BgmStream bgm = null;
         try {
-            File audioFile = new File(BGM_PATH);
-            if (audioFile.exists()) {
-                AudioInputStream audioStream = AudioSystem.getAudioInputStream(audioFile);
-                bgmClip = AudioSystem.getClip();
-                bgmClip.open(audioStream);
-                bgmClip.loop(Clip.LOOP_CONTINUOUSLY); // 設定循環播放
-                bgmClip.start();
+            AudioFormat format = new AudioFormat(DEFAULT_RATE, 16, 2, true, false);
+            if (bundle != null) {
+                if (bundle.contains(AssetBundle.BGM_ID)) {
+                    format = bundle.audioFormat(AssetBundle.BGM_ID); // 打包時已轉成 16 位元 little-endian
+                    bgm = new BgmStream(bundle, null, format);
+                } // 打包時已提示缺少音樂
             } else {
-                System.out.println("找不到背景音樂檔案: " + BGM_PATH + " (請放置 .wav 檔案)");
+                File audioFile = new File(BGM_PATH);
+                if (audioFile.exists()) {
+                    try (AudioInputStream probe = AudioSystem.getAudioInputStream(audioFile)) {
+                        AudioFormat f = probe.getFormat();
+                        format = new AudioFormat(f.getSampleRate(), 16, f.getChannels(), true, false);
+                    }
+                    bgm = new BgmStream(null, audioFile, format);
+                } else {
+                    System.out.println("找不到背景音樂檔案: " + BGM_PATH + " (請放置 .wav 檔案)");
+                }
             }
+            effects = synthesize(format.getSampleRate());
+            int frameSize = format.getFrameSize();
+            int bufferBytes = Math.round(format.getSampleRate() * bufferMillis / 1000f) * frameSize;
+            if (line == null) line = AudioSystem.getSourceDataLine(format);
+            line.open(format, bufferBytes);
+            if (bgm != null) bgm.start();
+            mix(format, bgm);
         } catch (Exception e) {
             System.out.println("音訊初始化失敗: " + e.getMessage());
+        } finally {
+            ready = false;
+            if (bgm != null) bgm.stop();
+            if (line != null) line.close();
         }
     }
 
-    public void toggleMute() {
-        isMuted = !isMuted;
-        if (bgmClip != null) {
-            if (isMuted) {
-                bgmClip.stop();
-            } else {
-                bgmClip.loop(Clip.LOOP_CONTINUOUSLY);
-                bgmClip.start();
+    private void mix(AudioFormat format, BgmStream bgm) {
+        int channels = format.getChannels(), frameSize = format.getFrameSize();
+        int bufferBytes = line.getBufferSize();
+        int periodFrames = Math.max(64, bufferBytes / frameSize / 4); // 每次寫入緩衝的 1/4
+        int[] acc = new int[periodFrames * channels];
+        byte[] out = new byte[periodFrames * frameSize];
+        double nanosPerByte = 1e9 / (format.getSampleRate() * frameSize);
+        InputQueue.Sink start = (kind, unused, nanos) -> startVoice(kind, nanos);
+        boolean started = false;
+        line.start();
+        ready = true;
+        while (!Thread.currentThread().isInterrupted()) {
+            triggers.drain(start);
+            Arrays.fill(acc, 0);
+            if (bgm != null && !bgm.read(acc)) starved++;
+            mixVoices(acc, channels);
+            if (isMuted) Arrays.fill(out, (byte) 0);
+            else {
+                for (int i = 0; i < acc.length; i++) {
+                    int v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, acc[i]));
+                    out[2 * i] = (byte) v; out[2 * i + 1] = (byte) (v >> 8);
+                }
             }
+            int available = line.available();
+            if (started && available >= bufferBytes) underruns++;
+            long now = System.nanoTime();
+            long queued = (long) ((bufferBytes - available) * nanosPerByte); // 在本週期之前尚未播出的樣本
+            for (int v = 0; v < voiceTrigger.length; v++) {
+                if (voiceTrigger[v] != 0) { latency.record((now + queued - voiceTrigger[v]) / 1000); voiceTrigger[v] = 0; }
+            }
+            line.write(out, 0, out.length); // 緩衝滿時阻塞，決定混音的節奏
+            started = true;
         }
     }
 
-    public boolean isMuted() {
-        return isMuted;
+    private void startVoice(int sfx, long nanos) {
+        int v = -1, oldest = 0;
+        for (int i = 0; i < voicePos.length; i++) {
+            if (voicePos[i] < 0) { v = i; break; }
+            if (voicePos[i] > voicePos[oldest]) oldest = i;
+        }
+        if (v < 0) { v = oldest; stolen++; }
+        voiceSfx[v] = sfx; voicePos[v] = 0; voiceTrigger[v] = nanos;
+    }
+
+    private void mixVoices(int[] acc, int channels) {
+        int active = 0;
+        for (int v = 0; v < voicePos.length; v++) {
+            int pos = voicePos[v];
+            if (pos < 0) continue;
+            short[] pcm = effects[voiceSfx[v]];
+            int n = Math.min(acc.length / channels, pcm.length - pos);
+            for (int f = 0, i = 0; f < n; f++) {
+                int s = pcm[pos + f];
+                for (int c = 0; c < channels; c++) acc[i++] += s;
+            }
+            pos += n;
+            voicePos[v] = (pos >= pcm.length) ? -1 : pos;
+            if (voicePos[v] >= 0) active++;
+        }
+        activeVoices = active;
+    }
+
+    /** 沒有音效檔，開始時依輸出取樣率合成單聲道 PCM */
+    private static short[][] synthesize(float rate) {
+        short[][] pcm = new short[Sfx.values().length][];
+        SplittableRandom rng = new SplittableRandom(1);
+        short[] step = new short[(int) (rate * 0.04f)];
+        for (int i = 0, prev = 0; i < step.length; i++) { // 低通後的噪音，快速衰減
+            int noise = rng.nextInt(-8000, 8001);
+            prev = (prev * 3 + noise) / 4;
+            step[i] = (short) (prev * Math.exp(-i / (rate * 0.008)));
+        }
+        pcm[Sfx.STEP.ordinal()] = step;
+        pcm[Sfx.BEEP.ordinal()] = tone(rate, 0.12f, 880, 880, 0.3, false);
+        pcm[Sfx.GO.ordinal()] = tone(rate, 0.3f, 1320, 1320, 0.3, false);
+        short[] lo = tone(rate, 0.09f, 660, 660, 0.25, false), hi = tone(rate, 0.15f, 990, 990, 0.25, false);
+        short[] correct = Arrays.copyOf(lo, lo.length + hi.length);
+        System.arraycopy(hi, 0, correct, lo.length, hi.length);
+        pcm[Sfx.CORRECT.ordinal()] = correct;
+        pcm[Sfx.WRONG.ordinal()] = tone(rate, 0.3f, 180, 110, 0.2, true);
+        return pcm;
+    }
+
+    /** 頻率由 f0 線性滑到 f1 的正弦波或方波，前後 5ms 淡入淡出 */
+    private static short[] tone(float rate, float seconds, double f0, double f1, double amp, boolean square) {
+        short[] s = new short[(int) (rate * seconds)];
+        int fade = (int) (rate * 0.005f);
+        double phase = 0;
+        for (int i = 0; i < s.length; i++) {
+            phase += 2 * Math.PI * (f0 + (f1 - f0) * i / s.length) / rate;
+            double v = Math.sin(phase);
+            if (square) v = Math.signum(v);
+            double env = Math.min(1, Math.min(i, s.length - 1 - i) / (double) fade);
+            s[i] = (short) (v * env * amp * Short.MAX_VALUE);
+        }
+        return s;
+    }
+
+    /**
+     * 背景音樂串流：讀取執行緒把 PCM 填進固定數量的區塊後交給混音執行緒，用完的區塊再還回來重複使用，
+     * 播到結尾時從頭再讀 (循環播放)。混音端取不到區塊時不等待，該週期沒有音樂。
+     */
+    private static final class BgmStream {
+        private static final class Chunk { final byte[] data = new byte[CHUNK_BYTES]; int length; }
+
+        private final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS), filled = new ArrayBlockingQueue<>(CHUNKS);
+        private final AssetBundle bundle;
+        private final File file;
+        private final AudioFormat format;
+        private final Thread reader = new Thread(this::readLoop, "AudioStream");
+        private Chunk current;
+        private int pos;
+        private boolean primed; // 第一個區塊到達前的空白不算讀取跟不上
+
+        BgmStream(AssetBundle bundle, File file, AudioFormat format) {
+            this.bundle = bundle; this.file = file; this.format = format;
+            for (int i = 0; i < CHUNKS; i++) free.add(new Chunk());
+            reader.setDaemon(true);
+        }
+
+        void start() { reader.start(); }
+        void stop() { reader.interrupt(); }
+
+        private void readLoop() {
+            try {
+                while (true) {
+                    if (bundle != null) {
+                        ByteBuffer data = bundle.data(AssetBundle.BGM_ID);
+                        if (!data.hasRemaining()) return;
+                        while (data.hasRemaining()) {
+                            Chunk c = free.take();
+                            c.length = Math.min(CHUNK_BYTES, data.remaining());
+                            data.get(c.data, 0, c.length);
+                            filled.put(c);
+                        }
+                    } else {
+                        try (AudioInputStream src = AudioSystem.getAudioInputStream(file);
+                             AudioInputStream in = AudioSystem.getAudioInputStream(format, src)) {
+                            boolean any = false;
+                            while (true) {
+                                Chunk c = free.take();
+                                int n = in.readNBytes(c.data, 0, CHUNK_BYTES);
+                                if (n <= 0) { free.put(c); break; }
+                                c.length = n; any = true;
+                                filled.put(c);
+                            }
+                            if (!any) return;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // 停止
+            } catch (IOException | UnsupportedAudioFileException | IllegalArgumentException e) {
+                System.out.println("背景音樂讀取失敗: " + e.getMessage());
+            }
+        }
+
+        /** 混音執行緒：把一個週期的音樂加進 acc，區塊接不上時回傳 false */
+        boolean read(int[] acc) {
+            for (int i = 0; i < acc.length; ) {
+                if (current == null) {
+                    current = filled.poll();
+                    pos = 0;
+                    if (current == null) return !primed;
+                    primed = true;
+                }
+                byte[] d = current.data;
+                int n = Math.min(acc.length - i, (current.length - pos) / 2);
+                for (int end = i + n; i < end; i++, pos += 2) acc[i] += (short) ((d[pos] & 0xFF) | (d[pos + 1] << 8));
+                if (pos + 1 >= current.length) { free.offer(current); current = null; }
+            }
+            return true;
+        }
     }
 }
 
@@ -92,6 +445,9 @@ class SoundManager {
 // 2. 遊戲邏輯引擎 (GameEngine)
 // ==========================================
 class GameEngine {
+    /** 原本 16ms Timer 下的每步常數皆以此頻率調校，其他頻率依 dt 等比換算 */
+    public static final int BASE_TICK_RATE = 60;
+
     enum State { START, INSTRUCTIONS, COUNTDOWN, RACING, QUIZ, ROUND_END, GAME_OVER }
     enum Difficulty { EASY, NORMAL, HARD }
 
@@ -100,82 +456,165 @@ class GameEngine {
     public int currentRound = 1;
 
     public String p1Name = "玉米濃ㄊㄥ", p2Name = "菜包";
-    public Image p1Icon, p2Icon;
-    public Image[] taskImages = new Image[8];
-    public Image[] distractorImages = new Image[4];
-
-    private final String P1_IMG_PATH = "image/p1.png";
-    private final String P2_IMG_PATH = "image/p2.png";
-    private final String[] TASK_IMG_PATHS = {
-        "image/t1.jpg", "image/t2.jpg", "image/t3.jpg", "image/t4.jpg",
-        "image/t5.jpg", "image/t6.jpg", "image/t7.jpg", "image/t8.jpg"
-    };
-    private final String[] DIST_IMG_PATHS = {
-        "image/d1.png", "image/d2.jpg", "image/d3.jpg", "image/d4.jpg"
-    };
 
     public float p1Pos = 50, p2Pos = 50;
+    public float prevP1Pos = 50, prevP2Pos = 50; // 上一個模擬步的位置，供繪圖插值
     public int p1Score = 0, p2Score = 0;
     private int p1LastKey = -1, p2LastKey = -1;
     public static final float FINISH_LINE = 850;
+    // 滑鼠點擊轉成的指令碼 (負數不會與 KeyEvent 代碼衝突)，與按鍵走同一條輸入路徑才能被重播
+    public static final int CMD_START = -1, CMD_INSTRUCTIONS = -2, CMD_BACK = -3;
 
-    public List<SkyObject> skyObjects = new ArrayList<>();
-    public List<String> roundImages = new ArrayList<>();
-    public Map<String, Integer> imageCounts = new HashMap<>();
+    public final SpriteRegistry sprites;
+    public final SkyObjectStore skyObjects = new SkyObjectStore(64);
+    public final RoundMemory roundMemory;
     public int winnerOfRace = 0, currentQuizPlayer = 0, quizAttempts = 0;
 
     public int countdownValue = 3;
-    private long countdownStart;
-    public float demoRunnerYOffset = 0;
+    private float countdownElapsed; // 以模擬時間計算倒數，不受繪圖延遲影響
+    public float demoRunnerYOffset = 0, prevDemoRunnerYOffset = 0;
     public float animTick = 0;
-    public List<Confetti> confettiList = new ArrayList<>();
+    public final ParticleSystem particles;
 
+    /** 困難難度每回合的照片張數與可用的干擾照片張數 */
+    public static final int HARD_ROUND_PHOTOS = 8, HARD_ROUND_DISTRACTORS = 4;
+    private final ContentPack content;
+    private final PhotoDeck taskDeck, distractorDeck; // 回合的照片在倒數開始時發好，畫面端趁倒數預先解碼
     private List<Integer> hardSpawningQueue = new ArrayList<>();
+    public int confettiCount = 150;
+
+    private final QuizSystem quizSystem;
+    private final long seed;
+    private final Random random;
+    private GameListener listener = GameListener.NONE;
+    private BooleanSupplier readiness = () -> true;
+    private final int[] easyPoolIds, normalPoolIds;
+    // 鍵盤事件由 EDT 放入佇列，模擬執行緒在每個 tick 開頭取出，狀態只在 tick 之間改變
+    public final InputQueue input = new InputQueue(InputQueue.DEFAULT_CAPACITY);
+    public final MashMeter p1Mash = new MashMeter(), p2Mash = new MashMeter();
+    private final boolean[] keyHeld = new boolean[256];
+    private final InputQueue.Sink inputSink = this::applyQueuedInput;
+    private long pendingInputNanos; // 尚未被畫面取走的最早輸入時間，0 表示沒有
+    private long tickIndex; // 已完成的 updateWorld 次數，重播以它對齊輸入
+    private int questionSerial; // 每出一題加一
+    private ReplayRecorder recorder;
+    private float lastDt = Float.NaN;
+    private boolean lastReady = true;
+
+    public GameEngine() { this(System.nanoTime()); }
 
-    private QuizSystem quizSystem = new QuizSystem();
-    public SoundManager soundManager = new SoundManager(); // 初始化音效管理
-    private Random random = new Random();
-    private JPanel parent;
+    /** 同一個 seed 配上同樣的輸入序列，會得到完全相同的比賽過程 */
+    public GameEngine(long seed) { this(seed, ParticleSystem.DEFAULT_CAPACITY); }
 
-    public GameEngine(JPanel parent) {
-        this.parent = parent;
-        loadIcons();
+    /** particleCapacity 只影響畫面特效 (粒子另有亂數來源)，不畫面的伺服器可設為 0 省下記憶體 */
+    public GameEngine(long seed, int particleCapacity) { this(seed, particleCapacity, ContentPack.current()); }
+
+    public GameEngine(long seed, int particleCapacity, ContentPack content) {
+        this.seed = seed;
+        this.content = content;
+        this.sprites = new SpriteRegistry(content.taskCount(), content.distractorCount());
+        this.quizSystem = new QuizSystem(content);
+        this.taskDeck = new PhotoDeck(content.taskCount(), HARD_ROUND_PHOTOS);
+        this.distractorDeck = new PhotoDeck(content.distractorCount(), Math.min(HARD_ROUND_DISTRACTORS, content.distractorCount()));
+        this.random = new Random(seed);
+        this.particles = new ParticleSystem(particleCapacity, new SplittableRandom(seed));
+        easyPoolIds = sprites.internAll(quizSystem.getPool(Difficulty.EASY));
+        normalPoolIds = sprites.internAll(quizSystem.getPool(Difficulty.NORMAL));
+        quizSystem.internDistractors(sprites);
+        roundMemory = new RoundMemory(sprites.size(), 256);
     }
 
-    private void loadIcons() {
-        new Thread(() -> {
-            try {
-                File f1 = new File(P1_IMG_PATH); if (f1.exists()) p1Icon = ImageIO.read(f1);
-                File f2 = new File(P2_IMG_PATH); if (f2.exists()) p2Icon = ImageIO.read(f2);
-                for (int i = 0; i < 8; i++) {
-                    File ft = new File(TASK_IMG_PATHS[i]); if (ft.exists()) taskImages[i] = ImageIO.read(ft);
-                }
-                for (int i = 0; i < 4; i++) {
-                    File fd = new File(DIST_IMG_PATHS[i]); if (fd.exists()) distractorImages[i] = ImageIO.read(fd);
-                }
-            } catch (Exception e) { System.out.println("本地圖片載入失敗，請檢查 image 資料夾。"); }
-        }).start();
+    public void setListener(GameListener listener) { this.listener = (listener != null) ? listener : GameListener.NONE; }
+    public long getSeed() { return seed; }
+    public ContentPack getContent() { return content; }
+    /** 倒數計時要等 ready 成立才開始走 (例如素材尚未載入完)；null 表示不必等待 */
+    public void setReadinessBarrier(BooleanSupplier ready) { this.readiness = (ready != null) ? ready : () -> true; }
+    public boolean isWaitingForReady() { return currentState == State.COUNTDOWN && !readiness.getAsBoolean(); }
+    /** 把之後的輸入、步長與等待點變化錄進 recorder；null 表示停止錄製 */
+    public void setRecorder(ReplayRecorder recorder) {
+        this.recorder = recorder;
+        if (recorder != null) recorder.begin(this);
     }
+    public long getTickIndex() { return tickIndex; }
+    public int getQuestionSerial() { return questionSerial; }
+    GameListener getListener() { return listener; }
+    /** 本回合 (困難難度) 會出現的任務照片與可能的干擾選項在題庫中的路徑，供畫面端預先解碼 */
+    public String[] getRoundPhotos() {
+        int[] tasks = taskDeck.hand(), dists = distractorDeck.hand();
+        String[] out = new String[tasks.length + dists.length];
+        for (int i = 0; i < tasks.length; i++) out[i] = content.taskPhoto(tasks[i]);
+        for (int i = 0; i < dists.length; i++) out[tasks.length + i] = content.distractorPhoto(dists[i]);
+        return out;
+    }
+    /** 玩家上一次有效的步伐鍵，-1 表示本回合還沒跑 */
+    public int getP1LastKey() { return p1LastKey; }
+    public int getP2LastKey() { return p2LastKey; }
+
+    /** 所有狀態切換都經過這裡，以便通知 listener */
+    public void setState(State next) {
+        State prev = currentState;
+        currentState = next;
+        if (prev != next) listener.onStateChanged(prev, next);
+    }
+
+    /** 以基準頻率推進一步，供無畫面模擬使用 */
+    public void tick() { updateWorld(1f / BASE_TICK_RATE); }
 
     public void startCountdown() {
-        countdownValue = 3; countdownStart = System.currentTimeMillis(); currentState = State.COUNTDOWN;
+        if (difficulty == Difficulty.HARD) {
+            taskDeck.deal(random);
+            quizSystem.setRoundDistractors(distractorDeck.deal(random));
+        }
+        countdownValue = 3; countdownElapsed = 0; setState(State.COUNTDOWN);
+        listener.onCountdown(3);
     }
 
     public void initRound() {
-        p1Pos = 50; p2Pos = 50; p1LastKey = -1; p2LastKey = -1;
-        skyObjects.clear(); roundImages.clear(); imageCounts.clear(); winnerOfRace = 0;
+        p1Pos = 50; p2Pos = 50; prevP1Pos = 50; prevP2Pos = 50; p1LastKey = -1; p2LastKey = -1;
+        p1Mash.reset(); p2Mash.reset();
+        skyObjects.clear(); roundMemory.clear(); winnerOfRace = 0;
 
         if (difficulty == Difficulty.HARD) {
             hardSpawningQueue.clear();
-            for (int i = 0; i < 8; i++) hardSpawningQueue.add(i);
-            Collections.shuffle(hardSpawningQueue);
+            for (int photo : taskDeck.hand()) hardSpawningQueue.add(photo);
+            Collections.shuffle(hardSpawningQueue, random);
+        }
+
+        setState(State.RACING);
+    }
+
+    /**
+     * 套用佇列中的一筆事件：只有從放開變成按下的瞬間才算一次按鍵，按住時的自動重複不會被當成連打。
+     */
+    private void applyQueuedInput(int kind, int keyCode, long nanos) {
+        boolean pressed = (kind == InputQueue.PRESS);
+        if (keyCode >= 0 && keyCode < keyHeld.length) {
+            boolean wasHeld = keyHeld[keyCode];
+            keyHeld[keyCode] = pressed;
+            if (!pressed || wasHeld) return;
+        } else if (!pressed) return;
+        if (currentState == State.RACING) {
+            if (keyCode == KeyEvent.VK_LEFT || keyCode == KeyEvent.VK_RIGHT) p1Mash.record(nanos);
+            else if (keyCode == KeyEvent.VK_A || keyCode == KeyEvent.VK_D) p2Mash.record(nanos);
         }
+        handleInput(keyCode);
+        if (pendingInputNanos == 0 || nanos < pendingInputNanos) pendingInputNanos = nanos;
+    }
 
-        currentState = State.RACING;
+    /** 取走上次呼叫後套用過的輸入中最早的時間戳 (畫面用來量測輸入到顯示的延遲)，沒有時回傳 0 */
+    public long takeInputStamp() {
+        long t = pendingInputNanos;
+        pendingInputNanos = 0;
+        return t;
     }
 
+    public boolean isKeyHeld(int keyCode) { return keyCode >= 0 && keyCode < keyHeld.length && keyHeld[keyCode]; }
+
     public void handleInput(int keyCode) {
-        if (currentState == State.START) { if (keyCode == KeyEvent.VK_SPACE) startCountdown(); }
+        if (recorder != null) recorder.input(tickIndex, keyCode);
+        if (keyCode == CMD_INSTRUCTIONS) { if (currentState == State.START) setState(State.INSTRUCTIONS); return; }
+        if (keyCode == CMD_BACK) { if (currentState == State.INSTRUCTIONS) setState(State.START); return; }
+        if (currentState == State.START) { if (keyCode == KeyEvent.VK_SPACE || keyCode == CMD_START) startCountdown(); }
         else if (currentState == State.RACING) updateRacingInput(keyCode);
         else if (currentState == State.QUIZ) updateQuizInput(keyCode);
         else if (currentState == State.ROUND_END) startCountdown();
@@ -183,18 +622,24 @@ class GameEngine {
 
     private void updateRacingInput(int keyCode) {
         if ((keyCode == KeyEvent.VK_LEFT || keyCode == KeyEvent.VK_RIGHT) && keyCode != p1LastKey) {
-            p1Pos += 8; p1LastKey = keyCode;
+            p1Pos += 8; p1LastKey = keyCode; listener.onStep(1);
         }
         if ((keyCode == KeyEvent.VK_A || keyCode == KeyEvent.VK_D) && keyCode != p2LastKey) {
-            p2Pos += 8; p2LastKey = keyCode;
+            p2Pos += 8; p2LastKey = keyCode; listener.onStep(2);
         }
-        if (p1Pos >= FINISH_LINE) { winnerOfRace = 1; currentQuizPlayer = 1; startQuiz(); }
-        else if (p2Pos >= FINISH_LINE) { winnerOfRace = 2; currentQuizPlayer = 2; startQuiz(); }
+        if (p1Pos >= FINISH_LINE) { winnerOfRace = 1; currentQuizPlayer = 1; raceFinishEffect(1); listener.onRaceFinished(1); startQuiz(); }
+        else if (p2Pos >= FINISH_LINE) { winnerOfRace = 2; currentQuizPlayer = 2; raceFinishEffect(2); listener.onRaceFinished(2); startQuiz(); }
     }
 
+    /** 終點線的煙火；連線用戶端收到對應事件時也呼叫這裡 */
+    void raceFinishEffect(int winner) { particles.burst(907, (winner == 1) ? 480 : 580, 120, 7, 0.4f, 60); }
+    void correctAnswerEffect() { particles.sparkle(MemoryRacingGame.WIDTH / 2f, MemoryRacingGame.HEIGHT / 2f, 80); }
+
     private void startQuiz() {
-        currentState = State.QUIZ; quizAttempts = 0; skyObjects.clear();
-        quizSystem.generateQuestion(difficulty, roundImages, imageCounts);
+        quizAttempts = 0; skyObjects.clear();
+        quizSystem.generateQuestion(difficulty, roundMemory, sprites, random);
+        questionSerial++;
+        setState(State.QUIZ);
     }
 
     private void updateQuizInput(int keyCode) {
@@ -209,11 +654,16 @@ class GameEngine {
 
             if (actualIdx < quizSystem.getOptions().size()) {
                 boolean correct = quizSystem.processInput(actualIdx);
-                if (correct) { updateScore(currentQuizPlayer, 25); showResult(true, ""); }
+                listener.onAnswer(currentQuizPlayer, actualIdx, correct);
+                if (correct) {
+                    updateScore(currentQuizPlayer, 25);
+                    correctAnswerEffect();
+                    showResult(true, "");
+                }
                 else {
                     if (quizAttempts == 0) {
                         quizAttempts++; currentQuizPlayer = (currentQuizPlayer == 1) ? 2 : 1;
-                        JOptionPane.showMessageDialog(parent, "答錯了！換另一位玩家作答");
+                        listener.onTurnPassed(currentQuizPlayer);
                     } else showResult(false, quizSystem.getFeedback());
                 }
             }
@@ -225,92 +675,334 @@ class GameEngine {
     }
 
     private void showResult(boolean correct, String feedback) {
-        String msg = correct ? "回答正確！加 25 分" : "可惜答錯了...\n" + feedback;
-        JOptionPane.showMessageDialog(parent, msg);
+        listener.onRoundResult(correct, feedback);
         if (currentRound < 3) {
             currentRound++;
             difficulty = (difficulty == Difficulty.EASY) ? Difficulty.NORMAL : Difficulty.HARD;
-            currentState = State.ROUND_END;
-        } else { currentState = State.GAME_OVER; spawnConfetti(); }
+            setState(State.ROUND_END);
+        } else { spawnConfetti(); setState(State.GAME_OVER); }
+        if (recorder != null) recorder.roundEnd(tickIndex, this);
     }
 
-    private void spawnConfetti() {
-        confettiList.clear();
-        Color[] colors = {Color.RED, Color.YELLOW, Color.GREEN, Color.BLUE, Color.MAGENTA, Color.WHITE};
-        for (int i = 0; i < 150; i++) {
-            float vx = (random.nextFloat() - 0.5f) * 6;
-            float vy = 2 + random.nextFloat() * 5;
-            confettiList.add(new Confetti(random.nextInt(MemoryRacingGame.WIDTH), -random.nextInt(MemoryRacingGame.HEIGHT), vx, vy, colors[random.nextInt(colors.length)]));
-        }
+    void spawnConfetti() {
+        particles.clear();
+        particles.emitConfetti(confettiCount, MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT);
     }
 
-    public void updateWorld() {
-        animTick += 0.15f;
-        demoRunnerYOffset = (float) Math.abs(Math.sin(animTick)) * 12;
-        if (currentState == State.GAME_OVER) for (Confetti c : confettiList) c.update();
+    /** 以固定步長 dt (秒) 推進一次模擬，由 GameLoop 在模擬執行緒上呼叫 */
+    public void updateWorld(float dt) {
+        input.drain(inputSink);
+        if (dt != lastDt) { lastDt = dt; if (recorder != null) recorder.tickLength(tickIndex, dt); }
+        float k = dt * BASE_TICK_RATE; // 相對於 60Hz 基準步的倍率
+        prevP1Pos = p1Pos; prevP2Pos = p2Pos;
+        skyObjects.snapshotPositions();
+        updateAnimations(k);
         if (currentState == State.START || currentState == State.RACING || currentState == State.COUNTDOWN) {
             boolean isRacing = (currentState == State.RACING);
             int minGap = (difficulty == Difficulty.HARD) ? 120 : 260;
-            boolean spaceAvailable = skyObjects.isEmpty() || (1050 - skyObjects.get(skyObjects.size()-1).x > minGap);
+            boolean spaceAvailable = skyObjects.isEmpty() || (1050 - skyObjects.newestX() > minGap);
 
-            if (spaceAvailable && random.nextInt(100) < 5) {
+            if (spaceAvailable && random.nextFloat() < 0.05f * k) {
                 if (isRacing) {
                     if (difficulty == Difficulty.HARD) {
                         int photoIdx;
                         if (!hardSpawningQueue.isEmpty()) photoIdx = hardSpawningQueue.remove(0);
-                        else photoIdx = random.nextInt(8);
-                        String imgTag = "TASK_" + photoIdx;
-                        skyObjects.add(new SkyObject(1050, 80 + random.nextInt(200), 8.0f, imgTag));
-                        roundImages.add(imgTag);
-                        imageCounts.put(imgTag, imageCounts.getOrDefault(imgTag, 0) + 1);
+                        else photoIdx = taskDeck.hand()[random.nextInt(HARD_ROUND_PHOTOS)];
+                        int id = sprites.taskId(photoIdx);
+                        skyObjects.spawn(1050, 80 + random.nextInt(200), 8.0f, id);
+                        roundMemory.record(id);
                     } else {
-                        String[] pool = quizSystem.getPool(difficulty);
-                        String img = pool[random.nextInt(pool.length)];
+                        int[] pool = (difficulty == Difficulty.EASY) ? easyPoolIds : normalPoolIds;
+                        int id = pool[random.nextInt(pool.length)];
                         float speed = (difficulty == Difficulty.EASY) ? 3.5f : 5.5f;
-                        skyObjects.add(new SkyObject(1050, 80 + random.nextInt(200), speed, img));
-                        roundImages.add(img);
-                        imageCounts.put(img, imageCounts.getOrDefault(img, 0) + 1);
+                        skyObjects.spawn(1050, 80 + random.nextInt(200), speed, id);
+                        roundMemory.record(id);
                     }
-                } else skyObjects.add(new SkyObject(1050, 50 + random.nextInt(150), 1.5f, "WHITE_CLOUD"));
-            }
-            for (int i = skyObjects.size() - 1; i >= 0; i--) {
-                skyObjects.get(i).x -= skyObjects.get(i).speed;
-                if (skyObjects.get(i).x < -100) skyObjects.remove(i);
+                } else skyObjects.spawn(1050, 50 + random.nextInt(150), 1.5f, SpriteRegistry.CLOUD);
             }
+            skyObjects.advance(k, -100);
         }
         if (currentState == State.COUNTDOWN) {
-            long elapsed = System.currentTimeMillis() - countdownStart;
-            countdownValue = 3 - (int)(elapsed / 1000);
-            if (countdownValue <= 0) initRound();
+            boolean ready = readiness.getAsBoolean();
+            if (ready != lastReady) { lastReady = ready; if (recorder != null) recorder.ready(tickIndex, ready); }
+            if (ready) {
+                countdownElapsed += dt;
+                int value = 3 - (int) countdownElapsed;
+                if (value != countdownValue) { countdownValue = value; listener.onCountdown(Math.max(value, 0)); }
+                if (countdownValue <= 0) initRound();
+            }
         }
+        tickIndex++;
+    }
+    /** 只影響畫面的動畫 (開始畫面跳動、粒子)，不用亂數，連線用戶端也以此在快照之間推進 */
+    void updateAnimations(float k) {
+        prevDemoRunnerYOffset = demoRunnerYOffset;
+        animTick += 0.15f * k;
+        demoRunnerYOffset = (float) Math.abs(Math.sin(animTick)) * 12;
+        particles.update(k, MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT);
     }
+
     public QuizSystem getQuizSystem() { return quizSystem; }
 }
 
+/**
+ * GameEngine 對外發出的事件。引擎本身不碰任何 UI，畫面端 (GamePanel) 或無畫面模擬各自決定如何回應；
+ * 回呼在引擎狀態改變之前同步呼叫，順序與原本的對話框流程相同。
+ */
+interface GameListener {
+    GameListener NONE = new GameListener() {};
+
+    default void onStateChanged(GameEngine.State from, GameEngine.State to) {}
+    default void onRaceFinished(int winner) {}
+    default void onAnswer(int player, int optionIdx, boolean correct) {}
+    /** 第一位作答者答錯，換 nextPlayer 作答 */
+    default void onTurnPassed(int nextPlayer) {}
+    /** 本回合問答結束；答錯時 feedback 為正確答案說明 */
+    default void onRoundResult(boolean correct, String feedback) {}
+    /** 倒數數字改變 (3、2、1)，0 表示開跑 */
+    default void onCountdown(int value) {}
+    /** 玩家跑出有效的一步 */
+    default void onStep(int player) {}
+
+    /** 依序通知 a 與 b */
+    static GameListener both(GameListener a, GameListener b) {
+        return new GameListener() {
+            @Override public void onStateChanged(GameEngine.State from, GameEngine.State to) { a.onStateChanged(from, to); b.onStateChanged(from, to); }
+            @Override public void onRaceFinished(int winner) { a.onRaceFinished(winner); b.onRaceFinished(winner); }
+            @Override public void onAnswer(int player, int optionIdx, boolean correct) { a.onAnswer(player, optionIdx, correct); b.onAnswer(player, optionIdx, correct); }
+            @Override public void onTurnPassed(int nextPlayer) { a.onTurnPassed(nextPlayer); b.onTurnPassed(nextPlayer); }
+            @Override public void onRoundResult(boolean correct, String feedback) { a.onRoundResult(correct, feedback); b.onRoundResult(correct, feedback); }
+            @Override public void onCountdown(int value) { a.onCountdown(value); b.onCountdown(value); }
+            @Override public void onStep(int player) { a.onStep(player); b.onStep(player); }
+        };
+    }
+}
+
 // ==========================================
-// 3. 視覺特效
+// 3. 視覺特效 (ParticleSystem)
 // ==========================================
-class Confetti {
-    float x, y, vx, vy, angle = 0, rotSpeed; int size; Color color;
-    public Confetti(float x, float y, float vx, float vy, Color color) {
-        this.x = x; this.y = y; this.vx = vx; this.vy = vy; this.color = color;
-        this.rotSpeed = (new Random().nextFloat() - 0.5f) * 0.2f; this.size = 8 + new Random().nextInt(8);
+/**
+ * 以平行陣列儲存的粒子系統，容量固定、不在執行期配置物件，全部粒子共用一個 SplittableRandom。
+ * 同時支援結算畫面的彩帶 (落到底部後從頂端重新落下) 與有壽命的爆發特效 (終點線、答對)。
+ */
+class ParticleSystem {
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final Color[] PALETTE = {Color.RED, Color.YELLOW, Color.GREEN, Color.BLUE, Color.MAGENTA, Color.WHITE, new Color(255, 215, 0)};
+    public static final int CONFETTI_COLORS = 6, GOLD = 6;
+    public static final int MIN_SIZE = 8, MAX_SIZE = 15;
+
+    final float[] x, y, vx, vy, angle, rotSpeed, gravity, life;
+    final byte[] color, size;
+    final boolean[] wrap;
+    int count;
+    private final SplittableRandom rng;
+    private long dropped;
+
+    public ParticleSystem(int capacity, SplittableRandom rng) {
+        this.rng = rng;
+        x = new float[capacity]; y = new float[capacity]; vx = new float[capacity]; vy = new float[capacity];
+        angle = new float[capacity]; rotSpeed = new float[capacity]; gravity = new float[capacity]; life = new float[capacity];
+        color = new byte[capacity]; size = new byte[capacity]; wrap = new boolean[capacity];
+    }
+
+    /** 結算彩帶：從畫面上方隨機位置落下，離開底部後回到頂端 */
+    public void emitConfetti(int n, int width, int height) {
+        for (int i = 0; i < n; i++) {
+            int p = add(rng.nextInt(width), -rng.nextInt(height), (rng.nextFloat() - 0.5f) * 6, 2 + rng.nextFloat() * 5,
+                        rng.nextInt(CONFETTI_COLORS), Float.POSITIVE_INFINITY);
+            if (p < 0) return;
+            wrap[p] = true;
+        }
+    }
+
+    /** 自 (cx, cy) 向四周噴出 n 個彩色粒子，受重力影響，約 lifeTicks 個基準步後消失 */
+    public void burst(float cx, float cy, int n, float speed, float grav, float lifeTicks) {
+        for (int i = 0; i < n; i++) {
+            double a = rng.nextDouble() * Math.PI * 2;
+            float v = speed * (0.3f + rng.nextFloat() * 0.7f);
+            int p = add(cx, cy, (float) Math.cos(a) * v, (float) Math.sin(a) * v - speed * 0.5f,
+                        rng.nextInt(CONFETTI_COLORS), lifeTicks * (0.6f + rng.nextFloat() * 0.4f));
+            if (p < 0) return;
+            gravity[p] = grav;
+        }
+    }
+
+    /** 答對時的金色閃光：向外擴散、不受重力 */
+    public void sparkle(float cx, float cy, int n) {
+        for (int i = 0; i < n; i++) {
+            double a = rng.nextDouble() * Math.PI * 2;
+            float v = 2 + rng.nextFloat() * 4;
+            int p = add(cx, cy, (float) Math.cos(a) * v, (float) Math.sin(a) * v, GOLD, 30 + rng.nextFloat() * 20);
+            if (p < 0) return;
+        }
+    }
+
+    private int add(float px, float py, float pvx, float pvy, int colorIdx, float lifeTicks) {
+        if (count == x.length) { dropped++; return -1; }
+        int p = count++;
+        x[p] = px; y[p] = py; vx[p] = pvx; vy[p] = pvy;
+        angle[p] = 0; rotSpeed[p] = (rng.nextFloat() - 0.5f) * 0.2f;
+        gravity[p] = 0; life[p] = lifeTicks; wrap[p] = false;
+        color[p] = (byte) colorIdx; size[p] = (byte) (MIN_SIZE + rng.nextInt(MAX_SIZE - MIN_SIZE + 1));
+        return p;
+    }
+
+    /** 推進 k 個基準步 (60Hz) */
+    public void update(float k, int width, int height) {
+        if (count == 0) return;
+        float drag = (float) Math.pow(0.985, k);
+        for (int p = count - 1; p >= 0; p--) {
+            x[p] += vx[p] * k; y[p] += vy[p] * k; angle[p] += rotSpeed[p] * k;
+            vy[p] += gravity[p] * k;
+            vx[p] *= drag;
+            vx[p] += (rng.nextFloat() - 0.5f) * 0.15f * k;
+            if (wrap[p]) {
+                if (y[p] > height) {
+                    y[p] = -20;
+                    x[p] = rng.nextInt(width);
+                    vx[p] = (rng.nextFloat() - 0.5f) * 4;
+                }
+            } else if ((life[p] -= k) <= 0 || y[p] > height + 20) {
+                removeAt(p);
+            }
+        }
+    }
+
+    private void removeAt(int p) {
+        int last = --count;
+        if (p == last) return;
+        x[p] = x[last]; y[p] = y[last]; vx[p] = vx[last]; vy[p] = vy[last];
+        angle[p] = angle[last]; rotSpeed[p] = rotSpeed[last]; gravity[p] = gravity[last]; life[p] = life[last];
+        color[p] = color[last]; size[p] = size[last]; wrap[p] = wrap[last];
+    }
+
+    public void clear() { count = 0; }
+    public int size() { return count; }
+    public int capacity() { return x.length; }
+    /** 因容量已滿而未生成的粒子數 */
+    public long getDroppedCount() { return dropped; }
+}
+
+/**
+ * 粒子的批次繪製：每種顏色與尺寸預先畫好 ANGLE_FRAMES 個旋轉角度的小圖，只保留不透明度非零的像素。
+ * 每幀把粒子直接寫進一張與畫面同大的圖層 (預乘 alpha 的 int 陣列)，最後只貼一次圖層上有粒子的範圍；
+ * 逐粒子呼叫 drawImage 時 Java2D 每次的驗證與迴圈選擇成本，在上萬個粒子時會超過一幀的預算。
+ * 畫質較低時只畫每 stride 個中的一個，模擬本身不受影響。
+ */
+class ParticleRenderer {
+    private static final int ANGLE_FRAMES = 16, CELL = 20;
+    private static final int SIZES = ParticleSystem.MAX_SIZE - ParticleSystem.MIN_SIZE + 1;
+    private static final double FRAME_STEP = Math.PI / ANGLE_FRAMES; // 長方形旋轉 180 度後外觀相同
+
+    private final int width, height;
+    private final BufferedImage layer;
+    private final int[] pixels;
+    // 每個畫格的非零像素：在圖層上相對左上角的位移、格內座標 (貼到邊緣時裁切用) 與預乘 ARGB 值
+    private final int[][] cellOffset, cellArgb;
+    private final byte[][] cellX, cellY;
+    private int dirtyX0, dirtyY0, dirtyX1, dirtyY1; // 上一幀寫過的範圍 [x0, x1) × [y0, y1)
+
+    public ParticleRenderer() { this(MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT); }
+
+    public ParticleRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        layer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        pixels = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        int cells = ParticleSystem.PALETTE.length * SIZES * ANGLE_FRAMES;
+        cellOffset = new int[cells][]; cellArgb = new int[cells][];
+        cellX = new byte[cells][]; cellY = new byte[cells][];
+        buildCells();
     }
-    public void update() {
-        x += vx; y += vy; angle += rotSpeed;
-        vx *= 0.985;
-        vx += (new Random().nextFloat() - 0.5f) * 0.15f;
 
-        if (y > 700) {
-            y = -20;
-            x = new Random().nextInt(MemoryRacingGame.WIDTH);
-            vx = (new Random().nextFloat() - 0.5f) * 4;
+    public void draw(Graphics2D g2, ParticleSystem ps, int stride) {
+        if (ps.count == 0) return;
+        clearDirty();
+        float[] x = ps.x, y = ps.y, angle = ps.angle;
+        byte[] color = ps.color, size = ps.size;
+        int[] px = pixels;
+        int w = width, h = height;
+        int x0 = w, y0 = h, x1 = 0, y1 = 0;
+        for (int p = 0, n = ps.count; p < n; p += stride) {
+            int frame = (int) Math.floor(angle[p] / FRAME_STEP) % ANGLE_FRAMES;
+            if (frame < 0) frame += ANGLE_FRAMES;
+            int cell = (color[p] * SIZES + (size[p] - ParticleSystem.MIN_SIZE)) * ANGLE_FRAMES + frame;
+            int dx = (int) x[p] - CELL / 2, dy = (int) y[p] - CELL / 2;
+            if (dx >= w || dy >= h || dx + CELL <= 0 || dy + CELL <= 0) continue;
+            int[] argb = cellArgb[cell];
+            if (dx >= 0 && dy >= 0 && dx + CELL <= w && dy + CELL <= h) {
+                int[] offset = cellOffset[cell];
+                int base = dy * w + dx;
+                for (int i = 0; i < argb.length; i++) {
+                    int idx = base + offset[i];
+                    px[idx] = over(argb[i], px[idx]);
+                }
+            } else {
+                byte[] cx = cellX[cell], cy = cellY[cell];
+                for (int i = 0; i < argb.length; i++) {
+                    int tx = dx + cx[i], ty = dy + cy[i];
+                    if (tx < 0 || ty < 0 || tx >= w || ty >= h) continue;
+                    int idx = ty * w + tx;
+                    px[idx] = over(argb[i], px[idx]);
+                }
+            }
+            if (dx < x0) x0 = dx;
+            if (dy < y0) y0 = dy;
+            if (dx + CELL > x1) x1 = dx + CELL;
+            if (dy + CELL > y1) y1 = dy + CELL;
+        }
+        dirtyX0 = Math.max(0, x0); dirtyY0 = Math.max(0, y0);
+        dirtyX1 = Math.min(w, x1); dirtyY1 = Math.min(h, y1);
+        if (dirtyX0 < dirtyX1 && dirtyY0 < dirtyY1) {
+            g2.drawImage(layer, dirtyX0, dirtyY0, dirtyX1, dirtyY1, dirtyX0, dirtyY0, dirtyX1, dirtyY1, null);
         }
     }
-    public void draw(Graphics2D g2) {
-        Graphics2D gTemp = (Graphics2D) g2.create();
-        gTemp.setColor(color); gTemp.translate(x, y); gTemp.rotate(angle);
-        gTemp.fillRect(-size/2, -size/4, size, size/2); gTemp.dispose();
+
+    /** 預乘 alpha 的 SrcOver；dst 乘上 (256 - 來源 alpha) / 256 以位移代替除法 */
+    private static int over(int src, int dst) {
+        int ia = 256 - (src >>> 24);
+        if (ia == 1) return src;
+        int rb = ((dst & 0x00ff00ff) * ia >>> 8) & 0x00ff00ff;
+        int ag = ((dst >>> 8) & 0x00ff00ff) * ia & 0xff00ff00;
+        return src + (rb | ag);
+    }
+
+    private void clearDirty() {
+        for (int row = dirtyY0; row < dirtyY1; row++) Arrays.fill(pixels, row * width + dirtyX0, row * width + dirtyX1, 0);
+        dirtyX1 = dirtyX0;
+        dirtyY1 = dirtyY0;
+    }
+
+    private void buildCells() {
+        BufferedImage img = new BufferedImage(CELL, CELL, BufferedImage.TYPE_INT_ARGB_PRE);
+        int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        for (int c = 0; c < ParticleSystem.PALETTE.length; c++) {
+            for (int s = 0; s < SIZES; s++) {
+                int size = ParticleSystem.MIN_SIZE + s;
+                for (int f = 0; f < ANGLE_FRAMES; f++) {
+                    Arrays.fill(data, 0);
+                    Graphics2D cell = img.createGraphics();
+                    cell.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                    cell.setColor(ParticleSystem.PALETTE[c]);
+                    cell.translate(CELL / 2, CELL / 2);
+                    cell.rotate(f * Math.PI / ANGLE_FRAMES);
+                    cell.fillRect(-size/2, -size/4, size, size/2);
+                    cell.dispose();
+                    int n = 0;
+                    for (int v : data) if (v != 0) n++;
+                    int idx = (c * SIZES + s) * ANGLE_FRAMES + f;
+                    int[] offset = new int[n], argb = new int[n];
+                    byte[] cx = new byte[n], cy = new byte[n];
+                    for (int i = 0, k = 0; i < data.length; i++) {
+                        if (data[i] == 0) continue;
+                        cx[k] = (byte) (i % CELL); cy[k] = (byte) (i / CELL);
+                        offset[k] = cy[k] * width + cx[k];
+                        argb[k++] = data[i];
+                    }
+                    cellOffset[idx] = offset; cellArgb[idx] = argb; cellX[idx] = cx; cellY[idx] = cy;
+                }
+            }
+        }
     }
 }
 
@@ -318,157 +1010,451 @@ class Confetti {
 // 4. 問答系統 (QuizSystem)
 // ==========================================
 class QuizSystem {
-    enum Type { IDENTIFY, COUNT }
-
-    private final String[] EASY_POOL = {"🍎", "🍌", "🍒", "🍍", "🍓", "🍑", "🍉"};
-    private final String[] NORMAL_POOL = {"🐶", "🐱", "🐭", "🦄", "🐰", "🐷", "🐻", "🐼"};
+    /** 順序即連線協定中的題型代碼，只能往後新增 */
+    enum Type { IDENTIFY, COUNT, FIRST, MOST }
+    private static final Type[] NORMAL_TYPES = {Type.IDENTIFY, Type.COUNT, Type.FIRST};
+    private static final Type[] HARD_TYPES = {Type.IDENTIFY, Type.COUNT, Type.FIRST, Type.MOST};
+    private static final String[] ANSWER_FEEDBACK = {"正確答案是選項 0", "正確答案是選項 1", "正確答案是選項 2", "正確答案是選項 3"};
 
-    private final String[] EASY_DIST_POOL = {"🍊", "🍐", "🍇", "🍆", "🥕", "🌽"};
-    private final String[] NORMAL_DIST_POOL = {"🦊", "🐯", "🐵", "🦁", "🐸", "🐔"};
+    private final ContentPack content;
+    private int[] roundDistractors; // 困難辨識題可用的干擾照片索引，由 GameEngine 每回合發牌
 
     private Type currentType;
     private String questionText, feedback;
     private List<String> options = new ArrayList<>();
     private String correctValue;
+    private String[] countQuestions = new String[0], numbers = new String[32];
+    private final int[] numberScratch = new int[3];
+    private SpriteRegistry distSprites; // easyDistIds / normalDistIds 所屬的代號表
+    private int[] easyDistIds, normalDistIds;
 
-    public void generateQuestion(GameEngine.Difficulty diff, List<String> seen, Map<String, Integer> counts) {
-        Random rand = new Random();
-        options.clear();
+    public QuizSystem() { this(ContentPack.DEFAULT); }
 
-        if (diff == GameEngine.Difficulty.HARD) {
-            currentType = rand.nextBoolean() ? Type.IDENTIFY : Type.COUNT;
-            if (currentType == Type.IDENTIFY) {
-                String target = seen.isEmpty() ? "TASK_0" : seen.get(rand.nextInt(seen.size()));
-                questionText = "Q:剛才天空中出現過哪一張照片？";
-                correctValue = target;
-                options.add(target);
-                Set<Integer> dIndices = new HashSet<>();
-                while(dIndices.size() < 2) dIndices.add(rand.nextInt(4));
-                for(int idx : dIndices) options.add("DIST_" + idx);
-                Collections.shuffle(options);
-                feedback = "正確答案是選項 " + (options.indexOf(correctValue) + 1);
-            } else {
-                List<String> keys = new ArrayList<>(counts.keySet());
-                String countTarget = keys.isEmpty() ? "TASK_0" : keys.get(rand.nextInt(keys.size()));
-                int correctCount = counts.getOrDefault(countTarget, 1);
-                questionText = "Q:請問這張照片剛才出現過幾次？";
-                correctValue = String.valueOf(correctCount);
-                Set<String> uniqueNums = new LinkedHashSet<>();
-                uniqueNums.add(correctValue);
-                while(uniqueNums.size() < 3) {
-                    uniqueNums.add(String.valueOf(Math.max(1, correctCount + (rand.nextInt(5) - 2))));
-                }
-                List<String> numList = new ArrayList<>(uniqueNums);
-                Collections.shuffle(numList);
-                options.add(countTarget);
-                options.addAll(numList);
-                feedback = "正確答案是選項 " + (options.indexOf(correctValue));
-            }
-        } else {
-            currentType = (diff == GameEngine.Difficulty.EASY) ? Type.IDENTIFY : (rand.nextBoolean() ? Type.IDENTIFY : Type.COUNT);
-            if (seen.isEmpty()) seen.add(getPool(diff)[0]);
+    public QuizSystem(ContentPack content) {
+        this.content = content;
+        roundDistractors = new int[Math.min(GameEngine.HARD_ROUND_DISTRACTORS, content.distractorCount())];
+        for (int i = 0; i < roundDistractors.length; i++) roundDistractors[i] = i;
+    }
 
-            String[] currentDistPool = (diff == GameEngine.Difficulty.EASY) ? EASY_DIST_POOL : NORMAL_DIST_POOL;
+    /** 先把干擾池登記進代號表，出題時只比對 int id (GameEngine 建構時呼叫，代號依序分配) */
+    public void internDistractors(SpriteRegistry sprites) {
+        distSprites = sprites;
+        easyDistIds = sprites.internAll(content.getDistractorPool(GameEngine.Difficulty.EASY));
+        normalDistIds = sprites.internAll(content.getDistractorPool(GameEngine.Difficulty.NORMAL));
+    }
+
+    /** 困難辨識題從這幾張干擾照片中挑選 (至少兩張；陣列直接沿用，不複製) */
+    public void setRoundDistractors(int[] photoIdx) { roundDistractors = photoIdx; }
 
-            if (currentType == Type.IDENTIFY) {
-                Set<String> unique = new HashSet<>(seen);
-                String target = new ArrayList<>(unique).get(rand.nextInt(unique.size()));
-                questionText = "Q:剛才出現過哪一張圖片？";
-                correctValue = target;
-                options.add(target);
+    /**
+     * 依本回合的紀錄出題。只用 RoundMemory 的陣列與預先建立的字串，不配置記憶體，耗時與回合長度無關。
+     * 普通與困難難度另有「最先出現」與「出現最多次」題型，紀錄中不同的物件不足三種 (或最多次並列) 時改出辨識題。
+     */
+    public void generateQuestion(GameEngine.Difficulty diff, RoundMemory memory, SpriteRegistry sprites, Random rand) {
+        options.clear();
+        boolean hard = (diff == GameEngine.Difficulty.HARD);
+        if (memory.isEmpty()) memory.record(hard ? sprites.taskId(0) : sprites.intern(getPool(diff)[0]));
 
-                List<String> dists = new ArrayList<>(Arrays.asList(currentDistPool));
-                dists.removeAll(unique);
-                Collections.shuffle(dists);
-                for (int i = 0; i < 2 && i < dists.size(); i++) options.add(dists.get(i));
+        if (diff == GameEngine.Difficulty.EASY) currentType = Type.IDENTIFY;
+        else currentType = (hard ? HARD_TYPES : NORMAL_TYPES)[rand.nextInt(hard ? HARD_TYPES.length : NORMAL_TYPES.length)];
+        if ((currentType == Type.FIRST || currentType == Type.MOST) && memory.distinctCount() < 3) currentType = Type.IDENTIFY;
+        if (currentType == Type.MOST && memory.mostFrequent() < 0) currentType = Type.IDENTIFY;
 
-                Collections.shuffle(options);
-                feedback = "正確答案是選項 " + (options.indexOf(correctValue) + 1);
-            } else {
-                List<String> keys = new ArrayList<>(counts.keySet());
-                String target = keys.get(rand.nextInt(keys.size()));
-                int correctCount = counts.get(target);
-                questionText = "請問圖片 " + target + " 出現過幾次？";
-                correctValue = String.valueOf(correctCount);
+        switch (currentType) {
+            case IDENTIFY: {
+                // 困難：依出現次數加權挑照片；其他：每種圖片機率相同
+                int target = hard ? memory.logAt(rand.nextInt(memory.size())) : memory.distinct(rand.nextInt(memory.distinctCount()));
+                questionText = hard ? "Q:剛才天空中出現過哪一張照片？" : "Q:剛才出現過哪一張圖片？";
+                correctValue = sprites.name(target);
+                options.add(correctValue);
+                if (hard) {
+                    int n = roundDistractors.length;
+                    int a = rand.nextInt(n), b = rand.nextInt(n - 1);
+                    if (b >= a) b++;
+                    options.add(sprites.name(sprites.distId(roundDistractors[a])));
+                    options.add(sprites.name(sprites.distId(roundDistractors[b])));
+                } else {
+                    if (sprites != distSprites) internDistractors(sprites);
+                    addDistractors(content.getDistractorPool(diff), (diff == GameEngine.Difficulty.EASY) ? easyDistIds : normalDistIds, target, memory, rand);
+                }
+                Collections.shuffle(options, rand);
+                feedback = ANSWER_FEEDBACK[options.indexOf(correctValue) + 1];
+                break;
+            }
+            case COUNT: {
+                int target = memory.distinct(rand.nextInt(memory.distinctCount()));
+                int correct = memory.count(target);
+                questionText = hard ? "Q:請問這張照片剛才出現過幾次？" : countQuestion(target, sprites);
+                correctValue = number(correct);
+                // 正確次數加上兩個不重複的鄰近數字 (至少為 1)
+                int n1 = correct, n2, n3;
+                do n2 = Math.max(1, correct + rand.nextInt(5) - 2); while (n2 == n1);
+                do n3 = Math.max(1, correct + rand.nextInt(5) - 2); while (n3 == n1 || n3 == n2);
+                if (hard) options.add(sprites.name(target)); // 困難題的第一個選項是題目照片本身，不作答
+                int[] nums = numberScratch;
+                nums[0] = n1; nums[1] = n2; nums[2] = n3;
+                for (int i = 2; i > 0; i--) { int j = rand.nextInt(i + 1), t = nums[i]; nums[i] = nums[j]; nums[j] = t; }
+                for (int v : nums) options.add(number(v));
+                feedback = ANSWER_FEEDBACK[options.indexOf(correctValue) + (hard ? 0 : 1)];
+                break;
+            }
+            default: {
+                // FIRST / MOST：答案與另外兩種出現過的物件
+                int answerOrder = (currentType == Type.FIRST) ? 0 : memory.firstOrder(memory.mostFrequent());
+                int dc = memory.distinctCount();
+                int a = rand.nextInt(dc - 1), b = rand.nextInt(dc - 2);
+                if (b >= a) b++;
+                if (a >= answerOrder) a++; // 兩個不同的順位再略過答案本身，仍然不同
+                if (b >= answerOrder) b++;
+                questionText = (currentType == Type.FIRST) ? "Q:剛才最先出現的是哪一個？" : "Q:剛才出現最多次的是哪一個？";
+                correctValue = sprites.name(memory.distinct(answerOrder));
+                options.add(correctValue);
+                options.add(sprites.name(memory.distinct(a)));
+                options.add(sprites.name(memory.distinct(b)));
+                Collections.shuffle(options, rand);
+                feedback = ANSWER_FEEDBACK[options.indexOf(correctValue) + 1];
+                break;
+            }
+        }
+    }
+
+    /** 次數選項的字串，每個數字只建立一次 */
+    private String number(int n) {
+        if (n >= numbers.length) numbers = Arrays.copyOf(numbers, Math.max(n + 1, numbers.length * 2));
+        String s = numbers[n];
+        if (s == null) s = numbers[n] = String.valueOf(n);
+        return s;
+    }
 
-                Set<String> uniqueNums = new HashSet<>();
-                uniqueNums.add(correctValue);
-                while(uniqueNums.size() < 3) uniqueNums.add(String.valueOf(Math.max(1, correctCount + (rand.nextInt(5) - 2))));
-                List<String> numList = new ArrayList<>(uniqueNums);
-                Collections.shuffle(numList);
-                options.addAll(numList);
-                feedback = "正確答案是選項 " + (options.indexOf(correctValue) + 1);
+    /**
+     * 從干擾池隨機挑兩個本回合沒出現過的 (池與題庫可能重疊)；以蓄水池抽樣一次走完，不配置陣列。
+     * 沒出現過的不足兩個時，依序補上答案以外的干擾項，選項一定湊滿三個。
+     */
+    private void addDistractors(String[] dists, int[] ids, int target, RoundMemory memory, Random rand) {
+        int a = -1, b = -1, eligible = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (memory.count(ids[i]) > 0) continue;
+            eligible++;
+            if (eligible == 1) a = i;
+            else if (eligible == 2) b = i;
+            else {
+                int k = rand.nextInt(eligible);
+                if (k == 0) a = i; else if (k == 1) b = i;
             }
         }
+        for (int i = 0; i < ids.length && b < 0; i++) {
+            if (ids[i] == target || i == a) continue;
+            if (a < 0) a = i; else b = i;
+        }
+        options.add(dists[a]);
+        options.add(dists[b]);
+    }
+
+    /** 普通難度的次數題目文字依圖片快取，每張圖片只組一次字串 */
+    private String countQuestion(int id, SpriteRegistry sprites) {
+        if (id >= countQuestions.length) countQuestions = Arrays.copyOf(countQuestions, sprites.size());
+        String q = countQuestions[id];
+        if (q == null) q = countQuestions[id] = "請問圖片 " + sprites.name(id) + " 出現過幾次？";
+        return q;
     }
+
     public boolean processInput(int idx) { return options.get(idx).equals(correctValue); }
-    public String[] getPool(GameEngine.Difficulty diff) { return diff == GameEngine.Difficulty.EASY ? EASY_POOL : NORMAL_POOL; }
+    public String[] getPool(GameEngine.Difficulty diff) { return content.getPool(diff); }
+    /** 所有題庫與干擾選項中會出現的表情符號，供 EmojiAtlas 預先點陣化 */
+    public List<String> getAllEmoji() { return content.getAllEmoji(); }
     public String getQuestionText() { return questionText; }
     public List<String> getOptions() { return options; }
+
+    /** 連線用戶端：直接套用伺服器出的題目 (不含正確答案) */
+    public void setQuestion(Type type, String text, List<String> opts) {
+        currentType = type; questionText = text;
+        options.clear(); options.addAll(opts);
+        correctValue = null; feedback = null;
+    }
     public String getFeedback() { return feedback; }
     public Type getCurrentType() { return currentType; }
+    /** 正確答案在 getOptions() 中的索引；連線用戶端不知道答案，回傳 -1 */
+    public int getCorrectIndex() { return options.indexOf(correctValue); }
+    /** 可作答的是最後三個選項 (困難次數題的第一個選項是題目照片) */
+    public int getFirstChoice() { return options.size() - 3; }
+}
+
+/**
+ * 一回合內出現過的天空物件，全部以 SpriteRegistry 的 int id 記錄：依 id 的次數表與首次出現順位、
+ * 依首次出現排列的 id 清單，以及只增不減的生成紀錄。查詢都是 O(1)；clear 只重設本回合用到的 id，
+ * 紀錄長度超過容量時才加倍，一般回合不配置記憶體。
+ */
+final class RoundMemory {
+    private int[] counts, firstOrder; // 依 id；firstOrder 為 -1 表示本回合還沒出現
+    private int[] distinct;           // 依首次出現順序排列的 id
+    private int distinctCount;
+    private int[] log;                // 依生成順序的 id
+    private int size;
+    private int maxId = -1, maxCount;
+    private boolean maxTied;
+
+    public RoundMemory(int idCapacity, int logCapacity) {
+        counts = new int[idCapacity]; firstOrder = new int[idCapacity]; distinct = new int[idCapacity];
+        Arrays.fill(firstOrder, -1);
+        log = new int[logCapacity];
+    }
+
+    public void record(int id) {
+        if (id >= counts.length) growIds(id + 1);
+        if (size == log.length) log = Arrays.copyOf(log, size * 2);
+        log[size++] = id;
+        if (firstOrder[id] < 0) { firstOrder[id] = distinctCount; distinct[distinctCount++] = id; }
+        int c = ++counts[id];
+        if (c > maxCount) { maxCount = c; maxId = id; maxTied = false; }
+        else if (c == maxCount && id != maxId) maxTied = true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < distinctCount; i++) { int id = distinct[i]; counts[id] = 0; firstOrder[id] = -1; }
+        distinctCount = 0; size = 0; maxId = -1; maxCount = 0; maxTied = false;
+    }
+
+    private void growIds(int min) {
+        int n = Math.max(min, counts.length * 2);
+        int old = counts.length;
+        counts = Arrays.copyOf(counts, n); distinct = Arrays.copyOf(distinct, n);
+        firstOrder = Arrays.copyOf(firstOrder, n);
+        Arrays.fill(firstOrder, old, n, -1);
+    }
+
+    public boolean isEmpty() { return size == 0; }
+    /** 本回合的生成總數 */
+    public int size() { return size; }
+    public int logAt(int i) { return log[i]; }
+    public int distinctCount() { return distinctCount; }
+    /** 第 order 個首次出現的 id (0 為最先出現) */
+    public int distinct(int order) { return distinct[order]; }
+    public int count(int id) { return (id < counts.length) ? counts[id] : 0; }
+    public int firstOrder(int id) { return (id < firstOrder.length) ? firstOrder[id] : -1; }
+    /** 出現最多次的 id；並列或沒有紀錄時回傳 -1 */
+    public int mostFrequent() { return maxTied ? -1 : maxId; }
 }
 
 // ==========================================
 // 5. 繪圖面板 (GamePanel)
 // ==========================================
-class GamePanel extends JPanel implements ActionListener {
+class GamePanel extends JPanel {
     private GameEngine engine;
+    private GameLoop gameLoop;
+    private final GameAssets assets; // 與 engine 使用同一份題庫
+    private final AssetBundle bundle = AssetBundle.locate(); // 找不到時為 null，改讀原始檔
+    private final SoundManager soundManager = new SoundManager(bundle); // 音訊在背景執行緒開啟，不阻塞建構
     private Rectangle startBtn = new Rectangle(0, 400, 200, 55), infoBtn = new Rectangle(0, 475, 200, 55), backBtn = new Rectangle(30, 30, 65, 45); 
     private Rectangle p1NameBtn = new Rectangle(0, 0, 65, 35), p2NameBtn = new Rectangle(0, 0, 65, 35);
     private Rectangle musicBtn = new Rectangle(930, 15, 45, 45); // 音效按鍵 Hitbox
     private final String FONT_NAME = "微軟正黑體", EMOJI_FONT = "SansSerif";
     private final Color BLUE_BTN_COLOR = new Color(52, 152, 219);
+    private static final Color CLOUD_COLOR = new Color(255, 255, 255, 240);
+    private float alpha; // 本幀在兩個模擬步之間的插值比例
+    private final SpriteCache spriteCache = new SpriteCache();
+    private final TextCache textCache = new TextCache();
+    private final EmojiAtlas emojiAtlas;
+    private final ParticleRenderer particleRenderer = new ParticleRenderer();
+    private static final String MUTED_ICON = "🔇", SOUND_ICON = "🔊";
+    private static final String[] OPTION_LABELS = {"[1]", "[2]", "[3]"};
+    // 內容會隨分數、名稱等改變的文字，只在來源值變動時重新排版
+    private final TextSlot p1LabelText = new TextSlot(), p2LabelText = new TextSlot(), countdownText = new TextSlot();
+    private final TextSlot hudRoundText = new TextSlot(), hudScoreText = new TextSlot();
+    private final TextSlot quizPlayerText = new TextSlot(), questionText = new TextSlot();
+    private final TextSlot roundTitleText = new TextSlot(), roundP1Name = new TextSlot(), roundP1Score = new TextSlot();
+    private final TextSlot roundP2Name = new TextSlot(), roundP2Score = new TextSlot(), nextDiffText = new TextSlot();
+    private final TextSlot winText = new TextSlot(), finalScoreText = new TextSlot();
+    // 靜態畫面圖層：只在失效時重畫，每幀僅貼圖
+    private final SceneLayer groundLayer = new SceneLayer("ground", this::paintGround);
+    private final SceneLayer trackLayer = new SceneLayer("track", this::paintTrack);
+    private final SceneLayer startCardLayer = new SceneLayer("startCard", this::paintStartCard);
+    private final SceneLayer instructionsLayer = new SceneLayer("instructions", this::paintInstructions);
+    private final SceneLayer roundEndLayer = new SceneLayer("roundEnd", this::paintRoundEnd);
+    private final SceneLayer gameOverLayer = new SceneLayer("gameOver", this::paintGameOverText);
+    private final SceneLayer[] layers = {groundLayer, trackLayer, startCardLayer, instructionsLayer, roundEndLayer, gameOverLayer};
+    private GameEngine.State lastPaintedState;
+    // 每幀效能統計，F3 切換疊加層
+    private final FrameStats frameStats = new FrameStats();
+    private final TextSlot[] statsLines = new TextSlot[15];
+    // 依繪製時間自動調整畫質，tier 在每幀開始時取得，整幀使用同一等級
+    private final QualityGovernor quality = QualityGovernor.fromSystemProperties();
+    private QualityGovernor.Tier tier = quality.getTier();
+    private CanvasRenderer canvasRenderer; // 不為 null 時改由 Canvas / BufferStrategy 主動繪製，此面板不放進視窗
+    private final FrameCapture capture = FrameCapture.fromSystemProperties(); // 未開啟錄影時為 null
+    private final Consumer<Graphics2D> framePainter = this::paintFrame;
+    // 畫面內對話框 (取代 JOptionPane)，只在 EDT 上使用
+    private final DialogLayer dialogs = new DialogLayer();
+    private final TextSlot[] dialogLines = new TextSlot[4];
+    private final TextSlot dialogEntryText = new TextSlot();
+    private boolean showStats;
+    private float p1MashRate, p2MashRate, p1MashPeak, p2MashPeak; // 疊加層顯示用，在 engine 鎖內取得
 
-    public GamePanel() {
-        setBackground(new Color(135, 206, 235)); this.engine = new GameEngine(this);
-        addMouseListener(new MouseAdapter() {
-            @Override
-            public void mousePressed(MouseEvent e) {
-                Point p = e.getPoint();
-                // 音效按鈕點擊偵測（全域可用）
-                if (musicBtn.contains(p)) {
-                    engine.soundManager.toggleMute();
-                    return;
-                }
+    private final ReplayPlayer replay; // 不為 null 時為重播模式，忽略玩家輸入
+    private final NetClient net;       // 不為 null 時為連線模式，狀態來自伺服器
+    // 本機比賽的紀錄與排行榜 (memoryracing.history=off 或非本機模式時為 null)，結算畫面在紀錄更新後才重取
+    private final MatchHistory history;
+    private static final int BOARD_ROWS = 5;
+    private final TextSlot[] boardLines = new TextSlot[BOARD_ROWS + 1], standingLines = new TextSlot[4];
+    private int historyVersion = -1;
+    private List<MatchHistory.Standing> board = Collections.emptyList();
+    private MatchHistory.Standing p1Standing, p2Standing;
+
+    public GamePanel() { this(new GameEngine(), null, null); }
 
-                if (engine.currentState == GameEngine.State.START) {
-                    if (startBtn.contains(p)) engine.startCountdown();
-                    else if (infoBtn.contains(p)) engine.currentState = GameEngine.State.INSTRUCTIONS;
-                    else if (p1NameBtn.contains(p)) renamePlayer(1);
-                    else if (p2NameBtn.contains(p)) renamePlayer(2);
-                } else if (engine.currentState == GameEngine.State.INSTRUCTIONS && backBtn.contains(p)) engine.currentState = GameEngine.State.START;
-                else if (engine.currentState == GameEngine.State.ROUND_END) engine.startCountdown();
-                else if (engine.currentState == GameEngine.State.GAME_OVER) System.exit(0);
+    /** 重播模式：畫面跟著錄影檔的輸入推進 */
+    public GamePanel(ReplayPlayer replay) { this(replay.getEngine(), replay, null); }
+
+    /** 連線模式：按鍵送往伺服器，畫面顯示伺服器的比賽 */
+    public GamePanel(NetClient net) { this(net.getEngine(), null, net); }
+
+    private GamePanel(GameEngine engine, ReplayPlayer replay, NetClient net) {
+        for (int i = 0; i < statsLines.length; i++) statsLines[i] = new TextSlot();
+        for (int i = 0; i < dialogLines.length; i++) dialogLines[i] = new TextSlot();
+        for (int i = 0; i < boardLines.length; i++) boardLines[i] = new TextSlot();
+        for (int i = 0; i < standingLines.length; i++) standingLines[i] = new TextSlot();
+        setBackground(new Color(135, 206, 235)); this.engine = engine; this.replay = replay; this.net = net;
+        assets = new GameAssets(engine.getContent());
+        history = (replay == null && net == null) ? MatchHistory.openDefault() : null;
+        // 按鍵在模擬執行緒上套用，回呼也在那裡發生；訊息交回 EDT 放進畫面內的對話框
+        GameListener panelListener = new GameListener() {
+            @Override
+            public void onTurnPassed(int nextPlayer) {
+                soundManager.play(SoundManager.Sfx.WRONG);
+                showMessageLater("答錯了！換另一位玩家作答");
+            }
+            @Override
+            public void onRoundResult(boolean correct, String feedback) {
+                soundManager.play(correct ? SoundManager.Sfx.CORRECT : SoundManager.Sfx.WRONG);
+                showMessageLater(correct ? "回答正確！加 25 分" : "可惜答錯了...\n" + feedback);
+            }
+            @Override
+            public void onCountdown(int value) { soundManager.play((value > 0) ? SoundManager.Sfx.BEEP : SoundManager.Sfx.GO); }
+            @Override
+            public void onStep(int player) { soundManager.play(SoundManager.Sfx.STEP); }
+            @Override
+            public void onStateChanged(GameEngine.State from, GameEngine.State to) {
+                // 困難回合的照片在倒數開始時已發好，趁倒數先解碼，開跑後不會有照片缺圖
+                if (to == GameEngine.State.COUNTDOWN && engine.difficulty == GameEngine.Difficulty.HARD) assets.prefetch(engine.getRoundPhotos());
             }
+        };
+        engine.setListener((history == null) ? panelListener : GameListener.both(panelListener, new MatchHistory.Recorder(engine, history)));
+        assets.load(bundle);
+        if (replay == null && net == null) {
+            engine.setReadinessBarrier(assets::isReady);
+            startRecording();
+        }
+        List<String> glyphs = engine.getQuizSystem().getAllEmoji();
+        glyphs.add(MUTED_ICON); glyphs.add(SOUND_ICON);
+        emojiAtlas = new EmojiAtlas(EMOJI_FONT, glyphs);
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) { pressAt(e.getPoint()); }
         });
-        new javax.swing.Timer(16, this).start();
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) { invalidateLayers(); }
+        });
+        gameLoop = new GameLoop(engine, this::repaint);
+        gameLoop.setFrameStats(frameStats);
+        if (replay != null) {
+            gameLoop.setTickRate(Math.round(1f / replay.getTickLength()));
+            gameLoop.setStep(dt -> replay.step());
+        } else if (net != null) gameLoop.setStep(net::step);
+        // -Dmemoryracing.metrics=路徑 (不含副檔名) 時定期匯出統計，週期由 memoryracing.metrics.period (秒) 設定
+        String metricsPath = System.getProperty("memoryracing.metrics");
+        if (metricsPath != null) {
+            frameStats.startExport(Path.of(metricsPath), Long.getLong("memoryracing.metrics.period", 10) * 1_000_000_000L);
+            Runtime.getRuntime().addShutdownHook(new Thread(frameStats::flush, "MetricsFlush"));
+        }
+        if (capture != null) Runtime.getRuntime().addShutdownHook(new Thread(capture::close, "CaptureClose"));
+        gameLoop.start();
     }
 
-    public GameEngine getEngine() { return engine; }
+    /**
+     * 每場比賽錄進 memoryracing.replays 指定的目錄 (預設為 memoryracing.home 下的 replays/)，設為 off 則不錄。
+     * 檔案在第一次寫檔 (第一回合結束) 時才建立，無法建立時只提示，不影響遊戲。
+     */
+    private void startRecording() {
+        String dir = System.getProperty("memoryracing.replays", Path.of(System.getProperty("memoryracing.home", "."), "replays").toString());
+        if (dir.equals("off")) return;
+        String name = String.format("match-%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS-%2$016x.mrr", new Date(), engine.getSeed());
+        engine.setRecorder(new ReplayRecorder(Path.of(dir, name), ReplayRecorder.DEFAULT_CAPACITY));
+    }
 
-    private void renamePlayer(int pNum) {
-        String oldName = (pNum == 1) ? engine.p1Name : engine.p2Name;
-        Image iconToUse = (pNum == 1) ? engine.p1Icon : engine.p2Icon;
-        Icon swingIcon = null;
+    private void showMessageLater(String message) {
+        SwingUtilities.invokeLater(() -> dialogs.showMessage(message, System.nanoTime()));
+    }
 
-        if (iconToUse != null) {
-            int iw = iconToUse.getWidth(null);
-            int ih = iconToUse.getHeight(null);
-            if (iw > 0 && ih > 0) {
-                double scale = 80.0 / Math.max(iw, ih);
-                int nw = (int) (iw * scale);
-                int nh = (int) (ih * scale);
-                swingIcon = new ImageIcon(iconToUse.getScaledInstance(nw, nh, Image.SCALE_SMOOTH));
-            }
+    /** 以邏輯座標 (1000x700) 處理一次滑鼠按下，CanvasRenderer 換算座標後也由此進入 */
+    void pressAt(Point p) {
+        synchronized (engine) { handleClick(p); }
+    }
+
+    /** 改用 renderer 繪製：面板固定為邏輯尺寸，GameLoop 每幀改向 renderer 要求一幀 */
+    void setCanvasRenderer(CanvasRenderer renderer) {
+        canvasRenderer = renderer;
+        setSize(MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT);
+        gameLoop.setRenderer(renderer::requestFrame);
+    }
+
+    private void handleClick(Point p) {
+        // 音效按鈕點擊偵測（全域可用）
+        if (musicBtn.contains(p)) {
+            soundManager.toggleMute();
+            return;
         }
+        long now = System.nanoTime();
+        if (dialogs.click(p, now)) return; // 點擊先給對話框
 
-        String n = (String) JOptionPane.showInputDialog(this, "輸入新名稱：", "修改名稱", JOptionPane.QUESTION_MESSAGE, swingIcon, null, oldName);
-        if (n != null && !n.trim().isEmpty()) { if (pNum == 1) engine.p1Name = n.trim(); else engine.p2Name = n.trim(); }
+        if (replay != null) return;
+        // 會改變遊戲狀態的點擊轉成指令放進輸入佇列，與按鍵一樣在 tick 開頭套用並被錄進重播
+        if (engine.currentState == GameEngine.State.START) {
+            if (startBtn.contains(p)) engine.input.offer(InputQueue.PRESS, GameEngine.CMD_START, now);
+            else if (infoBtn.contains(p)) engine.input.offer(InputQueue.PRESS, GameEngine.CMD_INSTRUCTIONS, now);
+            else if (net == null && p1NameBtn.contains(p)) renamePlayer(1); // 連線時名稱在加入伺服器時決定
+            else if (net == null && p2NameBtn.contains(p)) renamePlayer(2);
+        } else if (engine.currentState == GameEngine.State.INSTRUCTIONS && backBtn.contains(p)) engine.input.offer(InputQueue.PRESS, GameEngine.CMD_BACK, now);
+        else if (engine.currentState == GameEngine.State.ROUND_END) engine.input.offer(InputQueue.PRESS, GameEngine.CMD_START, now);
+        else if (engine.currentState == GameEngine.State.GAME_OVER) System.exit(0);
     }
 
-    @Override
-    public void actionPerformed(ActionEvent e) { engine.updateWorld(); repaint(); }
+    /** 鍵盤輸入在 EDT 上打上時間戳放進無鎖佇列，由模擬執行緒在下一個 tick 開頭套用 */
+    public void handleKey(int keyCode) {
+        if (keyCode == KeyEvent.VK_F3) { showStats = !showStats; return; }
+        long now = System.nanoTime();
+        if (dialogs.keyPressed(keyCode, now)) return; // 被對話框處理的按鍵不送進遊戲
+        if (replay == null) engine.input.offer(InputQueue.PRESS, keyCode, now);
+    }
+
+    public void handleKeyTyped(char c) { dialogs.keyTyped(c); }
+
+    public void handleKeyRelease(int keyCode) {
+        if (replay == null) engine.input.offer(InputQueue.RELEASE, keyCode, System.nanoTime());
+    }
+
+    public GameEngine getEngine() { return engine; }
+    public GameAssets getAssets() { return assets; }
+    public GameLoop getGameLoop() { return gameLoop; }
+    public SpriteCache getSpriteCache() { return spriteCache; }
+    public TextCache getTextCache() { return textCache; }
+    public EmojiAtlas getEmojiAtlas() { return emojiAtlas; }
+    public FrameStats getFrameStats() { return frameStats; }
+    public QualityGovernor getQualityGovernor() { return quality; }
+
+    /** 讓所有靜態圖層在下一幀重畫 (尺寸改變、字型或素材更新時) */
+    public void invalidateLayers() { for (SceneLayer l : layers) l.invalidate(); }
+
+    private static float lerp(float a, float b, float t) { return a + (b - a) * t; }
+
+    /** 在畫面內開啟改名輸入框，遊戲照常推進；確定時在 engine 鎖內更新名稱 */
+    private void renamePlayer(int pNum) {
+        String oldName = (pNum == 1) ? engine.p1Name : engine.p2Name;
+        Image iconToUse = (pNum == 1) ? assets.p1Icon() : assets.p2Icon();
+        dialogs.promptText("修改名稱", oldName, iconToUse, n -> {
+            synchronized (engine) { if (pNum == 1) engine.p1Name = n; else engine.p2Name = n; }
+            startCardLayer.invalidate(); gameOverLayer.invalidate(); roundEndLayer.invalidate();
+        });
+    }
 
     private void drawCharacter(Graphics2D g2, Image icon, int x, int y, int size, boolean vCenter) {
         if (icon != null) {
@@ -480,12 +1466,13 @@ class GamePanel extends JPanel implements ActionListener {
                 int nh = (int) (ih * scale);
                 int drawX = x - (nw / 2);
                 int drawY = vCenter ? y - (nh / 2) : y - nh;
-                g2.drawImage(icon, drawX, drawY, nw, nh, null);
+                if (tier.spriteScale == 1f) g2.drawImage(spriteCache.get(g2, icon, nw, nh), drawX, drawY, null); // 已預先縮放，只做等尺寸貼圖
+                else g2.drawImage(spriteCache.get(g2, icon, Math.max(1, (int) (nw * tier.spriteScale)), Math.max(1, (int) (nh * tier.spriteScale))), drawX, drawY, nw, nh, null);
             }
         } else {
             g2.setColor(Color.WHITE); g2.fillRect(x - size/2, y - size, size, size);
-            g2.setColor(Color.DARK_GRAY); g2.setFont(new Font(FONT_NAME, Font.BOLD, size/3));
-            g2.drawString("?", x - size/6, y - size/3);
+            g2.setColor(Color.DARK_GRAY);
+            textCache.get(g2, textCache.font(FONT_NAME, Font.BOLD, size/3), "?").draw(g2, x - size/6, y - size/3);
         }
     }
 
@@ -493,86 +1480,234 @@ class GamePanel extends JPanel implements ActionListener {
         int w = 45, h = 45;
         g2.setColor(new Color(240, 240, 240)); g2.fillRoundRect(x, y, w, h, 10, 10);
         g2.setColor(Color.DARK_GRAY); g2.setStroke(new BasicStroke(2)); g2.drawRoundRect(x, y, w, h, 10, 10);
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 18));
-        FontMetrics fm = g2.getFontMetrics();
-        g2.drawString(keyText, x + (w - fm.stringWidth(keyText)) / 2, y + (h - fm.getHeight()) / 2 + fm.getAscent());
+        TextCache.Text t = textCache.get(g2, textCache.font(FONT_NAME, Font.BOLD, 18), keyText);
+        t.draw(g2, x + (w - (int) t.width) / 2, y + (h - t.height) / 2 + t.ascent);
     }
 
-    private void drawBackground(Graphics2D g2) {
+    private void paintGround(Graphics2D g2) {
         g2.setColor(new Color(34, 139, 34)); g2.fillRect(0, 400, getWidth(), 300);
         g2.setColor(new Color(70, 70, 70)); g2.fillRect(0, 460, getWidth(), 60); g2.fillRect(0, 560, getWidth(), 60);
-        for (SkyObject obj : engine.skyObjects) {
-            if (obj.content.equals("WHITE_CLOUD")) {
-                g2.setColor(new Color(255, 255, 255, 240));
-                g2.fillOval((int)obj.x, (int)obj.y, 45, 28); g2.fillOval((int)obj.x + 18, (int)obj.y - 14, 55, 38); g2.fillOval((int)obj.x + 45, (int)obj.y, 45, 28);
-            } else if (obj.content.startsWith("TASK_")) {
-                int tidx = Integer.parseInt(obj.content.substring(5));
-                if (engine.taskImages[tidx] != null) {
-                    drawCharacter(g2, engine.taskImages[tidx], (int)obj.x + 40, (int)obj.y, 80, true);
-                }
+    }
+
+    private void paintTrack(Graphics2D g2) {
+        paintGround(g2); g2.setColor(Color.WHITE); g2.fillRect(900, 460, 15, 160);
+    }
+
+    private void drawBackground(Graphics2D g2, SceneLayer ground) {
+        ground.draw(g2, getWidth(), getHeight());
+        SkyObjectStore sky = engine.skyObjects;
+        SpriteRegistry sprites = engine.sprites;
+        for (int i = 0; i < sky.count; i++) {
+            int kind = sky.kind[i];
+            float ox = lerp(sky.prevX[i], sky.x[i], alpha), oy = sky.y[i];
+            if (kind == SpriteRegistry.CLOUD) {
+                g2.setColor(CLOUD_COLOR);
+                g2.fillOval((int)ox, (int)oy, 45, 28); g2.fillOval((int)ox + 18, (int)oy - 14, 55, 38); g2.fillOval((int)ox + 45, (int)oy, 45, 28);
+            } else if (sprites.isTask(kind)) {
+                Image img = assets.taskImage(sprites.photoIndex(kind));
+                if (img != null) drawCharacter(g2, img, (int)ox + 40, (int)oy, 80, true);
             } else {
-                g2.setFont(new Font(EMOJI_FONT, Font.PLAIN, 50)); g2.drawString(obj.content, obj.x, obj.y);
+                emojiAtlas.draw(g2, sprites.name(kind), 50, ox, oy);
             }
         }
     }
 
     private void drawMusicButton(Graphics2D g2) {
-        boolean muted = engine.soundManager.isMuted();
+        boolean muted = soundManager.isMuted();
         g2.setColor(new Color(0, 0, 0, 80));
         g2.fillOval(musicBtn.x, musicBtn.y, musicBtn.width, musicBtn.height);
         g2.setColor(Color.WHITE);
-        g2.setFont(new Font(EMOJI_FONT, Font.PLAIN, 24));
-        String icon = muted ? "🔇" : "🔊";
-        FontMetrics fm = g2.getFontMetrics();
-        g2.drawString(icon, musicBtn.x + (musicBtn.width - fm.stringWidth(icon)) / 2, musicBtn.y + 32);
+        String icon = muted ? MUTED_ICON : SOUND_ICON;
+        emojiAtlas.draw(g2, icon, 24, musicBtn.x + (int) (musicBtn.width - emojiAtlas.width(g2, icon, 24)) / 2, musicBtn.y + 32);
     }
 
     @Override
     protected void paintComponent(Graphics g) {
-        super.paintComponent(g); Graphics2D g2 = (Graphics2D) g;
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        switch (engine.currentState) {
-            case START: drawStartScreen(g2); break;
-            case INSTRUCTIONS: drawInstructions(g2); break;
-            case COUNTDOWN: drawCountdown(g2); break;
-            case RACING: drawGame(g2); break;
-            case QUIZ: drawGame(g2); drawQuiz(g2); break;
-            case ROUND_END: drawRoundEnd(g2); break;
-            case GAME_OVER: drawGameOver(g2); break;
+        super.paintComponent(g);
+        paintScene((Graphics2D) g);
+    }
+
+    /** 在已填好底色的 g2 上以邏輯座標畫一幀；錄影時改經由 FrameCapture 的離屏圖 */
+    void paintScene(Graphics2D g2) {
+        if (capture == null) paintFrame(g2);
+        else capture.render(g2, getBackground(), framePainter);
+    }
+
+    /** 以邏輯座標畫一整幀 (不含底色)；經 paintScene 由 Swing 的 paintComponent 與 CanvasRenderer 共用，只在 EDT 上呼叫 */
+    void paintFrame(Graphics2D g2) {
+        frameStats.beginFrame(gameLoop.getFrameCap());
+        TextureCache photos = assets.getPhotoCache();
+        if (photos != null) photos.drainEvicted(spriteCache::remove); // 淘汰的照片連同預縮放圖一起釋放
+        tier = quality.getTier();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, tier.antialias ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+        long inputStamp;
+        synchronized (engine) {
+            alpha = gameLoop.getAlpha();
+            inputStamp = engine.takeInputStamp();
+            if (showStats) {
+                long now = System.nanoTime();
+                p1MashRate = engine.p1Mash.rate(now); p2MashRate = engine.p2Mash.rate(now);
+                p1MashPeak = engine.p1Mash.getPeak(); p2MashPeak = engine.p2Mash.getPeak();
+            }
+            if (engine.currentState != lastPaintedState) {
+                // 進入結算畫面時分數與回合已定，重畫一次對應圖層
+                if (engine.currentState == GameEngine.State.ROUND_END) roundEndLayer.invalidate();
+                if (engine.currentState == GameEngine.State.GAME_OVER) gameOverLayer.invalidate();
+                lastPaintedState = engine.currentState;
+            }
+            switch (engine.currentState) {
+                case START: drawStartScreen(g2); break;
+                case INSTRUCTIONS: drawInstructions(g2); break;
+                case COUNTDOWN: drawCountdown(g2); break;
+                case RACING: drawGame(g2); particleRenderer.draw(g2, engine.particles, tier.particleStride); break;
+                case QUIZ: drawGame(g2); drawQuiz(g2); particleRenderer.draw(g2, engine.particles, tier.particleStride); break;
+                case ROUND_END: drawRoundEnd(g2); particleRenderer.draw(g2, engine.particles, tier.particleStride); break;
+                case GAME_OVER: drawGameOver(g2); break;
+            }
+            drawMusicButton(g2); // 永遠繪製音效按鈕
         }
-        drawMusicButton(g2); // 永遠繪製音效按鈕
+        drawDialog(g2);
+        quality.frame(frameStats.endFrame(), System.nanoTime());
+        if (inputStamp != 0) frameStats.recordInputLatency(System.nanoTime() - inputStamp);
+        if (showStats) drawStatsOverlay(g2);
     }
 
-    private void drawStartScreen(Graphics2D g2) {
-        drawBackground(g2);
-        int jumpY = 485 - (int)engine.demoRunnerYOffset;
-        drawCharacter(g2, engine.p1Icon, 90, jumpY, 100, false);
-        drawCharacter(g2, engine.p2Icon, 180, jumpY, 100, false);
-        int boxX = (getWidth() - 480) / 2; g2.setColor(new Color(255, 255, 255, 160)); g2.fillRoundRect(boxX, 100, 480, 480, 30, 30);
-        drawCentered(g2, "記憶競速大對決", 180, 50, Color.BLACK);
-        int lX = boxX + 110;
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 22)); g2.setColor(Color.DARK_GRAY);
-        drawCharacter(g2, engine.p1Icon, lX, 300, 60, false);
-        String p1Label = "玩家一： " + engine.p1Name;
-        g2.drawString(p1Label, lX + 45, 285);
-        p1NameBtn.x = lX + 45 + g2.getFontMetrics().stringWidth(p1Label) + 15;
-        p1NameBtn.y = 260;
-        g2.setColor(new Color(200, 200, 200));
-        g2.fillRoundRect(p1NameBtn.x, p1NameBtn.y, p1NameBtn.width, p1NameBtn.height, 8, 8);
-        g2.setColor(Color.BLACK);
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 15));
-        g2.drawString("更改", p1NameBtn.x + 15, p1NameBtn.y + 23);
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 22)); g2.setColor(Color.DARK_GRAY);
-        drawCharacter(g2, engine.p2Icon, lX, 380, 60, false);
-        String p2Label = "玩家二： " + engine.p2Name;
-        g2.drawString(p2Label, lX + 45, 365);
-        p2NameBtn.x = lX + 45 + g2.getFontMetrics().stringWidth(p2Label) + 15;
-        p2NameBtn.y = 340;
-        g2.setColor(new Color(200, 200, 200));
+    /** 訊息顯示在上方不遮住跑道與題目，並以底部的進度條表示剩餘時間；輸入框置中並讓背景變暗 */
+    private void drawDialog(Graphics2D g2) {
+        long now = System.nanoTime();
+        dialogs.update(now);
+        if (dialogs.getKind() == DialogLayer.Kind.MESSAGE) {
+            Font font = textCache.font(FONT_NAME, Font.BOLD, 22);
+            String[] lines = dialogs.getLines();
+            int n = Math.min(lines.length, dialogLines.length);
+            float width = 0;
+            for (int i = 0; i < n; i++) {
+                if (dialogLines[i].changed(font, dialogs.getMessage(), null, i, 0)) dialogLines[i].setText(lines[i]);
+                width = Math.max(width, textCache.get(g2, dialogLines[i]).width);
+            }
+            int w = (int) width + 60, h = 34 * n + 40, x = (getWidth() - w) / 2, y = 80;
+            g2.setColor(new Color(255, 255, 255, 235)); g2.fillRoundRect(x, y, w, h, 20, 20);
+            g2.setColor(BLUE_BTN_COLOR); g2.setStroke(new BasicStroke(3)); g2.drawRoundRect(x, y, w, h, 20, 20);
+            g2.setColor(Color.DARK_GRAY);
+            for (int i = 0; i < n; i++) {
+                TextCache.Text t = textCache.get(g2, dialogLines[i]);
+                t.draw(g2, x + (w - t.width) / 2, y + 20 + 34 * i + t.ascent);
+            }
+            g2.setColor(BLUE_BTN_COLOR); g2.fillRect(x + 15, y + h - 10, (int) ((w - 30) * dialogs.remaining(now)), 4);
+        } else if (dialogs.getKind() == DialogLayer.Kind.TEXT_INPUT) {
+            g2.setColor(new Color(0, 0, 0, 120)); g2.fillRect(0, 0, getWidth(), getHeight());
+            int w = 460, h = 240, x = (getWidth() - w) / 2, y = (getHeight() - h) / 2;
+            g2.setColor(Color.WHITE); g2.fillRoundRect(x, y, w, h, 20, 20);
+            g2.setColor(BLUE_BTN_COLOR); g2.setStroke(new BasicStroke(3)); g2.drawRoundRect(x, y, w, h, 20, 20);
+            drawCharacter(g2, dialogs.getIcon(), x + 70, y + 120, 80, true);
+            g2.setColor(Color.DARK_GRAY);
+            textCache.get(g2, textCache.font(FONT_NAME, Font.BOLD, 24), dialogs.getTitle()).draw(g2, x + 130, y + 50);
+            textCache.get(g2, textCache.font(FONT_NAME, Font.PLAIN, 18), "輸入新名稱：").draw(g2, x + 130, y + 90);
+            int fx = x + 130, fy = y + 105, fw = 300, fh = 40;
+            g2.setColor(new Color(245, 245, 245)); g2.fillRect(fx, fy, fw, fh);
+            g2.setColor(Color.GRAY); g2.setStroke(new BasicStroke(1)); g2.drawRect(fx, fy, fw, fh);
+            TextEntry entry = dialogs.getEntry();
+            Font font = textCache.font(FONT_NAME, Font.PLAIN, 20);
+            if (dialogEntryText.changed(font, entry.toString(), null, 0, 0)) dialogEntryText.setText(entry.toString());
+            TextCache.Text t = textCache.get(g2, dialogEntryText);
+            g2.setColor(Color.BLACK);
+            if (entry.length() > 0) t.draw(g2, fx + 8, fy + (fh - t.height) / 2f + t.ascent);
+            if ((now / 500_000_000L) % 2 == 0) { // 游標每半秒閃爍
+                int cx = (entry.length() == 0) ? 0 : t.layout.getCaretShapes(entry.getCaret())[0].getBounds().x;
+                g2.fillRect(fx + 8 + cx, fy + 8, 2, fh - 16);
+            }
+            dialogs.okBtn.setBounds(x + 130, y + 170, 130, 45);
+            dialogs.cancelBtn.setBounds(x + 300, y + 170, 130, 45);
+            Font btnFont = textCache.font(FONT_NAME, Font.BOLD, 18);
+            g2.setColor(BLUE_BTN_COLOR); g2.fillRoundRect(dialogs.okBtn.x, dialogs.okBtn.y, dialogs.okBtn.width, dialogs.okBtn.height, 10, 10);
+            g2.setColor(Color.LIGHT_GRAY); g2.fillRoundRect(dialogs.cancelBtn.x, dialogs.cancelBtn.y, dialogs.cancelBtn.width, dialogs.cancelBtn.height, 10, 10);
+            g2.setColor(Color.WHITE);
+            textCache.get(g2, btnFont, "確定 (Enter)").draw(g2, dialogs.okBtn.x + 14, dialogs.okBtn.y + 29);
+            g2.setColor(Color.DARK_GRAY);
+            textCache.get(g2, btnFont, "取消 (Esc)").draw(g2, dialogs.cancelBtn.x + 18, dialogs.cancelBtn.y + 29);
+        }
+    }
+
+    /** 左上角顯示上一秒的 p50 / p99 / max，內容每秒更新一次 */
+    private void drawStatsOverlay(Graphics2D g2) {
+        FrameStats.Window w = frameStats.getLastWindow();
+        int serial = frameStats.getWindowSerial();
+        Font font = textCache.font("Monospaced", Font.PLAIN, 13);
+        boolean stale = false;
+        for (TextSlot slot : statsLines) stale |= slot.changed(font, w, null, serial, 0);
+        if (stale) {
+            statsLines[0].setText(String.format("%-7s %8s %8s %8s", "", "p50", "p99", "max"));
+            statsLines[1].setText(msLine("update", w.update));
+            statsLines[2].setText(msLine("paint", w.paint));
+            statsLines[3].setText(msLine("jitter", w.jitter));
+            statsLines[6].setText(msLine("input", w.input));
+            statsLines[7].setText(String.format("mash/s  P1 %.0f (peak %.0f)  P2 %.0f (peak %.0f)", p1MashRate, p1MashPeak, p2MashRate, p2MashPeak));
+            statsLines[4].setText(String.format("%-7s %6.1fKB %6.1fKB %6.1fKB", "alloc",
+                    w.alloc.percentile(50) / 1024.0, w.alloc.percentile(99) / 1024.0, w.alloc.max() / 1024.0));
+            statsLines[5].setText(String.format("%d fps, missed %d", w.frames, w.missed));
+            Histogram audio = soundManager.getLatency(); // 微秒，開始至今
+            statsLines[8].setText(String.format("%-7s %6.2fms %6.2fms %6.2fms", "audio",
+                    audio.percentile(50) / 1e3, audio.percentile(99) / 1e3, audio.max() / 1e3));
+            statsLines[9].setText(soundManager.isReady() ? String.format("xrun %d  voices %d/%d  stolen %d  bgm gaps %d",
+                    soundManager.getUnderruns(), soundManager.getActiveVoices(), soundManager.getVoiceCount(),
+                    soundManager.getStolenVoices(), soundManager.getStarvedPeriods()) : "audio off");
+            statsLines[10].setText(msLine("present", w.present));
+            statsLines[11].setText((canvasRenderer != null) ? canvasRenderer.describe() : "swing repaint");
+            statsLines[12].setText(String.format("quality %s%s  budget %.1fms  changes %d", quality.getTier(),
+                    quality.isAuto() ? "" : " (fixed)", quality.getBudgetNanos() / 1e6, quality.getTransitionCount()));
+            TextureCache photos = assets.getPhotoCache();
+            statsLines[13].setText((photos == null) ? "photos -" : String.format("photos %d %.1f/%.0fMB  hit %.1f%%  evict %d",
+                    photos.getResidentCount(), photos.getResidentBytes() / 1048576.0, photos.getBudgetBytes() / 1048576.0,
+                    photos.getHitRate() * 100, photos.getEvictions()));
+            statsLines[14].setText((capture == null) ? "capture off" : capture.describe());
+        }
+        g2.setColor(new Color(0, 0, 0, 170));
+        g2.fillRoundRect(10, 50, 360, 18 * statsLines.length + 14, 10, 10); // 避開上方 HUD
+        g2.setColor(Color.WHITE);
+        for (int i = 0; i < statsLines.length; i++) textCache.get(g2, statsLines[i]).draw(g2, 20, 70 + 18 * i);
+    }
+
+    private static String msLine(String label, Histogram h) {
+        return String.format("%-7s %6.2fms %6.2fms %6.2fms", label, h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6);
+    }
+
+    private void drawStartScreen(Graphics2D g2) {
+        drawBackground(g2, groundLayer);
+        int jumpY = 485 - (int)lerp(engine.prevDemoRunnerYOffset, engine.demoRunnerYOffset, alpha);
+        drawCharacter(g2, assets.p1Icon(), 90, jumpY, 100, false);
+        drawCharacter(g2, assets.p2Icon(), 180, jumpY, 100, false);
+        startCardLayer.draw(g2, getWidth(), getHeight());
+        int lX = (getWidth() - 480) / 2 + 110;
+        drawCharacter(g2, assets.p1Icon(), lX, 300, 60, false);
+        drawCharacter(g2, assets.p2Icon(), lX, 380, 60, false);
+    }
+
+    /** 開始畫面的卡片、標題、名稱與按鈕；玩家改名時失效 */
+    private void paintStartCard(Graphics2D g2) {
+        int boxX = (getWidth() - 480) / 2; g2.setColor(new Color(255, 255, 255, 160)); g2.fillRoundRect(boxX, 100, 480, 480, 30, 30);
+        drawCentered(g2, "記憶競速大對決", 180, 50, Color.BLACK);
+        int lX = boxX + 110;
+        Font labelFont = textCache.font(FONT_NAME, Font.BOLD, 22), btnFont = textCache.font(FONT_NAME, Font.BOLD, 15);
+        g2.setColor(Color.DARK_GRAY);
+        if (p1LabelText.changed(labelFont, engine.p1Name, null, 0, 0)) p1LabelText.setText("玩家一： " + engine.p1Name);
+        TextCache.Text p1Label = textCache.get(g2, p1LabelText);
+        p1Label.draw(g2, lX + 45, 285);
+        p1NameBtn.x = lX + 45 + (int) p1Label.width + 15;
+        p1NameBtn.y = 260;
+        g2.setColor(new Color(200, 200, 200));
+        g2.fillRoundRect(p1NameBtn.x, p1NameBtn.y, p1NameBtn.width, p1NameBtn.height, 8, 8);
+        g2.setColor(Color.BLACK);
+        textCache.get(g2, btnFont, "更改").draw(g2, p1NameBtn.x + 15, p1NameBtn.y + 23);
+        g2.setColor(Color.DARK_GRAY);
+        if (p2LabelText.changed(labelFont, engine.p2Name, null, 0, 0)) p2LabelText.setText("玩家二： " + engine.p2Name);
+        TextCache.Text p2Label = textCache.get(g2, p2LabelText);
+        p2Label.draw(g2, lX + 45, 365);
+        p2NameBtn.x = lX + 45 + (int) p2Label.width + 15;
+        p2NameBtn.y = 340;
+        g2.setColor(new Color(200, 200, 200));
         g2.fillRoundRect(p2NameBtn.x, p2NameBtn.y, p2NameBtn.width, p2NameBtn.height, 8, 8);
         g2.setColor(Color.BLACK);
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 15));
-        g2.drawString("更改", p2NameBtn.x + 15, p2NameBtn.y + 23);
+        textCache.get(g2, btnFont, "更改").draw(g2, p2NameBtn.x + 15, p2NameBtn.y + 23);
         startBtn.x = (getWidth() - 200) / 2; infoBtn.x = (getWidth() - 200) / 2;
         g2.setColor(new Color(46, 204, 113)); g2.fillRoundRect(startBtn.x, startBtn.y, 200, 55, 20, 20);
         g2.setColor(Color.WHITE); drawTextInRect(g2, "開始遊戲", startBtn, 24);
@@ -581,48 +1716,70 @@ class GamePanel extends JPanel implements ActionListener {
     }
 
     private void drawInstructions(Graphics2D g2) {
+        instructionsLayer.draw(g2, getWidth(), getHeight());
+    }
+
+    private void paintInstructions(Graphics2D g2) {
         g2.setColor(new Color(255, 255, 255, 220)); g2.fillRect(0, 0, getWidth(), getHeight());
         g2.setColor(BLUE_BTN_COLOR); g2.fillRoundRect(backBtn.x, backBtn.y, 65, 45, 15, 15);
         g2.setColor(Color.WHITE); g2.setStroke(new BasicStroke(3)); int cx = backBtn.x + 32, cy = backBtn.y + 22;
         g2.drawLine(cx-12, cy, cx+12, cy); g2.drawLine(cx-12, cy, cx-4, cy-8); g2.drawLine(cx-12, cy, cx-4, cy+8); 
         drawCentered(g2, "【 遊戲說明 】", 100, 36, Color.BLACK);
-        String[] lines = {"1. 玩家一 (P1)：交替按 [ ← ][ → ] 前進。", "2. 玩家二 (P2)：交替按 [ A ][ D ] 前進。", "3. 觀察天空飛過的圖片，競速結束後會有作答環節。", "4. 若答錯對方可獲得答題機會！請務必仔細觀察。", "5.答對者可加25分，答錯不倒扣，共三回合。"};
+        String[] lines = INSTRUCTION_LINES;
         for (int i = 0; i < lines.length; i++) drawCentered(g2, lines[i], 180 + (i * 50), 22, Color.DARK_GRAY, true);
         int ky = 420; g2.setColor(new Color(0, 0, 0, 40)); g2.fillRoundRect(200, ky - 30, 600, 230, 20, 20);
-        g2.setColor(Color.BLACK); g2.setFont(new Font(FONT_NAME, Font.BOLD, 20));
-        g2.drawString("P1 操作：", 250, ky + 20); drawKeyIcon(g2, "←", 400, ky - 10); drawKeyIcon(g2, "→", 455, ky - 10);
-        g2.drawString("P2 操作：", 250, ky + 80); drawKeyIcon(g2, "A", 400, ky + 50); drawKeyIcon(g2, "D", 455, ky + 50);
-        g2.drawString("作答按鍵：", 250, ky + 140); drawKeyIcon(g2, "1", 400, ky + 110); drawKeyIcon(g2, "2", 455, ky + 110); drawKeyIcon(g2, "3", 510, ky + 110);
+        g2.setColor(Color.BLACK); Font f = textCache.font(FONT_NAME, Font.BOLD, 20);
+        textCache.get(g2, f, "P1 操作：").draw(g2, 250, ky + 20); drawKeyIcon(g2, "←", 400, ky - 10); drawKeyIcon(g2, "→", 455, ky - 10);
+        textCache.get(g2, f, "P2 操作：").draw(g2, 250, ky + 80); drawKeyIcon(g2, "A", 400, ky + 50); drawKeyIcon(g2, "D", 455, ky + 50);
+        textCache.get(g2, f, "作答按鍵：").draw(g2, 250, ky + 140); drawKeyIcon(g2, "1", 400, ky + 110); drawKeyIcon(g2, "2", 455, ky + 110); drawKeyIcon(g2, "3", 510, ky + 110);
     }
 
+    private static final String[] INSTRUCTION_LINES = {"1. 玩家一 (P1)：交替按 [ ← ][ → ] 前進。", "2. 玩家二 (P2)：交替按 [ A ][ D ] 前進。", "3. 觀察天空飛過的圖片，競速結束後會有作答環節。", "4. 若答錯對方可獲得答題機會！請務必仔細觀察。", "5.答對者可加25分，答錯不倒扣，共三回合。"};
+
     private void drawCountdown(Graphics2D g2) {
         drawGame(g2); g2.setColor(new Color(0, 0, 0, 100)); g2.fillRect(0, 0, getWidth(), getHeight());
-        drawCentered(g2, String.valueOf(engine.countdownValue), 350, 120, Color.YELLOW);
+        if (engine.isWaitingForReady()) { drawLoadingProgress(g2); return; }
+        if (countdownText.changed(textCache.font(FONT_NAME, Font.BOLD, 120), null, null, engine.countdownValue, 0)) countdownText.setText(String.valueOf(engine.countdownValue));
+        drawCentered(g2, countdownText, 350, Color.YELLOW);
+    }
+
+    /** 素材還沒載完時，倒數停在起點並顯示進度 */
+    private void drawLoadingProgress(Graphics2D g2) {
+        int done = assets.loadedCount(), total = assets.total();
+        int w = 400, h = 24, x = (getWidth() - w) / 2, y = 330;
+        g2.setColor(new Color(255, 255, 255, 80)); g2.fillRoundRect(x, y, w, h, h, h);
+        g2.setColor(Color.YELLOW); g2.fillRoundRect(x, y, w * done / total, h, h, h);
+        if (countdownText.changed(textCache.font(FONT_NAME, Font.BOLD, 28), null, null, done, -1)) countdownText.setText("素材載入中 " + done + " / " + total);
+        drawCentered(g2, countdownText, 300, Color.WHITE);
     }
 
     private void drawGame(Graphics2D g2) {
-        drawBackground(g2); g2.setColor(Color.WHITE); g2.fillRect(900, 460, 15, 160);
-        drawCharacter(g2, engine.p1Icon, (int)engine.p1Pos, 510, 80, false); drawCharacter(g2, engine.p2Icon, (int)engine.p2Pos, 610, 80, false);
-        g2.setColor(Color.BLACK); g2.setFont(new Font(FONT_NAME, Font.BOLD, 16));
-        g2.drawString("回合: " + engine.currentRound + "/3 | 難度: " + engine.difficulty, 20, 30);
-        g2.drawString(engine.p2Name + ": " + engine.p2Score + " | " + engine.p1Name + ": " + engine.p1Score, 750, 30);
+        drawBackground(g2, trackLayer);
+        drawCharacter(g2, assets.p1Icon(), (int)lerp(engine.prevP1Pos, engine.p1Pos, alpha), 510, 80, false);
+        drawCharacter(g2, assets.p2Icon(), (int)lerp(engine.prevP2Pos, engine.p2Pos, alpha), 610, 80, false);
+        g2.setColor(Color.BLACK); Font hud = textCache.font(FONT_NAME, Font.BOLD, 16);
+        if (hudRoundText.changed(hud, engine.difficulty, null, engine.currentRound, 0)) hudRoundText.setText("回合: " + engine.currentRound + "/3 | 難度: " + engine.difficulty);
+        if (hudScoreText.changed(hud, engine.p1Name, engine.p2Name, engine.p1Score, engine.p2Score)) hudScoreText.setText(engine.p2Name + ": " + engine.p2Score + " | " + engine.p1Name + ": " + engine.p1Score);
+        textCache.get(g2, hudRoundText).draw(g2, 20, 30);
+        textCache.get(g2, hudScoreText).draw(g2, 750, 30);
     }
 
     private void drawQuiz(Graphics2D g2) {
         g2.setColor(new Color(0, 0, 0, 220)); g2.fillRect(0, 0, getWidth(), getHeight());
         String name = (engine.currentQuizPlayer == 1) ? engine.p1Name : engine.p2Name;
-        drawCharacter(g2, (engine.currentQuizPlayer == 1 ? engine.p1Icon : engine.p2Icon), 500, 100, 100, true);
-        drawCentered(g2, "【 當前作答者：" + name + " 】", 200, 32, Color.YELLOW);
+        drawCharacter(g2, (engine.currentQuizPlayer == 1 ? assets.p1Icon() : assets.p2Icon()), 500, 100, 100, true);
+        if (quizPlayerText.changed(textCache.font(FONT_NAME, Font.BOLD, 32), name, null, 0, 0)) quizPlayerText.setText("【 當前作答者：" + name + " 】");
+        drawCentered(g2, quizPlayerText, 200, Color.YELLOW);
         String hint = (engine.quizAttempts == 0) ? "請根據你的記憶作答" : "你答錯了！換另一位玩家作答";
         drawCentered(hint, 235, 18, Color.LIGHT_GRAY, g2);
         String q = engine.getQuizSystem().getQuestionText();
-        g2.setFont(new Font(EMOJI_FONT, Font.BOLD, 26)); g2.setColor(Color.WHITE);
-        g2.drawString(q, (getWidth() - g2.getFontMetrics().stringWidth(q)) / 2, 310);
+        if (questionText.changed(textCache.font(EMOJI_FONT, Font.BOLD, 26), q, null, 0, 0)) questionText.setText(q);
+        drawCentered(g2, questionText, 310, Color.WHITE);
         List<String> opts = engine.getQuizSystem().getOptions();
         int startIdx = 0;
         if (engine.difficulty == GameEngine.Difficulty.HARD && engine.getQuizSystem().getCurrentType() == QuizSystem.Type.COUNT) {
             int tidx = Integer.parseInt(opts.get(0).substring(5));
-            if (engine.taskImages[tidx] != null) drawCharacter(g2, engine.taskImages[tidx], 500, 400, 80, true);
+            if (assets.taskImage(tidx) != null) drawCharacter(g2, assets.taskImage(tidx), 500, 400, 80, true);
             startIdx = 1;
         }
         List<String> drawOpts = opts.subList(startIdx, opts.size());
@@ -636,18 +1793,23 @@ class GamePanel extends JPanel implements ActionListener {
             String opt = drawOpts.get(i);
             if (opt.startsWith("TASK_") || opt.startsWith("DIST_")) {
                 int tidx = Integer.parseInt(opt.substring(5));
-                Image img = opt.startsWith("TASK_") ? engine.taskImages[tidx] : engine.distractorImages[tidx];
+                Image img = opt.startsWith("TASK_") ? assets.taskImage(tidx) : assets.distractorImage(tidx);
                 if (img != null) drawCharacter(g2, img, x, 535, 90, true);
             } else {
-                g2.setColor(Color.WHITE); g2.setFont(new Font(EMOJI_FONT, Font.PLAIN, 65));
-                g2.drawString(opt, x - g2.getFontMetrics().stringWidth(opt) / 2, 555);
+                g2.setColor(Color.WHITE);
+                emojiAtlas.draw(g2, opt, 65, x - (int) emojiAtlas.width(g2, opt, 65) / 2, 555);
             }
-            g2.setColor(Color.WHITE); g2.setFont(new Font(FONT_NAME, Font.BOLD, 22));
-            g2.drawString("[" + (i + 1) + "]", x - 15, 645);
+            g2.setColor(Color.WHITE);
+            textCache.get(g2, textCache.font(FONT_NAME, Font.BOLD, 22), OPTION_LABELS[i]).draw(g2, x - 15, 645);
         }
     }
 
     private void drawRoundEnd(Graphics2D g2) {
+        roundEndLayer.draw(g2, getWidth(), getHeight());
+    }
+
+    /** 回合結算卡片整張為靜態內容，進入 ROUND_END 時重畫 */
+    private void paintRoundEnd(Graphics2D g2) {
         g2.setColor(new Color(0, 0, 0, 180));
         g2.fillRect(0, 0, getWidth(), getHeight());
         int cardW = 500, cardH = 350;
@@ -658,23 +1820,25 @@ class GamePanel extends JPanel implements ActionListener {
         g2.setColor(BLUE_BTN_COLOR);
         g2.setStroke(new BasicStroke(4));
         g2.drawRoundRect(cx, cy, cardW, cardH, 30, 30);
-        drawCentered(g2, "--- 回合 " + (engine.currentRound - 1) + " 完成 ---", cy + 60, 32, Color.DARK_GRAY);
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 20));
+        if (roundTitleText.changed(textCache.font(FONT_NAME, Font.BOLD, 32), null, null, engine.currentRound, 0)) roundTitleText.setText("--- 回合 " + (engine.currentRound - 1) + " 完成 ---");
+        drawCentered(g2, roundTitleText, cy + 60, Color.DARK_GRAY);
         g2.setColor(Color.GRAY);
-        g2.drawString("【 目前累積得分 】", cx + 50, cy + 110);
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 24));
+        textCache.get(g2, textCache.font(FONT_NAME, Font.BOLD, 20), "【 目前累積得分 】").draw(g2, cx + 50, cy + 110);
+        Font scoreFont = textCache.font(FONT_NAME, Font.BOLD, 24);
+        if (roundP1Name.changed(scoreFont, engine.p1Name, null, 0, 0)) roundP1Name.setText(engine.p1Name + "：");
+        if (roundP1Score.changed(scoreFont, null, null, engine.p1Score, 0)) roundP1Score.setText(engine.p1Score + " pts");
+        if (roundP2Name.changed(scoreFont, engine.p2Name, null, 0, 0)) roundP2Name.setText(engine.p2Name + "：");
+        if (roundP2Score.changed(scoreFont, null, null, engine.p2Score, 0)) roundP2Score.setText(engine.p2Score + " pts");
         g2.setColor(Color.BLACK);
-        g2.drawString(engine.p1Name + "：", cx + 70, cy + 160);
+        textCache.get(g2, roundP1Name).draw(g2, cx + 70, cy + 160);
         g2.setColor(new Color(41, 128, 185));
-        g2.drawString(engine.p1Score + " pts", cx + 320, cy + 160);
+        textCache.get(g2, roundP1Score).draw(g2, cx + 320, cy + 160);
         g2.setColor(Color.BLACK);
-        g2.drawString(engine.p2Name + "：", cx + 70, cy + 205);
+        textCache.get(g2, roundP2Name).draw(g2, cx + 70, cy + 205);
         g2.setColor(new Color(41, 128, 185));
-        g2.drawString(engine.p2Score + " pts", cx + 320, cy + 205);
-        g2.setColor(new Color(231, 76, 60));
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, 22));
-        String nextDiff = "下一回合難度：" + engine.difficulty;
-        g2.drawString(nextDiff, (getWidth() - g2.getFontMetrics().stringWidth(nextDiff)) / 2, cy + 265);
+        textCache.get(g2, roundP2Score).draw(g2, cx + 320, cy + 205);
+        if (nextDiffText.changed(textCache.font(FONT_NAME, Font.BOLD, 22), engine.difficulty, null, 0, 0)) nextDiffText.setText("下一回合難度：" + engine.difficulty);
+        drawCentered(g2, nextDiffText, cy + 265, new Color(231, 76, 60));
         Rectangle promptBtn = new Rectangle(cx + 100, cy + 290, 300, 40);
         g2.setColor(new Color(46, 204, 113));
         g2.fillRoundRect(promptBtn.x, promptBtn.y, promptBtn.width, promptBtn.height, 10, 10);
@@ -683,23 +1847,66 @@ class GamePanel extends JPanel implements ActionListener {
     }
 
     private void drawGameOver(Graphics2D g2) {
-        g2.setColor(new Color(34, 139, 34)); g2.fillRect(0, 400, getWidth(), 300);
-        g2.setColor(new Color(70, 70, 70)); g2.fillRect(0, 460, getWidth(), 60); g2.fillRect(0, 560, getWidth(), 60);
-        for (Confetti c : engine.confettiList) c.draw(g2);
-        g2.setColor(new Color(255, 255, 255, 180)); g2.fillRect(0, 0, getWidth(), getHeight());
-        String winMsg = engine.p1Score > engine.p2Score ? engine.p1Name + " 獲勝！" : (engine.p2Score > engine.p1Score ? engine.p2Name + " 獲勝！" : "平手！");
-        drawCentered(g2, "最終結果", 150, 60, Color.BLACK);
-        drawCentered(g2, winMsg, 240, 50, Color.RED);
+        groundLayer.draw(g2, getWidth(), getHeight());
+        particleRenderer.draw(g2, engine.particles, tier.particleStride);
+        gameOverLayer.draw(g2, getWidth(), getHeight());
         double swayAngle = Math.sin(engine.animTick * 2.0) * 0.15;
         Graphics2D gP2 = (Graphics2D) g2.create();
         gP2.rotate(swayAngle, 350, 500 - 80);
-        drawCharacter(gP2, engine.p2Icon, 350, 500, 160, false);
+        drawCharacter(gP2, assets.p2Icon(), 350, 500, 160, false);
         gP2.dispose();
         Graphics2D gP1 = (Graphics2D) g2.create();
         gP1.rotate(-swayAngle, 650, 500 - 80);
-        drawCharacter(gP1, engine.p1Icon, 650, 500, 160, false);
+        drawCharacter(gP1, assets.p1Icon(), 650, 500, 160, false);
         gP1.dispose();
-        drawCentered(g2, engine.p2Name + ": " + engine.p2Score + "  |  " + engine.p1Name + ": " + engine.p1Score, 560, 30, Color.BLACK);
+        drawHistory(g2);
+    }
+
+    /** 結算畫面兩側：左邊是最佳分數排行榜，右邊是兩位玩家的累計戰績 (包含剛結束的這場) */
+    private void drawHistory(Graphics2D g2) {
+        if (history == null || !history.isReady()) return;
+        if (history.getVersion() != historyVersion) {
+            historyVersion = history.getVersion();
+            board = history.leaderboard(BOARD_ROWS);
+            p1Standing = history.player(engine.p1Name); p2Standing = history.player(engine.p2Name);
+        }
+        Font title = textCache.font(FONT_NAME, Font.BOLD, 20), row = textCache.font(FONT_NAME, Font.PLAIN, 17);
+        g2.setColor(new Color(255, 255, 255, 200));
+        g2.fillRoundRect(20, 300, 220, 50 + 28 * BOARD_ROWS, 15, 15);
+        g2.fillRoundRect(760, 300, 220, 50 + 28 * standingLines.length, 15, 15);
+        g2.setColor(BLUE_BTN_COLOR);
+        textCache.get(g2, title, "排行榜 (最佳分數)").draw(g2, 35, 330);
+        textCache.get(g2, title, "累計戰績").draw(g2, 775, 330);
+        g2.setColor(Color.DARK_GRAY);
+        for (int i = 0; i < board.size(); i++) {
+            MatchHistory.Standing st = board.get(i);
+            if (boardLines[i].changed(row, st, null, i, 0)) boardLines[i].setText(String.format("%d. %s  %d", i + 1, st.name, st.best));
+            textCache.get(g2, boardLines[i]).draw(g2, 35, 362 + 28 * i);
+        }
+        MatchHistory.Standing[] players = {p2Standing, p1Standing}; // 與畫面上的頭像同一順序
+        String[] names = {engine.p2Name, engine.p1Name};
+        for (int i = 0; i < players.length; i++) {
+            MatchHistory.Standing st = players[i];
+            TextSlot name = standingLines[2 * i], stats = standingLines[2 * i + 1];
+            if (name.changed(title, names[i], null, 0, 0)) name.setText(names[i]);
+            if (stats.changed(row, st, null, 0, 0)) stats.setText((st == null) ? "尚無紀錄" : String.format("%d 場 %d 勝，最佳 %d", st.matches, st.wins, st.best));
+            textCache.get(g2, name).draw(g2, 775, 362 + 56 * i);
+            textCache.get(g2, stats).draw(g2, 775, 390 + 56 * i);
+        }
+    }
+
+    /** 結算畫面的白色遮罩與所有文字，進入 GAME_OVER 時重畫 */
+    private void paintGameOverText(Graphics2D g2) {
+        g2.setColor(new Color(255, 255, 255, 180)); g2.fillRect(0, 0, getWidth(), getHeight());
+        if (winText.changed(textCache.font(FONT_NAME, Font.BOLD, 50), engine.p1Name, engine.p2Name, engine.p1Score, engine.p2Score)) {
+            winText.setText(engine.p1Score > engine.p2Score ? engine.p1Name + " 獲勝！" : (engine.p2Score > engine.p1Score ? engine.p2Name + " 獲勝！" : "平手！"));
+        }
+        drawCentered(g2, "最終結果", 150, 60, Color.BLACK);
+        drawCentered(g2, winText, 240, Color.RED);
+        if (finalScoreText.changed(textCache.font(FONT_NAME, Font.BOLD, 30), engine.p1Name, engine.p2Name, engine.p1Score, engine.p2Score)) {
+            finalScoreText.setText(engine.p2Name + ": " + engine.p2Score + "  |  " + engine.p1Name + ": " + engine.p1Score);
+        }
+        drawCentered(g2, finalScoreText, 560, Color.BLACK);
         drawCentered(g2, "請點擊右上角關閉遊戲", 640, 18, Color.GRAY, false);
     }
 
@@ -707,21 +1914,4787 @@ class GamePanel extends JPanel implements ActionListener {
         drawCentered(g2, t, y, s, c, true);
     }
     private void drawCentered(Graphics2D g2, String t, int y, int s, Color c, boolean b) {
-        g2.setFont(new Font(FONT_NAME, b ? Font.BOLD : Font.PLAIN, s)); g2.setColor(c);
-        g2.drawString(t, (getWidth() - g2.getFontMetrics().stringWidth(t)) / 2, y);
+        g2.setColor(c);
+        TextCache.Text text = textCache.get(g2, textCache.font(FONT_NAME, b ? Font.BOLD : Font.PLAIN, s), t);
+        text.draw(g2, (getWidth() - (int) text.width) / 2, y);
+    }
+    private void drawCentered(Graphics2D g2, TextSlot slot, int y, Color c) {
+        g2.setColor(c);
+        TextCache.Text text = textCache.get(g2, slot);
+        text.draw(g2, (getWidth() - (int) text.width) / 2, y);
     }
     private void drawCentered(String t, int y, int s, Color c, Graphics2D g2) {
         drawCentered(g2, t, y, s, c, true);
     }
     private void drawTextInRect(Graphics2D g2, String t, Rectangle r, int s) {
-        g2.setFont(new Font(FONT_NAME, Font.BOLD, s)); FontMetrics fm = g2.getFontMetrics();
-        g2.drawString(t, r.x + (r.width - fm.stringWidth(t)) / 2, r.y + (r.height - fm.getHeight()) / 2 + fm.getAscent());
+        TextCache.Text text = textCache.get(g2, textCache.font(FONT_NAME, Font.BOLD, s), t);
+        text.draw(g2, r.x + (r.width - (int) text.width) / 2, r.y + (r.height - text.height) / 2 + text.ascent);
+    }
+}
+
+/**
+ * 天空物件以平行陣列 (struct-of-arrays) 儲存，生成與移除都不配置物件：
+ * 移除時把最後一個槽位搬到空位 (swap-remove)，陣列只在超過容量時加倍。
+ */
+class SkyObjectStore {
+    float[] x, prevX, y, speed;
+    int[] kind;
+    int count;
+    private int newest = -1; // 最近生成的槽位，用來判斷與下一個物件的間距
+    private long spawned; // 累計生成數與清空次數，連線伺服器以此偵測變化
+    private int clears;
+
+    public SkyObjectStore(int capacity) {
+        x = new float[capacity]; prevX = new float[capacity]; y = new float[capacity]; speed = new float[capacity];
+        kind = new int[capacity];
+    }
+
+    public int spawn(float px, float py, float spd, int spriteId) {
+        if (count == kind.length) grow();
+        int i = count++;
+        x[i] = px; prevX[i] = px; y[i] = py; speed[i] = spd; kind[i] = spriteId;
+        newest = i; spawned++;
+        return i;
+    }
+
+    /** 所有物件左移 speed * k，移出 minX 左側者回收 */
+    public void advance(float k, float minX) {
+        for (int i = count - 1; i >= 0; i--) {
+            x[i] -= speed[i] * k;
+            if (x[i] < minX) removeAt(i);
+        }
+    }
+
+    public void removeAt(int i) {
+        int last = --count;
+        if (newest == i) newest = -1;
+        if (i != last) {
+            x[i] = x[last]; prevX[i] = prevX[last]; y[i] = y[last]; speed[i] = speed[last]; kind[i] = kind[last];
+            if (newest == last) newest = i;
+        }
+    }
+
+    /** 在推進之前保存目前位置，供繪圖時插值 */
+    public void snapshotPositions() { System.arraycopy(x, 0, prevX, 0, count); }
+
+    public float newestX() { return newest >= 0 ? x[newest] : Float.NEGATIVE_INFINITY; }
+    public boolean isEmpty() { return count == 0; }
+    public void clear() { count = 0; newest = -1; clears++; }
+    public int newestIndex() { return newest; }
+    public long spawnCount() { return spawned; }
+    public int clearCount() { return clears; }
+
+    private void grow() {
+        int n = kind.length * 2;
+        x = Arrays.copyOf(x, n); prevX = Arrays.copyOf(prevX, n); y = Arrays.copyOf(y, n); speed = Arrays.copyOf(speed, n);
+        kind = Arrays.copyOf(kind, n);
+    }
+}
+
+/**
+ * 圖片與表情符號的整數代號表：0 為雲朵，接著是任務照片、干擾照片，其餘為依序登記的表情符號。
+ * 代號對應的名稱字串只建立一次，需要字串的地方 (題目、出現紀錄) 直接共用。
+ */
+class SpriteRegistry {
+    public static final int CLOUD = 0;
+    private final int taskCount, distCount;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    public SpriteRegistry(int taskCount, int distCount) {
+        this.taskCount = taskCount; this.distCount = distCount;
+        intern("WHITE_CLOUD");
+        for (int i = 0; i < taskCount; i++) intern("TASK_" + i);
+        for (int i = 0; i < distCount; i++) intern("DIST_" + i);
+    }
+
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        names.add(name); ids.put(name, names.size() - 1);
+        return names.size() - 1;
+    }
+
+    public int[] internAll(String[] pool) {
+        int[] out = new int[pool.length];
+        for (int i = 0; i < pool.length; i++) out[i] = intern(pool[i]);
+        return out;
+    }
+
+    public String name(int id) { return names.get(id); }
+    public int taskId(int photoIdx) { return 1 + photoIdx; }
+    public int distId(int photoIdx) { return 1 + taskCount + photoIdx; }
+    public boolean isTask(int id) { return id >= 1 && id <= taskCount; }
+    public boolean isDistractor(int id) { return id > taskCount && id <= taskCount + distCount; }
+    /** 照片類代號對應的 GameAssets.taskImage / distractorImage 索引 */
+    public int photoIndex(int id) { return isTask(id) ? id - 1 : id - 1 - taskCount; }
+    public int size() { return names.size(); }
+}
+// ==========================================
+// 6. 遊戲主迴圈 (GameLoop)
+// ==========================================
+/**
+ * 固定步長的模擬執行緒：以 nanoTime 單調時鐘累積時間，每滿一個 tick 就推進 GameEngine 一步，
+ * 與畫面更新率脫鉤；繪圖則依 frameCap 節流，並以 getAlpha() 在最後兩個模擬狀態間插值。
+ */
+class GameLoop implements Runnable {
+    public static final int DEFAULT_FRAME_CAP = 60;
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+    private static final int MAX_CATCH_UP_TICKS = 15; // 長時間停頓(GC、視窗拖曳)後最多補算的步數
+
+    private final GameEngine engine;
+    private volatile Runnable renderer;
+    private volatile int tickRate = GameEngine.BASE_TICK_RATE;
+    private volatile int frameCap = DEFAULT_FRAME_CAP; // 0 表示不限制
+    private volatile float alpha;
+    private volatile boolean running;
+    private volatile long tickCount;
+    private volatile FrameStats frameStats;
+    private volatile Step step;
+    private Thread thread;
+
+    /** 一個模擬步；預設直接呼叫 engine.updateWorld，重播時改由 ReplayPlayer 先套用錄下的輸入 */
+    interface Step { void run(float dt); }
+
+    public GameLoop(GameEngine engine, Runnable renderer) {
+        this.engine = engine;
+        this.renderer = renderer;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "GameLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) { LockSupport.unpark(thread); thread = null; }
+    }
+
+    @Override
+    public void run() {
+        long prev = System.nanoTime(), acc = 0, lastFrame = prev;
+        while (running) {
+            int rate = tickRate;
+            long tickNanos = NANOS_PER_SEC / rate;
+            long now = System.nanoTime();
+            acc = Math.min(acc + (now - prev), MAX_CATCH_UP_TICKS * tickNanos);
+            prev = now;
+            FrameStats stats = frameStats;
+            while (acc >= tickNanos) {
+                synchronized (engine) {
+                    Step s = step;
+                    if (stats == null) runStep(s, 1f / rate);
+                    else {
+                        long alloc = FrameStats.allocatedBytes(), t = System.nanoTime();
+                        runStep(s, 1f / rate);
+                        stats.recordUpdate(System.nanoTime() - t, FrameStats.allocatedBytes() - alloc);
+                    }
+                }
+                acc -= tickNanos; tickCount++;
+            }
+
+            int cap = frameCap;
+            long frameNanos = (cap > 0) ? NANOS_PER_SEC / cap : 0;
+            if (now - lastFrame >= frameNanos) {
+                alpha = (float) acc / tickNanos;
+                lastFrame = now;
+                renderer.run();
+            }
+
+            long untilTick = tickNanos - acc;
+            long untilFrame = (cap > 0) ? lastFrame + frameNanos - System.nanoTime() : 1_000_000L;
+            long wait = Math.min(untilTick, untilFrame);
+            if (wait > 0) LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void runStep(Step s, float dt) {
+        if (s == null) engine.updateWorld(dt); else s.run(dt);
+    }
+
+    /** 每幀要求繪製的方式 (Swing 的 repaint 或 CanvasRenderer 的 requestFrame)，在模擬執行緒上呼叫 */
+    public void setRenderer(Runnable renderer) { this.renderer = Objects.requireNonNull(renderer); }
+
+    /** 取代預設的模擬步 (呼叫時仍持有 engine 鎖)；null 恢復預設 */
+    public void setStep(Step step) { this.step = step; }
+
+    /** 模擬頻率 (Hz)；遊戲速度以秒為單位換算，改變頻率不影響賽跑快慢 */
+    public void setTickRate(int hz) { if (hz <= 0) throw new IllegalArgumentException("tick rate: " + hz); tickRate = hz; }
+    public int getTickRate() { return tickRate; }
+    /** 畫面更新上限 (fps)，0 表示每次迴圈都要求重繪 */
+    public void setFrameCap(int fps) { if (fps < 0) throw new IllegalArgumentException("frame cap: " + fps); frameCap = fps; }
+    public int getFrameCap() { return frameCap; }
+    public float getAlpha() { return alpha; }
+    public long getTickCount() { return tickCount; }
+    /** 記錄每次 updateWorld 的耗時與配置量，null 表示不量測 */
+    public void setFrameStats(FrameStats stats) { frameStats = stats; }
+}
+
+// ==========================================
+// 7. 縮放圖片快取 (SpriteCache)
+// ==========================================
+/**
+ * 以 (原圖, 目標尺寸) 為鍵，保存與目前螢幕相容格式的預縮放圖片，讓繪圖迴圈只做等尺寸貼圖。
+ * 偵測到 GraphicsConfiguration 改變 (換螢幕、色深變更) 時整批丟棄，之後依需求重新建立。
+ */
+class SpriteCache {
+    private static class Sprite {
+        final int w, h; final BufferedImage image;
+        Sprite(int w, int h, BufferedImage image) { this.w = w; this.h = h; this.image = image; }
+    }
+
+    private final Map<Image, List<Sprite>> sprites = new IdentityHashMap<>();
+    private GraphicsConfiguration config;
+    private long hits, misses, invalidations;
+
+    /** 取得 src 縮放至 w x h 的版本；快取未命中時才進行縮放 */
+    public Image get(Graphics2D g2, Image src, int w, int h) {
+        GraphicsConfiguration gc = g2.getDeviceConfiguration();
+        if (gc != config) {
+            if (config != null && !sprites.isEmpty()) invalidations++;
+            sprites.clear(); config = gc;
+        }
+        List<Sprite> list = sprites.computeIfAbsent(src, k -> new ArrayList<>(2));
+        for (int i = 0; i < list.size(); i++) {
+            Sprite sp = list.get(i);
+            if (sp.w == w && sp.h == h) { hits++; return sp.image; }
+        }
+        misses++;
+        BufferedImage scaled = scale(gc, src, w, h);
+        list.add(new Sprite(w, h, scaled));
+        return scaled;
+    }
+
+    /** 逐次減半的雙線性縮放，避免大幅縮小照片時產生鋸齒 */
+    static BufferedImage scale(GraphicsConfiguration gc, Image src, int w, int h) {
+        Image cur = src;
+        int cw = src.getWidth(null), ch = src.getHeight(null);
+        while (cw / 2 >= w && ch / 2 >= h) {
+            cw /= 2; ch /= 2;
+            cur = render(null, cur, cw, ch);
+        }
+        return render(gc, cur, w, h);
+    }
+
+    private static BufferedImage render(GraphicsConfiguration gc, Image src, int w, int h) {
+        BufferedImage dst = (gc != null) ? gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT)
+                                         : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(src, 0, 0, w, h, null);
+        g.dispose();
+        return dst;
+    }
+
+    public void clear() { sprites.clear(); }
+    /** 丟掉以 src 為來源的所有預縮放圖 (來源圖片被 TextureCache 淘汰時) */
+    public void remove(Image src) { sprites.remove(src); }
+    public long getHitCount() { return hits; }
+    public long getMissCount() { return misses; }
+    public long getInvalidationCount() { return invalidations; }
+    public int size() { int n = 0; for (List<Sprite> l : sprites.values()) n += l.size(); return n; }
+
+    @Override
+    public String toString() {
+        return String.format("SpriteCache[sprites=%d, hits=%d, misses=%d, invalidations=%d]", size(), hits, misses, invalidations);
+    }
+}
+
+// ==========================================
+// 8. 字型與文字排版快取 (TextCache)
+// ==========================================
+/**
+ * 依 (字族, 樣式, 大小) 共用 Font 實例，並快取每個字串排版後的 TextLayout。
+ * 固定字串以內容為鍵；會變動的字串 (分數、名稱) 透過 TextSlot 只在來源值改變時重排。
+ * FontRenderContext 改變 (例如抗鋸齒設定不同) 時所有排版結果一併失效。
+ */
+class TextCache {
+    /** 排版完成的字串與其量測值 */
+    static final class Text {
+        final TextLayout layout; final float width; final int ascent, height;
+        Text(TextLayout layout) {
+            this.layout = layout;
+            this.width = layout.getAdvance();
+            this.ascent = Math.round(layout.getAscent());
+            this.height = Math.round(layout.getAscent() + layout.getDescent() + layout.getLeading());
+        }
+        public void draw(Graphics2D g2, float x, float y) { layout.draw(g2, x, y); }
+    }
+
+    private static final int MAX_SIZE = 256;
+    private final Map<String, Font[][]> fonts = new HashMap<>();
+    private final Map<Font, Map<String, Text>> layouts = new HashMap<>();
+    private FontRenderContext frc;
+    private int generation;
+    private long layoutCount;
+
+    public Font font(String family, int style, int size) {
+        if (size <= 0 || size >= MAX_SIZE) return new Font(family, style, size);
+        Font[][] byStyle = fonts.computeIfAbsent(family, k -> new Font[4][]);
+        Font[] bySize = byStyle[style & 3];
+        if (bySize == null) bySize = byStyle[style & 3] = new Font[MAX_SIZE];
+        Font f = bySize[size];
+        if (f == null) f = bySize[size] = new Font(family, style, size);
+        return f;
+    }
+
+    /** 固定字串：以 (字型, 內容) 為鍵快取 */
+    public Text get(Graphics2D g2, Font font, String s) {
+        checkContext(g2);
+        Map<String, Text> byString = layouts.computeIfAbsent(font, k -> new HashMap<>());
+        Text t = byString.get(s);
+        if (t == null) { t = layout(font, s); byString.put(s, t); }
+        return t;
+    }
+
+    /** 變動字串：只有 slot 的內容改變或排版環境失效時才重新排版 */
+    public Text get(Graphics2D g2, TextSlot slot) {
+        checkContext(g2);
+        if (slot.text == null || slot.generation != generation) {
+            slot.text = layout(slot.font, slot.value);
+            slot.generation = generation;
+        }
+        return slot.text;
+    }
+
+    private void checkContext(Graphics2D g2) {
+        FontRenderContext cur = g2.getFontRenderContext();
+        if (!cur.equals(frc)) { frc = cur; layouts.clear(); generation++; }
+    }
+
+    private Text layout(Font font, String s) {
+        layoutCount++;
+        // TextLayout 不接受空字串，以一個空白代替
+        return new Text(new TextLayout(s.isEmpty() ? " " : s, font, frc));
+    }
+
+    public void clear() { layouts.clear(); generation++; }
+    /** 累計實際排版次數，穩定畫面下應不再增加 */
+    public long getLayoutCount() { return layoutCount; }
+}
+
+/** 一個會隨遊戲狀態改變的文字欄位，記錄產生它的來源值以判斷是否需要重建字串 */
+class TextSlot {
+    private Object keyA, keyB;
+    private int keyX, keyY;
+    Font font;
+    String value;
+    TextCache.Text text;
+    int generation;
+
+    /** 比對來源值 (物件以參考比較)，有變動時記下新值並回傳 true，呼叫端接著以 setText 提供新字串 */
+    public boolean changed(Font f, Object a, Object b, int x, int y) {
+        if (value != null && f == font && a == keyA && b == keyB && x == keyX && y == keyY) return false;
+        font = f; keyA = a; keyB = b; keyX = x; keyY = y;
+        return true;
+    }
+
+    public void setText(String s) { value = s; text = null; }
+}
+
+// ==========================================
+// 9. 表情符號圖集 (EmojiAtlas)
+// ==========================================
+/**
+ * 將題庫中所有表情符號依字級一次點陣化並緊密排入同一張圖，繪製時只貼出對應區塊，
+ * 避免每幀為每個 SkyObject 做字型後援查找與字形點陣化。
+ * 每個字級各自一張圖、首次使用時才建立；系統沒有能顯示某個符號的字型時改畫佔位圖示。
+ */
+class EmojiAtlas {
+    private static final String[] EMOJI_FAMILIES = {"Segoe UI Emoji", "Apple Color Emoji", "Noto Color Emoji", "Noto Emoji"};
+    private static final int MAX_SHEET_WIDTH = 1024, PAD = 2;
+
+    /** 單一字級的圖集；region 以 x, y, w, h 描述，originX/ascent 為基線相對於區塊左上角的位移 */
+    private static class Sheet {
+        final BufferedImage image;
+        final Map<String, int[]> regions = new HashMap<>();
+        Sheet(BufferedImage image) { this.image = image; }
+    }
+
+    private final List<String> glyphs;
+    private final Font[] baseFonts; // 每個符號實際使用的字型 (大小 1，依字級衍生)，null 表示需畫佔位圖
+    private final Sheet[] sheets = new Sheet[256];
+    private GraphicsConfiguration config;
+    private int placeholders;
+
+    public EmojiAtlas(String fallbackFamily, List<String> glyphs) {
+        this.glyphs = new ArrayList<>(new LinkedHashSet<>(glyphs));
+        this.baseFonts = new Font[this.glyphs.size()];
+        Set<String> installed = new HashSet<>(Arrays.asList(GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames()));
+        List<Font> candidates = new ArrayList<>();
+        for (String family : EMOJI_FAMILIES) if (installed.contains(family)) candidates.add(new Font(family, Font.PLAIN, 1));
+        candidates.add(new Font(fallbackFamily, Font.PLAIN, 1));
+        for (int i = 0; i < baseFonts.length; i++) {
+            for (Font f : candidates) {
+                if (f.canDisplayUpTo(this.glyphs.get(i)) == -1) { baseFonts[i] = f; break; }
+            }
+            if (baseFonts[i] == null) placeholders++;
+        }
+    }
+
+    /** 以基線 (x, y) 繪製，與 drawString 的定位方式相同 */
+    public void draw(Graphics2D g2, String emoji, int size, float x, float y) {
+        Sheet sh = sheet(g2, size);
+        int[] r = sh.regions.get(emoji);
+        if (r == null) { // 不在圖集中的字串退回一般文字繪製
+            g2.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, size)); g2.drawString(emoji, x, y);
+            return;
+        }
+        int dx = (int) x - r[4], dy = (int) y - r[5];
+        g2.drawImage(sh.image, dx, dy, dx + r[2], dy + r[3], r[0], r[1], r[0] + r[2], r[1] + r[3], null);
+    }
+
+    /** 符號的前進寬度，用於置中 */
+    public float width(Graphics2D g2, String emoji, int size) {
+        int[] r = sheet(g2, size).regions.get(emoji);
+        return (r == null) ? size : r[6];
+    }
+
+    /** 丟棄所有字級的圖集，下次繪製時重新點陣化 (例如換螢幕或字型安裝後) */
+    public void invalidate() { Arrays.fill(sheets, null); }
+
+    /** 預先建立指定字級的圖集 */
+    public void regenerate(Graphics2D g2, int size) {
+        if (size > 0 && size < sheets.length) sheets[size] = null;
+        sheet(g2, size);
+    }
+
+    public int getPlaceholderCount() { return placeholders; }
+
+    private Sheet sheet(Graphics2D g2, int size) {
+        GraphicsConfiguration gc = g2.getDeviceConfiguration();
+        if (gc != config) { invalidate(); config = gc; }
+        Sheet sh = sheets[size];
+        if (sh == null) sh = sheets[size] = build(gc, size);
+        return sh;
+    }
+
+    private Sheet build(GraphicsConfiguration gc, int size) {
+        FontRenderContext frc = new FontRenderContext(null, true, true);
+        int n = glyphs.size();
+        TextLayout[] layouts = new TextLayout[n];
+        int[][] regions = new int[n][];
+        // 先量測每個符號的大小，再以 shelf 方式由左至右、由上而下排列
+        int x = 0, y = 0, rowH = 0, sheetW = 0;
+        for (int i = 0; i < n; i++) {
+            int ascent, w, h, advance;
+            if (baseFonts[i] != null) {
+                layouts[i] = new TextLayout(glyphs.get(i), baseFonts[i].deriveFont((float) size), frc);
+                ascent = (int) Math.ceil(layouts[i].getAscent());
+                advance = (int) Math.ceil(layouts[i].getAdvance());
+                h = ascent + (int) Math.ceil(layouts[i].getDescent()) + PAD * 2;
+            } else {
+                ascent = size; advance = size; h = size + size / 4 + PAD * 2;
+            }
+            w = advance + PAD * 2;
+            if (x + w > MAX_SHEET_WIDTH) { x = 0; y += rowH; rowH = 0; }
+            regions[i] = new int[]{x, y, w, h, PAD, ascent + PAD, advance};
+            x += w; rowH = Math.max(rowH, h); sheetW = Math.max(sheetW, x);
+        }
+        int sheetH = Math.max(1, y + rowH);
+        BufferedImage img = (gc != null) ? gc.createCompatibleImage(Math.max(1, sheetW), sheetH, Transparency.TRANSLUCENT)
+                                         : new BufferedImage(Math.max(1, sheetW), sheetH, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        Sheet sh = new Sheet(img);
+        for (int i = 0; i < n; i++) {
+            int[] r = regions[i];
+            if (layouts[i] != null) layouts[i].draw(g, r[0] + r[4], r[1] + r[5]);
+            else drawPlaceholder(g, r[0] + PAD, r[1] + PAD, size);
+            sh.regions.put(glyphs.get(i), r);
+        }
+        g.dispose();
+        return sh;
+    }
+
+    private static void drawPlaceholder(Graphics2D g, int x, int y, int size) {
+        int inset = size / 10;
+        g.setStroke(new BasicStroke(Math.max(1, size / 16f)));
+        g.drawRoundRect(x + inset, y + inset, size - inset * 2, size - inset * 2, size / 4, size / 4);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, size / 2));
+        FontMetrics fm = g.getFontMetrics();
+        g.drawString("?", x + (size - fm.stringWidth("?")) / 2, y + (size - fm.getHeight()) / 2 + fm.getAscent());
+    }
+}
+
+// ==========================================
+// 10. 靜態圖層 (SceneLayer)
+// ==========================================
+/**
+ * 將不常變動的畫面內容 (草地、跑道、終點線、各種卡片) 畫進加速的 VolatileImage，
+ * 之後每幀只貼一次圖；內容改變時由呼叫端 invalidate()，顯示卡重置或裝置改變時自動重畫。
+ * 圖片以裝置像素建立，在高 DPI 縮放下仍保持清晰。
+ */
+class SceneLayer {
+    private final String name;
+    private final Consumer<Graphics2D> painter;
+    private VolatileImage image;
+    private boolean dirty = true;
+    private double scale = 1;
+    private int renderCount;
+
+    public SceneLayer(String name, Consumer<Graphics2D> painter) {
+        this.name = name;
+        this.painter = painter;
+    }
+
+    public void invalidate() { dirty = true; }
+
+    /** 將圖層以 w x h 的邏輯尺寸貼到 g2 的原點 */
+    public void draw(Graphics2D g2, int w, int h) {
+        if (w <= 0 || h <= 0) return;
+        GraphicsConfiguration gc = g2.getDeviceConfiguration();
+        double s = g2.getTransform().getScaleX();
+        int pw = (int) Math.ceil(w * s), ph = (int) Math.ceil(h * s);
+        do {
+            int status = (image == null) ? VolatileImage.IMAGE_INCOMPATIBLE : image.validate(gc);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE || image.getWidth() != pw || image.getHeight() != ph || s != scale) {
+                if (image != null) image.flush();
+                image = gc.createCompatibleVolatileImage(pw, ph, Transparency.TRANSLUCENT);
+                scale = s; dirty = true;
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                dirty = true;
+            }
+            if (dirty) render();
+            g2.drawImage(image, 0, 0, w, h, null);
+        } while (image.contentsLost());
+    }
+
+    private void render() {
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setComposite(AlphaComposite.SrcOver);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.scale(scale, scale);
+        painter.accept(g);
+        g.dispose();
+        dirty = false; renderCount++;
+    }
+
+    public String getName() { return name; }
+    /** 圖層實際重畫的次數，畫面靜止時應保持不變 */
+    public int getRenderCount() { return renderCount; }
+}
+
+// ==========================================
+// 11. 圖片素材 (GameAssets)
+// ==========================================
+/**
+ * 玩家頭像與任務/干擾照片，由畫面端載入；GameEngine 只以整數代號引用它們。
+ * 頭像以固定大小的執行緒池平行解碼，轉成螢幕相容的像素格式後透過 AtomicReferenceArray 發佈給 EDT。
+ * 照片來自 ContentPack，數量可能上千張，只把用得到的留在有位元組預算的 TextureCache 裡；
+ * 照片在解碼時就縮到 PHOTO_MAX_SIZE 以內 (畫面上最大 90 px)，快取預算至少放得下一回合的照片。
+ * 困難回合的照片在倒數開始時 prefetch。頭像與預先載入的照片都處理完 (不論成功與否) 時 isReady() 才成立，
+ * 倒數計時以此作為開賽前的等待點。
+ */
+class GameAssets {
+    private static final int P1 = 0, P2 = 1;
+    static final String[] PATHS = {"image/p1.png", "image/p2.png"};
+    private static final int MAX_LOADER_THREADS = 4, TEXTURE_THREADS = 2;
+    /** 照片解碼後的最長邊：畫面上最大 90 px，保留縮放視窗與全螢幕放大的餘裕 */
+    static final int PHOTO_MAX_SIZE = 256;
+    /** 一回合最多同時用到的照片 (任務加干擾候選) 縮小後的總量 */
+    static final long ROUND_PHOTO_BYTES = (long) (GameEngine.HARD_ROUND_PHOTOS + GameEngine.HARD_ROUND_DISTRACTORS) * PHOTO_MAX_SIZE * PHOTO_MAX_SIZE * 4;
+
+    private final AtomicReferenceArray<Image> images = new AtomicReferenceArray<>(PATHS.length);
+    private final AtomicInteger loaded = new AtomicInteger();
+    private volatile CompletableFuture<Void> ready;
+    private final ContentPack content;
+    private volatile TextureCache photos;
+    private volatile CompletableFuture<?>[] prefetching = new CompletableFuture<?>[0];
+
+    public GameAssets() { this(ContentPack.current()); }
+
+    public GameAssets(ContentPack content) { this.content = content; }
+
+    public Image p1Icon() { return images.get(P1); }
+    public Image p2Icon() { return images.get(P2); }
+    /** 照片不在快取中時回傳 null 並開始背景載入 (EDT 上呼叫) */
+    public Image taskImage(int i) { TextureCache c = photos; return (c == null) ? null : c.get(content.taskPhoto(i)); }
+    public Image distractorImage(int i) { TextureCache c = photos; return (c == null) ? null : c.get(content.distractorPhoto(i)); }
+    /** load 之前為 null */
+    public TextureCache getPhotoCache() { return photos; }
+
+    /**
+     * 開始預先解碼這些照片 (模擬執行緒在倒數開始時呼叫)；它們處理完之前 isReady() 不成立。
+     * 尚未 load 時不做任何事。
+     */
+    public void prefetch(String[] photoPaths) {
+        TextureCache c = photos;
+        if (c == null) return;
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[photoPaths.length];
+        for (int i = 0; i < photoPaths.length; i++) tasks[i] = c.prefetch(photoPaths[i]);
+        prefetching = tasks;
+    }
+
+    public int total() { return PATHS.length + prefetching.length; }
+    /** 已處理完的素材數 (含失敗)，供載入進度顯示 */
+    public int loadedCount() {
+        int n = loaded.get();
+        for (CompletableFuture<?> f : prefetching) if (f.isDone()) n++;
+        return n;
+    }
+    public boolean isReady() {
+        CompletableFuture<Void> r = ready;
+        if (r == null || !r.isDone()) return false;
+        for (CompletableFuture<?> f : prefetching) if (!f.isDone()) return false;
+        return true;
+    }
+    /** 阻塞等待頭像處理完 (工具程式與 benchmark 用；遊戲畫面請用 isReady 輪詢) */
+    public void awaitReady() { if (ready != null) ready.join(); }
+
+    /** 從找得到的素材包載入，沒有素材包時讀 memoryracing.home (預設為工作目錄) 下的 image/ */
+    public void load() { load(AssetBundle.locate()); }
+
+    public void load(AssetBundle bundle) { load(new File(System.getProperty("memoryracing.home", ".")), bundle); }
+
+    /**
+     * 開始非同步載入；重複呼叫無效。有素材包時先確認每張圖都在包內，缺少即丟出例外；
+     * bundle 為 null 時從 baseDir/image/ 讀取原始檔 (開發模式，缺檔只提示)。
+     */
+    public synchronized void load(File baseDir, AssetBundle bundle) {
+        if (ready != null) return;
+        if (bundle != null) for (String path : PATHS) bundle.require(AssetBundle.idOf(path), AssetBundle.IMAGE);
+        GraphicsConfiguration gc = GraphicsEnvironment.isHeadless() ? null
+                : GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        // 內建題庫的照片在素材包裡；外部題庫一律讀檔
+        AssetBundle photoBundle = content.isBuiltIn() ? bundle : null;
+        if (photoBundle != null) for (String path : content.getAllPhotos()) bundle.require(AssetBundle.idOf(path), AssetBundle.IMAGE);
+        photos = new TextureCache(photoBudget(TextureCache.budgetFromSystemProperties()), TEXTURE_THREADS, key -> {
+            BufferedImage raw;
+            if (photoBundle != null) raw = photoBundle.image(AssetBundle.idOf(key));
+            else {
+                File f = content.isBuiltIn() ? new File(baseDir, key) : content.photoFile(key);
+                if (!f.exists()) { System.out.println("找不到圖片：" + f.getPath()); return null; }
+                raw = ImageIO.read(f);
+                if (raw == null) { System.out.println("無法解碼圖片：" + f.getPath()); return null; }
+            }
+            return fitPhoto(raw, gc);
+        });
+        int threads = Math.max(1, Math.min(MAX_LOADER_THREADS, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger serial = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "AssetLoader-" + serial.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[PATHS.length];
+        for (int i = 0; i < PATHS.length; i++) {
+            int idx = i;
+            tasks[i] = CompletableFuture.runAsync(() -> decode(baseDir, bundle, idx, gc), pool);
+        }
+        ready = CompletableFuture.allOf(tasks).whenComplete((v, err) -> {
+            pool.shutdown();
+            if (err != null) System.out.println("素材載入失敗：" + ((err.getCause() != null) ? err.getCause() : err).getMessage());
+            System.out.printf("素材載入完成：%d 個，耗時 %.1f ms (%d 執行緒，%s)%n", PATHS.length, (System.nanoTime() - start) / 1e6, threads,
+                    (bundle != null) ? bundle.getPath() : "原始檔");
+        });
+    }
+
+    private void decode(File baseDir, AssetBundle bundle, int idx, GraphicsConfiguration gc) {
+        String path = PATHS[idx];
+        long t0 = System.nanoTime();
+        try {
+            BufferedImage raw;
+            if (bundle != null) raw = bundle.image(AssetBundle.idOf(path));
+            else {
+                File f = new File(baseDir, path);
+                if (!f.exists()) { System.out.println("找不到圖片：" + f.getPath()); return; }
+                raw = ImageIO.read(f);
+                if (raw == null) { System.out.println("無法解碼圖片：" + f.getPath()); return; }
+            }
+            long t1 = System.nanoTime();
+            images.set(idx, toCompatible(raw, gc));
+            System.out.printf("  %-14s %4dx%-4d 解碼 %6.1f ms，轉換 %5.1f ms%n", path, raw.getWidth(), raw.getHeight(),
+                    (t1 - t0) / 1e6, (System.nanoTime() - t1) / 1e6);
+        } catch (IOException e) {
+            System.out.println("本地圖片載入失敗：" + path + " (" + e.getMessage() + ")");
+        } finally {
+            loaded.incrementAndGet();
+        }
+    }
+
+    /** 預算放不下一回合的照片時每個問答畫面都會互相淘汰，調高到一回合的量並提示 */
+    static long photoBudget(long requested) {
+        if (requested >= ROUND_PHOTO_BYTES) return requested;
+        System.out.printf("照片快取預算 %.1f MB 放不下一回合的照片，改用 %.1f MB%n", requested / 1048576.0, ROUND_PHOTO_BYTES / 1048576.0);
+        return ROUND_PHOTO_BYTES;
+    }
+
+    /** 最長邊超過 PHOTO_MAX_SIZE 的照片等比縮小，並轉成螢幕相容格式 */
+    static BufferedImage fitPhoto(BufferedImage raw, GraphicsConfiguration gc) {
+        int w = raw.getWidth(), h = raw.getHeight(), longest = Math.max(w, h);
+        if (longest <= PHOTO_MAX_SIZE) return toCompatible(raw, gc);
+        double scale = (double) PHOTO_MAX_SIZE / longest;
+        return SpriteCache.scale(gc, raw, Math.max(1, (int) Math.round(w * scale)), Math.max(1, (int) Math.round(h * scale)));
+    }
+
+    /** 轉成與螢幕相同的像素格式，之後的縮放與貼圖不必再逐像素轉換 */
+    private static BufferedImage toCompatible(BufferedImage src, GraphicsConfiguration gc) {
+        int transparency = src.getColorModel().getTransparency();
+        BufferedImage dst;
+        if (gc != null) {
+            if (src.getColorModel().equals(gc.getColorModel(transparency))) return src;
+            dst = gc.createCompatibleImage(src.getWidth(), src.getHeight(), transparency);
+        } else {
+            int type = (transparency == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE;
+            if (src.getType() == type) return src;
+            dst = new BufferedImage(src.getWidth(), src.getHeight(), type);
+        }
+        Graphics2D g = dst.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(src, 0, 0, null);
+        g.dispose();
+        return dst;
     }
 }
 
-class SkyObject {
-    float x, y, speed; String content;
-    public SkyObject(float x, float y, float speed, String content) {
-        this.x = x; this.y = y; this.speed = speed; this.content = content;
+// ==========================================
+// 12. 無畫面模擬 (HeadlessMatch)
+// ==========================================
+/**
+ * 不開視窗、不等待真實時間，直接以 tick() 推進 GameEngine 跑完整場比賽。
+ * 兩位玩家由 BotStrategy 決定何時按鍵與選哪個答案；所有隨機性都來自 seed，可完整重現。
+ * 執行：java -Djava.awt.headless=true -cp project/target/classes memoryracing.HeadlessMatch [場數] [seed]
+ */
+class HeadlessMatch {
+    private static final int[] P1_KEYS = {KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT}, P2_KEYS = {KeyEvent.VK_A, KeyEvent.VK_D};
+    private static final int[] ANSWER_KEYS = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3};
+    private static final long MAX_TICKS = 1_000_000;
+
+    /** 一場比賽的結果 */
+    static final class Result {
+        final long seed, ticks; final int p1Score, p2Score;
+        Result(long seed, long ticks, int p1Score, int p2Score) { this.seed = seed; this.ticks = ticks; this.p1Score = p1Score; this.p2Score = p2Score; }
+    }
+
+    /** 兩位玩家每 tick 各有 30% 機率按鍵，作答時隨機選擇 */
+    public static Result run(long seed) { return run(seed, new RandomBot(0.3), new RandomBot(0.3), null); }
+
+    /** stats 不為 null 時一併收集勝負、問答與生成統計；引擎不配置粒子，玩家的亂數與引擎亂數分開 */
+    public static Result run(long seed, BotStrategy p1, BotStrategy p2, SimStats stats) {
+        GameEngine engine = new GameEngine(seed, 0);
+        SplittableRandom input = new SplittableRandom(seed ^ 0x5DEECE66DL);
+        SimStats.Probe probe = (stats != null) ? stats.attach(engine) : null;
+        int p1Key = 0, p2Key = 0;
+        long ticks = 0;
+        engine.handleInput(KeyEvent.VK_SPACE);
+        while (engine.currentState != GameEngine.State.GAME_OVER && ticks < MAX_TICKS) {
+            switch (engine.currentState) {
+                case RACING:
+                    if (p1.press(ticks, input)) engine.handleInput(P1_KEYS[p1Key ^= 1]);
+                    if (p2.press(ticks, input)) engine.handleInput(P2_KEYS[p2Key ^= 1]);
+                    break;
+                case QUIZ: {
+                    QuizSystem quiz = engine.getQuizSystem();
+                    int idx = ((engine.currentQuizPlayer == 1) ? p1 : p2).answer(engine, input);
+                    engine.handleInput(ANSWER_KEYS[idx - quiz.getFirstChoice()]);
+                    break;
+                }
+                case ROUND_END:
+                    engine.handleInput(KeyEvent.VK_SPACE);
+                    break;
+                default:
+                    break;
+            }
+            engine.tick(); ticks++;
+            if (probe != null) probe.afterTick();
+        }
+        if (probe != null) probe.matchEnded(ticks);
+        return new Result(seed, ticks, engine.p1Score, engine.p2Score);
+    }
+
+    public static void main(String[] args) {
+        int matches = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 42;
+        long start = System.nanoTime(), simTicks = 0, checksum = 0;
+        for (int i = 0; i < matches; i++) {
+            Result r = run(seed + i);
+            simTicks += r.ticks;
+            checksum = checksum * 31 + r.ticks * 1_000_003L + r.p1Score * 1009L + r.p2Score;
+        }
+        double wall = (System.nanoTime() - start) / 1e9, simulated = (double) simTicks / GameEngine.BASE_TICK_RATE;
+        Result again = run(seed), first = run(seed);
+        boolean deterministic = again.ticks == first.ticks && again.p1Score == first.p1Score && again.p2Score == first.p2Score;
+        System.out.printf("%d 場比賽，模擬 %.0f 秒，實際耗時 %.3f 秒 (約 %.0f 倍速)，checksum=%x，重現性=%s%n",
+                matches, simulated, wall, simulated / wall, checksum, deterministic ? "OK" : "FAILED");
     }
-}
\ No newline at end of file
+}
+
+// ==========================================
+// 13. 每幀效能統計 (FrameStats)
+// ==========================================
+/**
+ * 對數分桶的直方圖：每個 2 的次方區間再細分 16 格，誤差約 6%，記錄時不配置記憶體。
+ * 模擬執行緒與 EDT 會同時寫入不同實例，統計視窗輪替時才跨執行緒讀取，故方法皆同步。
+ */
+class Histogram {
+    private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+    private final long[] counts = new long[BUCKETS];
+    private long count, max, sum;
+
+    private static int index(long v) {
+        if (v < SUB) return (int) Math.max(v, 0);
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+    }
+
+    /** 桶的代表值 (區間中點) */
+    private static long value(int idx) {
+        if (idx < SUB) return idx;
+        int shift = idx / SUB - 1;
+        long lower = (long) (SUB + idx % SUB) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    public synchronized void record(long v) {
+        counts[index(v)]++; count++; sum += v;
+        if (v > max) max = v;
+    }
+
+    /** p 介於 0 到 100；沒有資料時回傳 0 */
+    public synchronized long percentile(double p) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * p / 100.0)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) { long v = value(i); return (v < 0 || v > max) ? max : v; } // 最高幾個桶的中點會溢位
+        }
+        return max;
+    }
+
+    public synchronized long count() { return count; }
+    public synchronized long max() { return max; }
+    public synchronized double mean() { return (count == 0) ? 0 : (double) sum / count; }
+
+    /** 把 other 的資料加進來 (呼叫端需固定 目的地 -> 來源 的鎖順序) */
+    public synchronized void add(Histogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+            count += other.count; sum += other.sum;
+            if (other.max > max) max = other.max;
+        }
+    }
+
+    public synchronized void reset() { Arrays.fill(counts, 0); count = max = sum = 0; }
+}
+
+/**
+ * 每幀的更新時間、繪圖時間、幀間隔抖動、掉幀數、配置量、輸入延遲與翻頁耗時統計。
+ * 更新時間由模擬執行緒以 recordUpdate 寫入，其餘在 EDT 以 beginFrame / endFrame 包住 paintFrame 記錄；
+ * 翻頁耗時只有 CanvasRenderer 會以 recordPresent 寫入。
+ * 資料每秒輪替一次：上一秒的結果供畫面疊加層顯示，同時累加到匯出區間與整場總計。
+ */
+class FrameStats {
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    private static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+
+    /** 一段時間內的統計；時間單位為奈秒，配置量為位元組 */
+    static final class Window {
+        final Histogram update = new Histogram(), paint = new Histogram(), jitter = new Histogram(), alloc = new Histogram();
+        final Histogram input = new Histogram(); // 按鍵到包含其結果的一幀畫完
+        final Histogram present = new Histogram(); // BufferStrategy.show (含等待垂直同步) 的耗時
+        long frames, missed;
+
+        void add(Window o) { update.add(o.update); paint.add(o.paint); jitter.add(o.jitter); alloc.add(o.alloc); input.add(o.input); present.add(o.present); frames += o.frames; missed += o.missed; }
+        void reset() { update.reset(); paint.reset(); jitter.reset(); alloc.reset(); input.reset(); present.reset(); frames = missed = 0; }
+        void copyFrom(Window o) { reset(); add(o); }
+    }
+
+    private final Window current = new Window(), last = new Window(), period = new Window(), total = new Window();
+    private final AtomicLong pendingSimAlloc = new AtomicLong();
+    private long windowStart, frameStart, prevFrameStart, frameAllocStart;
+    private int windowSerial;
+    private MetricsExporter exporter;
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+        if (!b.isThreadAllocatedMemorySupported()) return null;
+        b.setThreadAllocatedMemoryEnabled(true);
+        return b;
+    }
+
+    /** 目前執行緒累計配置的位元組數；JVM 不支援時回傳 -1 */
+    static long allocatedBytes() { return (THREADS != null) ? THREADS.getCurrentThreadAllocatedBytes() : -1; }
+
+    /** 模擬執行緒：一次 updateWorld 的耗時與配置量 (配置量併入下一幀) */
+    public void recordUpdate(long nanos, long allocBytes) {
+        current.update.record(nanos);
+        if (allocBytes > 0) pendingSimAlloc.addAndGet(allocBytes);
+    }
+
+    /** EDT：從按鍵事件進佇列到反映該輸入的一幀繪製完成的時間 */
+    public void recordInputLatency(long nanos) { current.input.record(nanos); }
+
+    /** EDT：一次翻頁 (show 與 Toolkit.sync) 的耗時 */
+    public void recordPresent(long nanos) { current.present.record(nanos); }
+
+    /** EDT：paintFrame 開始；frameCap 為 0 時以模擬頻率作為預期幀間隔 */
+    public void beginFrame(int frameCap) {
+        long now = System.nanoTime();
+        frameAllocStart = allocatedBytes();
+        if (prevFrameStart != 0) {
+            long target = 1_000_000_000L / ((frameCap > 0) ? frameCap : GameEngine.BASE_TICK_RATE);
+            long interval = now - prevFrameStart;
+            current.jitter.record(Math.abs(interval - target));
+            long slots = (interval + target / 2) / target; // 這段間隔原本應畫幾幀
+            if (slots > 1) current.missed += slots - 1;
+        }
+        prevFrameStart = frameStart = now;
+        if (windowStart == 0) windowStart = now;
+    }
+
+    /** EDT：paintFrame 結束，回傳本幀的繪製時間 */
+    public long endFrame() {
+        long now = System.nanoTime(), paint = now - frameStart;
+        current.paint.record(paint);
+        long alloc = allocatedBytes();
+        if (alloc >= 0) current.alloc.record(alloc - frameAllocStart + pendingSimAlloc.getAndSet(0));
+        current.frames++;
+        if (now - windowStart >= WINDOW_NANOS) roll(now);
+        return paint;
+    }
+
+    private synchronized void roll(long now) {
+        last.copyFrom(current);
+        period.add(current);
+        total.add(current);
+        current.reset();
+        windowStart = now;
+        windowSerial++;
+        if (exporter != null && exporter.due(now)) {
+            exporter.offer(period, total);
+            period.reset();
+        }
+    }
+
+    /** 上一個完整秒的統計 (疊加層顯示用)，每次輪替遞增 getWindowSerial() */
+    public Window getLastWindow() { return last; }
+    public int getWindowSerial() { return windowSerial; }
+
+    /** 開始定期匯出；path 不含副檔名，分別寫入 path.csv 與 path.json */
+    public synchronized void startExport(Path path, long periodNanos) {
+        if (exporter != null) return;
+        exporter = new MetricsExporter(path, periodNanos);
+        exporter.start();
+    }
+
+    /** 把尚未匯出的資料寫出 (程式結束前呼叫) */
+    public synchronized void flush() {
+        if (exporter == null) return;
+        period.add(current); total.add(current); current.reset();
+        exporter.offer(period, total);
+        period.reset();
+        exporter.drain();
+    }
+}
+
+/**
+ * 在背景執行緒把 FrameStats 寫成 CSV (每個匯出區間一列，附加寫入) 與 JSON (整場總計，每次整檔覆寫)，
+ * 方便在不同機器、不同版本之間比較。EDT 只負責複製資料，不做任何檔案 I/O。
+ */
+class MetricsExporter implements Runnable {
+    private static final String[] METRICS = {"update_ns", "paint_ns", "jitter_ns", "alloc_bytes", "input_latency_ns", "present_ns"};
+    private final Path csv, json;
+    private final long periodNanos;
+    private final FrameStats.Window period = new FrameStats.Window(), total = new FrameStats.Window();
+    private final long startedAt = System.currentTimeMillis();
+    private long lastExport = System.nanoTime();
+    private boolean pending, writing;
+
+    MetricsExporter(Path base, long periodNanos) {
+        String name = base.getFileName().toString();
+        this.csv = base.resolveSibling(name + ".csv");
+        this.json = base.resolveSibling(name + ".json");
+        this.periodNanos = periodNanos;
+    }
+
+    void start() {
+        Thread t = new Thread(this, "MetricsExporter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    boolean due(long now) { return now - lastExport >= periodNanos; }
+
+    /** 複製一份資料交給寫檔執行緒；上一份尚未寫完時合併進去 */
+    synchronized void offer(FrameStats.Window p, FrameStats.Window t) {
+        if (pending) period.add(p); else period.copyFrom(p);
+        total.copyFrom(t);
+        pending = true;
+        lastExport = System.nanoTime();
+        notifyAll();
+    }
+
+    /** 等待目前排定的資料寫完 */
+    synchronized void drain() {
+        try {
+            while (pending || writing) wait(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        StringBuilder row = new StringBuilder(), doc = new StringBuilder();
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (!pending) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                row.setLength(0); doc.setLength(0);
+                csvRow(row); jsonDoc(doc);
+                pending = false; writing = true;
+            }
+            try {
+                write(row, doc);
+            } catch (IOException e) {
+                System.err.println("效能統計匯出失敗: " + e.getMessage());
+            }
+            synchronized (this) { writing = false; notifyAll(); }
+        }
+    }
+
+    private void write(CharSequence row, CharSequence doc) throws IOException {
+        Path dir = csv.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        boolean header = !Files.exists(csv);
+        try (Writer w = Files.newBufferedWriter(csv, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (header) {
+                w.write("time,frames,missed");
+                for (String m : METRICS) w.write("," + m + "_p50," + m + "_p99," + m + "_max");
+                w.write('\n');
+            }
+            w.append(row).write('\n');
+        }
+        Path tmp = json.resolveSibling(json.getFileName() + ".tmp");
+        Files.writeString(tmp, doc, StandardCharsets.UTF_8);
+        Files.move(tmp, json, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void csvRow(StringBuilder b) {
+        b.append(Instant.now()).append(',').append(period.frames).append(',').append(period.missed);
+        for (Histogram h : histograms(period)) b.append(',').append(h.percentile(50)).append(',').append(h.percentile(99)).append(',').append(h.max());
+    }
+
+    private void jsonDoc(StringBuilder b) {
+        b.append("{\n  \"host\": \"").append(host()).append("\",\n");
+        b.append("  \"java\": \"").append(System.getProperty("java.vm.name")).append(' ').append(System.getProperty("java.version")).append("\",\n");
+        b.append("  \"os\": \"").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch")).append("\",\n");
+        b.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        b.append("  \"startedAt\": \"").append(Instant.ofEpochMilli(startedAt)).append("\",\n");
+        b.append("  \"updatedAt\": \"").append(Instant.now()).append("\",\n");
+        b.append("  \"frames\": ").append(total.frames).append(",\n  \"missed\": ").append(total.missed);
+        Histogram[] hs = histograms(total);
+        for (int i = 0; i < hs.length; i++) {
+            Histogram h = hs[i];
+            b.append(",\n  \"").append(METRICS[i]).append("\": {\"count\": ").append(h.count())
+             .append(", \"mean\": ").append(Math.round(h.mean()))
+             .append(", \"p50\": ").append(h.percentile(50)).append(", \"p90\": ").append(h.percentile(90))
+             .append(", \"p99\": ").append(h.percentile(99)).append(", \"p999\": ").append(h.percentile(99.9))
+             .append(", \"max\": ").append(h.max()).append('}');
+        }
+        b.append("\n}\n");
+    }
+
+    private static Histogram[] histograms(FrameStats.Window w) { return new Histogram[]{w.update, w.paint, w.jitter, w.alloc, w.input, w.present}; }
+
+    private static String host() {
+        try {
+            return InetAddress.getLocalHost().getHostName().replace("\\", "").replace("\"", "");
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
+
+// ==========================================
+// 14. 素材包 (AssetBundle)
+// ==========================================
+/**
+ * 把所有圖片與音樂預先解碼後打包成單一檔案，執行時以 FileChannel 記憶體映射讀取，依 id 取用。
+ * 格式 (big-endian)：magic、版本、筆數，接著每筆索引 [id, 類型, 寬/取樣率, 高/聲道, 旗標, 位移, 長度]，
+ * 資料區以 8 位元組對齊。圖片存成 int 像素 (有透明度者為 premultiplied ARGB)，音樂存成 PCM。
+ *
+ * 打包：java -cp ... memoryracing.AssetBundle <素材目錄> <輸出檔>   (mvn package 會自動執行)
+ */
+final class AssetBundle {
+    static final int MAGIC = 0x4D524742, VERSION = 1; // "MRGB"
+    static final byte IMAGE = 1, AUDIO = 2;
+    static final String FILE_NAME = "assets.bundle";
+    static final String BGM_ID = "music/bgm";
+    private static final String BGM_PATH = "music/bgm.wav"; // 儲存庫未附音樂檔，打包時可缺
+
+    /** 一筆索引 */
+    static final class Entry {
+        final String id; final byte type; final int a, b, flags; final long offset, length;
+        Entry(String id, byte type, int a, int b, int flags, long offset, long length) {
+            this.id = id; this.type = type; this.a = a; this.b = b; this.flags = flags; this.offset = offset; this.length = length;
+        }
+    }
+
+    private final Path path;
+    private final MappedByteBuffer data;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private AssetBundle(Path path, MappedByteBuffer data) throws IOException {
+        this.path = path;
+        this.data = data;
+        ByteBuffer b = data.duplicate();
+        if (b.getInt() != MAGIC) throw new IOException(path + " 不是素材包");
+        int version = b.getInt();
+        if (version != VERSION) throw new IOException(path + " 版本 " + version + " 不支援 (需要 " + VERSION + ")");
+        int count = b.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[b.getShort()];
+            b.get(id);
+            Entry e = new Entry(new String(id, StandardCharsets.UTF_8), b.get(), b.getInt(), b.getInt(), b.getInt(), b.getLong(), b.getLong());
+            if (e.offset + e.length > data.capacity()) throw new IOException(path + " 已損毀：" + e.id + " 超出檔案範圍");
+            entries.put(e.id, e);
+        }
+    }
+
+    public static AssetBundle open(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new AssetBundle(path, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size())); // 映射在通道關閉後仍有效
+        }
+    }
+
+    /**
+     * 依 memoryracing.bundle 屬性，或在 memoryracing.home 下的 assets.bundle、target/assets.bundle 尋找素材包；
+     * 找不到時回傳 null，呼叫端改讀散落的原始檔 (開發模式)。檔案存在但無法讀取時直接丟出例外。
+     */
+    public static AssetBundle locate() {
+        String explicit = System.getProperty("memoryracing.bundle");
+        String home = System.getProperty("memoryracing.home", ".");
+        Path[] candidates = (explicit != null) ? new Path[]{Path.of(explicit)}
+                : new Path[]{Path.of(home, FILE_NAME), Path.of(home, "target", FILE_NAME)};
+        for (Path p : candidates) {
+            if (!Files.isRegularFile(p)) {
+                if (explicit != null) throw new IllegalStateException("找不到素材包：" + p);
+                continue;
+            }
+            try {
+                return open(p);
+            } catch (IOException e) {
+                throw new IllegalStateException("無法讀取素材包 " + p, e);
+            }
+        }
+        return null;
+    }
+
+    /** 散落檔案的路徑 (image/p1.png) 對應的 id (image/p1) */
+    static String idOf(String path) {
+        int dot = path.lastIndexOf('.');
+        return (dot > path.lastIndexOf('/')) ? path.substring(0, dot) : path;
+    }
+
+    public boolean contains(String id) { return entries.containsKey(id); }
+    public Path getPath() { return path; }
+
+    /** 取得指定類型的素材索引，不存在或類型不符時丟出例外 */
+    public Entry require(String id, byte type) {
+        Entry e = entries.get(id);
+        if (e == null) throw new IllegalStateException("素材包 " + path + " 缺少素材：" + id);
+        if (e.type != type) throw new IllegalStateException("素材 " + id + " 類型為 " + e.type + "，預期 " + type);
+        return e;
+    }
+
+    /** 素材內容的唯讀視圖，直接指向映射的檔案內容，不複製 */
+    public ByteBuffer data(String id) {
+        Entry e = entries.get(id);
+        if (e == null) throw new IllegalStateException("素材包 " + path + " 缺少素材：" + id);
+        return data.duplicate().position((int) e.offset).limit((int) (e.offset + e.length)).slice().asReadOnlyBuffer();
+    }
+
+    /** 已解碼的像素整塊複製進 BufferedImage 的 raster，不再經過 ImageIO */
+    public BufferedImage image(String id) {
+        Entry e = require(id, IMAGE);
+        boolean alpha = (e.flags & 1) != 0;
+        BufferedImage img = new BufferedImage(e.a, e.b, alpha ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+        data(id).asIntBuffer().get(((DataBufferInt) img.getRaster().getDataBuffer()).getData());
+        return img;
+    }
+
+    public AudioFormat audioFormat(String id) {
+        Entry e = require(id, AUDIO);
+        int bits = e.flags & 0xFF;
+        boolean bigEndian = (e.flags & 0x100) != 0;
+        return new AudioFormat(e.a, bits, e.b, true, bigEndian);
+    }
+
+    // ---- 打包 ----
+
+    public static void main(String[] args) throws IOException, UnsupportedAudioFileException {
+        if (args.length != 2) {
+            System.err.println("用法：AssetBundle <素材目錄> <輸出檔>");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        Path out = Path.of(args[1]);
+        int n = pack(new File(args[0]), out);
+        System.out.printf("已打包 %d 個素材到 %s (%d KB，%.0f ms)%n", n, out, Files.size(out) / 1024, (System.nanoTime() - start) / 1e6);
+    }
+
+    /** 圖片缺一不可；找不到或無法解碼時丟出例外讓建置失敗。回傳打包的素材數 */
+    static int pack(File srcDir, Path out) throws IOException, UnsupportedAudioFileException {
+        List<String> ids = new ArrayList<>();
+        List<int[]> metas = new ArrayList<>(); // {類型, 寬/取樣率, 高/聲道, 旗標}
+        List<ByteBuffer> blobs = new ArrayList<>();
+        List<String> images = new ArrayList<>(Arrays.asList(GameAssets.PATHS));
+        images.addAll(ContentPack.DEFAULT.getAllPhotos());
+        for (String rel : images) {
+            File f = new File(srcDir, rel);
+            if (!f.isFile()) throw new FileNotFoundException("缺少素材：" + f);
+            BufferedImage src = ImageIO.read(f);
+            if (src == null) throw new IOException("無法解碼圖片：" + f);
+            boolean alpha = src.getColorModel().hasAlpha();
+            BufferedImage img = new BufferedImage(src.getWidth(), src.getHeight(), alpha ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = img.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(src, 0, 0, null);
+            g.dispose();
+            int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            ByteBuffer blob = ByteBuffer.allocate(px.length * 4);
+            blob.asIntBuffer().put(px);
+            ids.add(idOf(rel));
+            metas.add(new int[]{IMAGE, img.getWidth(), img.getHeight(), alpha ? 1 : 0});
+            blobs.add(blob);
+        }
+        File bgm = new File(srcDir, BGM_PATH);
+        if (bgm.isFile()) {
+            try (AudioInputStream in = AudioSystem.getAudioInputStream(bgm)) {
+                AudioFormat f = in.getFormat();
+                AudioFormat pcm = new AudioFormat(f.getSampleRate(), 16, f.getChannels(), true, false);
+                try (AudioInputStream conv = AudioSystem.getAudioInputStream(pcm, in)) {
+                    ids.add(BGM_ID);
+                    metas.add(new int[]{AUDIO, (int) pcm.getSampleRate(), pcm.getChannels(), 16});
+                    blobs.add(ByteBuffer.wrap(conv.readAllBytes()));
+                }
+            }
+        } else {
+            System.out.println("未找到 " + bgm + "，素材包不含背景音樂");
+        }
+
+        int indexSize = 12;
+        for (String id : ids) indexSize += 2 + id.getBytes(StandardCharsets.UTF_8).length + 1 + 12 + 16;
+        long offset = align(indexSize);
+        ByteBuffer index = ByteBuffer.allocate((int) offset);
+        index.putInt(MAGIC).putInt(VERSION).putInt(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] id = ids.get(i).getBytes(StandardCharsets.UTF_8);
+            int[] m = metas.get(i);
+            index.putShort((short) id.length).put(id).put((byte) m[0]).putInt(m[1]).putInt(m[2]).putInt(m[3]);
+            index.putLong(offset).putLong(blobs.get(i).capacity());
+            offset = align(offset + blobs.get(i).capacity());
+        }
+        index.position(0);
+
+        Path dir = out.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(ch, index);
+            for (ByteBuffer blob : blobs) {
+                blob.position(0);
+                write(ch, blob);
+                ch.position(align(ch.position()));
+            }
+        }
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return ids.size();
+    }
+
+    private static long align(long v) { return (v + 7) & ~7L; }
+
+    private static void write(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+}
+
+// ==========================================
+// 15. 輸入佇列 (InputQueue)
+// ==========================================
+/**
+ * 單一生產者 (EDT) / 單一消費者 (模擬執行緒) 的無鎖環狀佇列，事件帶有 nanoTime 時間戳。
+ * 生產者只寫 tail、消費者只寫 head，以 lazySet 發佈，兩邊都不會阻塞；佇列滿時丟棄新事件並計數。
+ */
+final class InputQueue {
+    public static final int PRESS = 0, RELEASE = 1;
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** 消費者處理事件的回呼 */
+    interface Sink { void accept(int kind, int keyCode, long nanos); }
+
+    private final int mask;
+    private final int[] codes;
+    private final byte[] kinds;
+    private final long[] times;
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    private volatile long dropped;
+
+    public InputQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        mask = capacity - 1;
+        codes = new int[capacity]; kinds = new byte[capacity]; times = new long[capacity];
+    }
+
+    /** 生產者：放入一筆事件，佇列已滿時回傳 false */
+    public boolean offer(int kind, int keyCode, long nanos) {
+        long t = tail.get();
+        if (t - head.get() > mask) { dropped++; return false; }
+        int i = (int) t & mask;
+        codes[i] = keyCode; kinds[i] = (byte) kind; times[i] = nanos;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /** 消費者：依序交給 sink 處理目前所有事件，回傳處理筆數 */
+    public int drain(Sink sink) {
+        long h = head.get(), t = tail.get();
+        for (long p = h; p < t; p++) {
+            int i = (int) p & mask;
+            sink.accept(kinds[i], codes[i], times[i]);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+
+    public int size() { return (int) (tail.get() - head.get()); }
+    public long getDroppedCount() { return dropped; }
+}
+
+/** 一位玩家的連打速度：保留最近 64 次按鍵時間，計算最近一秒內的次數 */
+final class MashMeter {
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    private final long[] stamps = new long[64];
+    private int next, recorded;
+    private long total;
+    private float peak;
+
+    public void record(long nanos) {
+        stamps[next] = nanos;
+        next = (next + 1) & (stamps.length - 1);
+        if (recorded < stamps.length) recorded++;
+        total++;
+        float r = rate(nanos);
+        if (r > peak) peak = r;
+    }
+
+    /** 截至 now 為止最近一秒的按鍵次數 */
+    public float rate(long now) {
+        int n = 0;
+        for (int i = 0; i < recorded; i++) if (now - stamps[i] < WINDOW_NANOS) n++;
+        return n;
+    }
+
+    /** 本回合最高的每秒按鍵次數 */
+    public float getPeak() { return peak; }
+    public long getTotal() { return total; }
+    public void reset() { next = recorded = 0; total = 0; peak = 0; }
+}
+
+// ==========================================
+// 16. 比賽重播 (ReplayRecorder / Replay / ReplayPlayer)
+// ==========================================
+/**
+ * 把一場比賽錄成精簡的二進位紀錄：seed、玩家名稱，以及依 tick 對齊的輸入、步長與素材等待點的變化。
+ * GameEngine 對同樣的 seed 與輸入序列會得到完全相同的結果，所以這些資料就足以重現整場比賽。
+ * 紀錄先寫進預先配置的緩衝區 (不配置記憶體)，只在每回合結束時寫檔，不會在賽跑中造成 I/O 停頓。
+ * 檔案到第一次寫檔時才建立，沒打完一回合就關掉遊戲不會留下空的重播檔。
+ *
+ * 檔案格式：magic "MRRP"、版本、seed、兩位玩家名稱，接著是一連串紀錄，每筆以標籤開頭並帶 tick 差值 (varint)：
+ * 常用按鍵以 0x80|索引 一個位元組表示，其餘按鍵為 KEY + zigzag 代碼；回合結束寫入檢查點供重播驗證。
+ */
+final class ReplayRecorder {
+    static final int MAGIC = 0x4D525250; // "MRRP"
+    static final byte VERSION = 2; // 2：出題方式改變 (RoundMemory、新題型)，舊紀錄無法重現
+    static final int TAG_KEY = 0, TAG_TICK_LENGTH = 1, TAG_READY = 2, TAG_ROUND = 3, TAG_END = 4, TAG_KNOWN_KEY = 0x80;
+    /** 以一個位元組記錄的常用按鍵，順序屬於檔案格式的一部分，只能往後新增 */
+    static final int[] KNOWN_KEYS = {
+        KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT, KeyEvent.VK_A, KeyEvent.VK_D, KeyEvent.VK_SPACE,
+        KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3, KeyEvent.VK_NUMPAD1, KeyEvent.VK_NUMPAD2, KeyEvent.VK_NUMPAD3,
+        GameEngine.CMD_START, GameEngine.CMD_INSTRUCTIONS, GameEngine.CMD_BACK
+    };
+    public static final int DEFAULT_CAPACITY = 64 * 1024; // 一回合約數百筆按鍵，遠小於此
+    private static final int MAX_RECORD = 1 + 10 + 10;
+
+    private final Path path;
+    private final byte[] buf;
+    private final ByteBuffer out;
+    private FileChannel channel; // 第一次寫檔時才開啟
+    private GameEngine engine;
+    private int len;
+    private long lastTick, bytesWritten;
+    private boolean headerWritten, finished;
+
+    ReplayRecorder(Path path, int capacity) {
+        this.path = path;
+        this.buf = new byte[capacity];
+        this.out = ByteBuffer.wrap(buf);
+    }
+
+    /** 由 GameEngine.setRecorder 呼叫；seed 與名稱在第一次寫檔時才寫入檔頭 (開賽前仍可改名) */
+    void begin(GameEngine engine) { this.engine = engine; }
+
+    void input(long tick, int keyCode) {
+        if (finished) return;
+        ensure();
+        int known = knownIndex(keyCode);
+        if (known >= 0) {
+            buf[len++] = (byte) (TAG_KNOWN_KEY | known);
+            delta(tick);
+        } else {
+            buf[len++] = TAG_KEY;
+            delta(tick);
+            varint((keyCode << 1) ^ (keyCode >> 31));
+        }
+    }
+
+    void tickLength(long tick, float dt) {
+        if (finished) return;
+        ensure();
+        buf[len++] = TAG_TICK_LENGTH;
+        delta(tick);
+        varint(Float.floatToIntBits(dt) & 0xFFFFFFFFL);
+    }
+
+    void ready(long tick, boolean ready) {
+        if (finished) return;
+        ensure();
+        buf[len++] = TAG_READY;
+        delta(tick);
+        buf[len++] = (byte) (ready ? 1 : 0);
+    }
+
+    /** 回合結束：寫入檢查點並把緩衝區寫檔；比賽結束時另寫結束標記並關檔 */
+    void roundEnd(long tick, GameEngine e) {
+        if (finished) return;
+        ensure();
+        buf[len++] = TAG_ROUND;
+        delta(tick);
+        buf[len++] = (byte) e.currentRound;
+        buf[len++] = (byte) e.difficulty.ordinal();
+        varint(e.p1Score);
+        varint(e.p2Score);
+        if (e.currentState == GameEngine.State.GAME_OVER) {
+            buf[len++] = TAG_END;
+            delta(tick);
+            flush();
+            close();
+        } else flush();
+    }
+
+    private static int knownIndex(int keyCode) {
+        for (int i = 0; i < KNOWN_KEYS.length; i++) if (KNOWN_KEYS[i] == keyCode) return i;
+        return -1;
+    }
+
+    private void delta(long tick) {
+        varint(tick - lastTick);
+        lastTick = tick;
+    }
+
+    private void varint(long v) {
+        while ((v & ~0x7FL) != 0) { buf[len++] = (byte) ((v & 0x7F) | 0x80); v >>>= 7; }
+        buf[len++] = (byte) v;
+    }
+
+    /** 緩衝區快滿時提早寫檔 (正常情況下一回合用不完) */
+    private void ensure() {
+        if (len + MAX_RECORD > buf.length) flush();
+    }
+
+    private void flush() {
+        try {
+            if (channel == null) {
+                Path dir = path.toAbsolutePath().getParent();
+                if (dir != null) Files.createDirectories(dir);
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            if (!headerWritten) {
+                byte[] n1 = engine.p1Name.getBytes(StandardCharsets.UTF_8), n2 = engine.p2Name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 4 + n1.length + n2.length);
+                header.putInt(MAGIC).put(VERSION).putLong(engine.getSeed());
+                header.putShort((short) n1.length).put(n1).putShort((short) n2.length).put(n2).flip();
+                while (header.hasRemaining()) bytesWritten += channel.write(header);
+                headerWritten = true;
+            }
+            out.clear().limit(len);
+            while (out.hasRemaining()) bytesWritten += channel.write(out);
+        } catch (IOException e) {
+            System.out.println("重播檔寫入失敗，停止錄製: " + e.getMessage());
+            close();
+        }
+        len = 0;
+    }
+
+    void close() {
+        finished = true;
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("重播檔關閉失敗: " + e.getMessage());
+        }
+    }
+
+    public Path getPath() { return path; }
+    public long getBytesWritten() { return bytesWritten; }
+}
+
+/** 讀進記憶體的重播檔 */
+final class Replay {
+    final long seed;
+    final String p1Name, p2Name;
+    final byte[] records;
+
+    private Replay(long seed, String p1Name, String p2Name, byte[] records) {
+        this.seed = seed; this.p1Name = p1Name; this.p2Name = p2Name; this.records = records;
+    }
+
+    public static Replay read(Path path) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (b.remaining() < 17 || b.getInt() != ReplayRecorder.MAGIC) throw new IOException(path + " 不是重播檔");
+        byte version = b.get();
+        if (version != ReplayRecorder.VERSION) throw new IOException(path + " 版本 " + version + " 不支援");
+        long seed = b.getLong();
+        String p1 = utf(b), p2 = utf(b);
+        byte[] records = new byte[b.remaining()];
+        b.get(records);
+        return new Replay(seed, p1, p2, records);
+    }
+
+    private static String utf(ByteBuffer b) {
+        byte[] s = new byte[b.getShort()];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * 依重播檔推進一個新的 GameEngine：每一步先套用屬於這個 tick 的紀錄，再呼叫 updateWorld。
+ * 遇到回合檢查點時比對回合、難度與分數，不一致就丟出例外，代表引擎邏輯已與錄製時不同。
+ * 可交給 GamePanel 以原速播放，或以 main 在無畫面下全速驗證。
+ */
+final class ReplayPlayer {
+    private final Replay replay;
+    private final GameEngine engine;
+    private int pos, nextTag = -1, checkpoints;
+    private long nextTick, lastTick;
+    private float tickLength = 1f / GameEngine.BASE_TICK_RATE;
+    private boolean ready = true, ended;
+
+    public ReplayPlayer(Replay replay) {
+        this.replay = replay;
+        this.engine = new GameEngine(replay.seed);
+        engine.p1Name = replay.p1Name;
+        engine.p2Name = replay.p2Name;
+        engine.setReadinessBarrier(() -> ready);
+        readHeader();
+        // 第一筆通常是 tick 0 的步長，先套用好讓播放端依錄製時的頻率推進
+        if (nextTag == ReplayRecorder.TAG_TICK_LENGTH && nextTick == 0) applyPending();
+    }
+
+    public GameEngine getEngine() { return engine; }
+    public float getTickLength() { return tickLength; }
+    /** 已讀到結束標記 (比賽結束後引擎仍可繼續推進動畫) */
+    public boolean isEnded() { return ended; }
+    public int getCheckpointCount() { return checkpoints; }
+
+    /** 套用本 tick 的紀錄並推進一步；呼叫端需持有 engine 鎖 (GameLoop 已處理) */
+    public void step() {
+        applyPending();
+        engine.updateWorld(tickLength);
+    }
+
+    private void applyPending() {
+        long tick = engine.getTickIndex();
+        while (nextTag >= 0 && nextTick <= tick) {
+            if (nextTick < tick) throw new IllegalStateException("重播紀錄的 tick " + nextTick + " 已經過去 (目前 " + tick + ")");
+            int tag = nextTag;
+            if ((tag & ReplayRecorder.TAG_KNOWN_KEY) != 0) engine.handleInput(ReplayRecorder.KNOWN_KEYS[tag & 0x7F]);
+            else switch (tag) {
+                case ReplayRecorder.TAG_KEY: {
+                    int z = (int) varint();
+                    engine.handleInput((z >>> 1) ^ -(z & 1));
+                    break;
+                }
+                case ReplayRecorder.TAG_TICK_LENGTH: tickLength = Float.intBitsToFloat((int) varint()); break;
+                case ReplayRecorder.TAG_READY: ready = replay.records[pos++] != 0; break;
+                case ReplayRecorder.TAG_ROUND: verify(tick, replay.records[pos++], replay.records[pos++], (int) varint(), (int) varint()); break;
+                case ReplayRecorder.TAG_END: ended = true; break;
+                default: throw new IllegalStateException("未知的重播紀錄標籤 " + tag + " (位置 " + pos + ")");
+            }
+            readHeader();
+        }
+    }
+
+    private void verify(long tick, int round, int difficulty, int p1Score, int p2Score) {
+        if (engine.currentRound != round || engine.difficulty.ordinal() != difficulty || engine.p1Score != p1Score || engine.p2Score != p2Score)
+            throw new IllegalStateException(String.format("重播在 tick %d 不同步：預期 回合 %d 難度 %d 分數 %d:%d，實際 回合 %d 難度 %d 分數 %d:%d",
+                    tick, round, difficulty, p1Score, p2Score, engine.currentRound, engine.difficulty.ordinal(), engine.p1Score, engine.p2Score));
+        checkpoints++;
+    }
+
+    /** 讀下一筆的標籤與 tick；沒有資料時 nextTag 為 -1 */
+    private void readHeader() {
+        if (pos >= replay.records.length) { nextTag = -1; return; }
+        nextTag = replay.records[pos++] & 0xFF;
+        nextTick = lastTick + varint();
+        lastTick = nextTick;
+    }
+
+    private long varint() {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = replay.records[pos++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+    }
+
+    /** 無畫面全速重播並驗證所有檢查點：java -Djava.awt.headless=true -cp ... memoryracing.ReplayPlayer 檔案... */
+    public static void main(String[] args) throws IOException {
+        int failed = 0;
+        for (String arg : args) {
+            long start = System.nanoTime();
+            ReplayPlayer player = new ReplayPlayer(Replay.read(Path.of(arg)));
+            try {
+                while (!player.isEnded() && player.nextTag >= 0) player.step();
+                GameEngine e = player.getEngine();
+                System.out.printf("%s: %d ticks，%s %d : %d %s，%d 個檢查點通過，%.1f ms%n", arg, e.getTickIndex(),
+                        e.p1Name, e.p1Score, e.p2Score, e.p2Name, player.getCheckpointCount(), (System.nanoTime() - start) / 1e6);
+            } catch (IllegalStateException ex) {
+                System.out.println(arg + ": " + ex.getMessage());
+                failed++;
+            }
+        }
+        if (failed > 0) System.exit(1);
+    }
+}
+
+// ==========================================
+// 17. 連線對戰 (NetServer / NetClient)
+// ==========================================
+/**
+ * 連線對戰的 UDP 封包格式。伺服器是唯一的權威端，用戶端只送按鍵、顯示伺服器送來的狀態。
+ * HELLO(版本, 名稱) -> WELCOME(座位, seed, tick 頻率)；之後用戶端持續送 INPUT，伺服器定期回 SNAPSHOT。
+ * INPUT 帶著所有尚未被確認的按鍵 (序號連續)，掉包時下一個封包自然補上；
+ * SNAPSHOT 相對於用戶端最後確認收到的快照做差分編碼，只送有變化的欄位。
+ */
+final class NetProtocol {
+    static final byte VERSION = 2; // 2：新增 FIRST / MOST 題型
+    static final byte HELLO = 1, WELCOME = 2, INPUT = 3, SNAPSHOT = 4, REJECT = 5, BYE = 6;
+    /** 與座位無關的步伐鍵：左鍵 / A 為 STEP_A，右鍵 / D 為 STEP_B，伺服器再依座位換成該玩家的按鍵 */
+    static final int STEP_A = 0x10000, STEP_B = 0x10001;
+    static final int MAX_PACKET = 1200;
+    static final int MAX_NAME = 16;   // 玩家名稱上限 (code point)，快照每次完整狀態都會帶上雙方名稱
+    static final int MAX_INPUTS = 64; // 單一封包最多重送的未確認按鍵數
+    static final int HISTORY = 64;    // 雙方保留的快照數，差分的基準必須在這個範圍內
+    static final int DEFAULT_PORT = 47800;
+
+    static void putString(ByteBuffer b, String s) {
+        byte[] u = s.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short) u.length).put(u);
+    }
+
+    /** putString 會寫出的位元組數 */
+    static int stringSize(String s) {
+        int n = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n += 1;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) { n += 4; i++; }
+            else n += 3;
+        }
+        return n;
+    }
+
+    static String getString(ByteBuffer b) {
+        byte[] u = new byte[b.getShort() & 0xFFFF];
+        b.get(u);
+        return new String(u, StandardCharsets.UTF_8);
+    }
+
+    /** 讀 INPUT 封包 (類型之後的部分)，依序把新按鍵放進 peer 所在的比賽；佇列滿就停，剩下的等重送 */
+    static void readInputs(ByteBuffer in, NetSession.Peer peer) {
+        int ackTick = in.getInt(), firstSeq = in.getInt(), count = in.get() & 0xFF;
+        if (ackTick > peer.ackTick) peer.ackTick = ackTick;
+        for (int i = 0; i < count; i++) {
+            int code = in.getInt();
+            if (firstSeq + i != peer.receivedSeq + 1) continue; // 已收過的重送
+            if (!peer.session.offer(peer, firstSeq + i, code)) return;
+            peer.receivedSeq++;
+        }
+    }
+}
+
+/**
+ * 一份快照的共享狀態。伺服器為每位用戶端保留送出過的版本，以便和對方確認過的那份比較出差異；
+ * 題目與事件只在序號改變時才送文字。字串與選項陣列建立後不再修改，複製時直接共用參照。
+ */
+final class NetState {
+    static final int F_STATE = 1, F_ROUND = 1 << 1, F_POS = 1 << 2, F_SCORE = 1 << 3, F_STEPS = 1 << 4, F_COUNTDOWN = 1 << 5,
+            F_QUIZ = 1 << 6, F_NAMES = 1 << 7, F_QUESTION = 1 << 8, F_EVENT = 1 << 9, F_SKY = 1 << 10, F_ALL = (1 << 11) - 1;
+    static final byte EV_NONE = 0, EV_RACE = 1, EV_TURN = 2, EV_RESULT = 3;
+    private static final String[] NO_OPTIONS = new String[0];
+
+    int tick = -1;
+    byte state, round = 1, difficulty;
+    float p1Pos = 50, p2Pos = 50;
+    short p1Score, p2Score;
+    byte p1Step = -1, p2Step = -1; // 上一個有效步伐：0 = STEP_A，1 = STEP_B
+    byte countdown = 3, winner, quizPlayer, quizAttempts;
+    String p1Name = "", p2Name = "";
+    int questionSerial; byte questionType; String questionText = ""; String[] options = NO_OPTIONS;
+    int eventSerial; byte eventKind, eventArg; String eventText = "";
+    int skyEpoch; long spawnSerial;
+
+    void copyFrom(NetState o) {
+        tick = o.tick; state = o.state; round = o.round; difficulty = o.difficulty;
+        p1Pos = o.p1Pos; p2Pos = o.p2Pos; p1Score = o.p1Score; p2Score = o.p2Score; p1Step = o.p1Step; p2Step = o.p2Step;
+        countdown = o.countdown; winner = o.winner; quizPlayer = o.quizPlayer; quizAttempts = o.quizAttempts;
+        p1Name = o.p1Name; p2Name = o.p2Name;
+        questionSerial = o.questionSerial; questionType = o.questionType; questionText = o.questionText; options = o.options;
+        eventSerial = o.eventSerial; eventKind = o.eventKind; eventArg = o.eventArg; eventText = o.eventText;
+        skyEpoch = o.skyEpoch; spawnSerial = o.spawnSerial;
+    }
+
+    /** 把 mask 中的欄位改回 o 的值；快照放不下而略過的欄位要記成用戶端手上的版本，下一份才會重送 */
+    void copySections(NetState o, int mask) {
+        if ((mask & F_NAMES) != 0) { p1Name = o.p1Name; p2Name = o.p2Name; }
+        if ((mask & F_QUESTION) != 0) { questionSerial = o.questionSerial; questionType = o.questionType; questionText = o.questionText; options = o.options; }
+        if ((mask & F_EVENT) != 0) { eventSerial = o.eventSerial; eventKind = o.eventKind; eventArg = o.eventArg; eventText = o.eventText; }
+    }
+
+    /** write(b, mask) 會寫出的位元組數 */
+    int size(int mask) {
+        int n = 2;
+        if ((mask & F_STATE) != 0) n += 1;
+        if ((mask & F_ROUND) != 0) n += 2;
+        if ((mask & F_POS) != 0) n += 8;
+        if ((mask & F_SCORE) != 0) n += 4;
+        if ((mask & F_STEPS) != 0) n += 2;
+        if ((mask & F_COUNTDOWN) != 0) n += 1;
+        if ((mask & F_QUIZ) != 0) n += 3;
+        if ((mask & F_NAMES) != 0) n += NetProtocol.stringSize(p1Name) + NetProtocol.stringSize(p2Name);
+        if ((mask & F_QUESTION) != 0) {
+            n += 5 + NetProtocol.stringSize(questionText) + 1;
+            for (String o : options) n += NetProtocol.stringSize(o);
+        }
+        if ((mask & F_EVENT) != 0) n += 6 + NetProtocol.stringSize(eventText);
+        if ((mask & F_SKY) != 0) n += 4;
+        return n;
+    }
+
+    /** 與 base 不同的欄位；base 為 null 時送完整狀態 */
+    int diff(NetState base) {
+        if (base == null) return F_ALL;
+        int m = 0;
+        if (state != base.state) m |= F_STATE;
+        if (round != base.round || difficulty != base.difficulty) m |= F_ROUND;
+        if (p1Pos != base.p1Pos || p2Pos != base.p2Pos) m |= F_POS;
+        if (p1Score != base.p1Score || p2Score != base.p2Score) m |= F_SCORE;
+        if (p1Step != base.p1Step || p2Step != base.p2Step) m |= F_STEPS;
+        if (countdown != base.countdown) m |= F_COUNTDOWN;
+        if (winner != base.winner || quizPlayer != base.quizPlayer || quizAttempts != base.quizAttempts) m |= F_QUIZ;
+        if (!p1Name.equals(base.p1Name) || !p2Name.equals(base.p2Name)) m |= F_NAMES;
+        if (questionSerial != base.questionSerial) m |= F_QUESTION;
+        if (eventSerial != base.eventSerial) m |= F_EVENT;
+        if (skyEpoch != base.skyEpoch) m |= F_SKY;
+        return m;
+    }
+
+    void write(ByteBuffer b, int mask) {
+        b.putShort((short) mask);
+        if ((mask & F_STATE) != 0) b.put(state);
+        if ((mask & F_ROUND) != 0) b.put(round).put(difficulty);
+        if ((mask & F_POS) != 0) b.putFloat(p1Pos).putFloat(p2Pos);
+        if ((mask & F_SCORE) != 0) b.putShort(p1Score).putShort(p2Score);
+        if ((mask & F_STEPS) != 0) b.put(p1Step).put(p2Step);
+        if ((mask & F_COUNTDOWN) != 0) b.put(countdown);
+        if ((mask & F_QUIZ) != 0) b.put(winner).put(quizPlayer).put(quizAttempts);
+        if ((mask & F_NAMES) != 0) { NetProtocol.putString(b, p1Name); NetProtocol.putString(b, p2Name); }
+        if ((mask & F_QUESTION) != 0) {
+            b.putInt(questionSerial).put(questionType);
+            NetProtocol.putString(b, questionText);
+            b.put((byte) options.length);
+            for (String o : options) NetProtocol.putString(b, o);
+        }
+        if ((mask & F_EVENT) != 0) { b.putInt(eventSerial).put(eventKind).put(eventArg); NetProtocol.putString(b, eventText); }
+        if ((mask & F_SKY) != 0) b.putInt(skyEpoch);
+    }
+
+    /** 讀入 write 寫出的欄位，其餘保持原值 (呼叫前先複製基準)；回傳遮罩 */
+    int read(ByteBuffer b) {
+        int mask = b.getShort() & 0xFFFF;
+        if ((mask & F_STATE) != 0) state = b.get();
+        if ((mask & F_ROUND) != 0) { round = b.get(); difficulty = b.get(); }
+        if ((mask & F_POS) != 0) { p1Pos = b.getFloat(); p2Pos = b.getFloat(); }
+        if ((mask & F_SCORE) != 0) { p1Score = b.getShort(); p2Score = b.getShort(); }
+        if ((mask & F_STEPS) != 0) { p1Step = b.get(); p2Step = b.get(); }
+        if ((mask & F_COUNTDOWN) != 0) countdown = b.get();
+        if ((mask & F_QUIZ) != 0) { winner = b.get(); quizPlayer = b.get(); quizAttempts = b.get(); }
+        if ((mask & F_NAMES) != 0) { p1Name = NetProtocol.getString(b); p2Name = NetProtocol.getString(b); }
+        if ((mask & F_QUESTION) != 0) {
+            questionSerial = b.getInt(); questionType = b.get();
+            questionText = NetProtocol.getString(b);
+            options = new String[b.get()];
+            for (int i = 0; i < options.length; i++) options[i] = NetProtocol.getString(b);
+        }
+        if ((mask & F_EVENT) != 0) { eventSerial = b.getInt(); eventKind = b.get(); eventArg = b.get(); eventText = NetProtocol.getString(b); }
+        if ((mask & F_SKY) != 0) skyEpoch = b.getInt();
+        return mask;
+    }
+}
+
+/**
+ * 送出封包的出口，可模擬單向延遲、抖動與掉包 (測試用，或以 -Dmemoryracing.net.latency / jitter / loss 設定)。
+ * 條件為零時直接寫入 channel；否則複製一份依到期時間排隊，由擁有者的迴圈呼叫 pump 送出。
+ */
+final class NetLink {
+    static final class Conditions {
+        static final Conditions NONE = new Conditions(0, 0, 0);
+        final int latencyMs, jitterMs; final double lossPercent;
+        Conditions(int latencyMs, int jitterMs, double lossPercent) { this.latencyMs = latencyMs; this.jitterMs = jitterMs; this.lossPercent = lossPercent; }
+        boolean isNone() { return latencyMs == 0 && jitterMs == 0 && lossPercent == 0; }
+
+        static Conditions fromSystemProperties() {
+            return new Conditions(Integer.getInteger("memoryracing.net.latency", 0), Integer.getInteger("memoryracing.net.jitter", 0),
+                    Double.parseDouble(System.getProperty("memoryracing.net.loss", "0")));
+        }
+    }
+
+    private static final class Delayed {
+        final long due; final SocketAddress to; final byte[] data;
+        Delayed(long due, SocketAddress to, byte[] data) { this.due = due; this.to = to; this.data = data; }
+    }
+
+    private final DatagramChannel channel;
+    private final Conditions conditions;
+    private final SplittableRandom random;
+    private final PriorityQueue<Delayed> queue = new PriorityQueue<>(Comparator.comparingLong((Delayed d) -> d.due));
+    long bytesOut, packetsOut, dropped;
+
+    NetLink(DatagramChannel channel, Conditions conditions, long seed) {
+        this.channel = channel;
+        this.conditions = conditions;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /** 送出 b 的 position 到 limit；UDP 送不出去 (緩衝區滿) 時與掉包同樣處理 */
+    void send(ByteBuffer b, SocketAddress to) throws IOException {
+        int n = b.remaining();
+        bytesOut += n; packetsOut++;
+        if (conditions.isNone()) { if (channel.send(b, to) == 0) dropped++; return; }
+        if (random.nextDouble() * 100 < conditions.lossPercent) { dropped++; return; }
+        long delay = conditions.latencyMs + ((conditions.jitterMs > 0) ? random.nextInt(-conditions.jitterMs, conditions.jitterMs + 1) : 0);
+        byte[] copy = new byte[n];
+        b.get(copy);
+        queue.add(new Delayed(System.nanoTime() + Math.max(0, delay) * 1_000_000L, to, copy));
+    }
+
+    void pump(long now) throws IOException {
+        while (!queue.isEmpty() && queue.peek().due - now <= 0) {
+            Delayed d = queue.poll();
+            if (channel.send(ByteBuffer.wrap(d.data), d.to) == 0) dropped++;
+        }
+    }
+
+    /** 下一個排隊封包的到期時間；沒有時回傳 Long.MAX_VALUE */
+    long nextDue() { return queue.isEmpty() ? Long.MAX_VALUE : queue.peek().due; }
+}
+
+/**
+ * 一場連線比賽：權威的 GameEngine、兩個座位、天空物件生成紀錄與快照編碼，由 NetServer 與 MatchServer 共用。
+ * 收封包的執行緒以 offer 把按鍵連同座位與序號放進無鎖佇列，推進比賽的執行緒在每個 tick 開頭套用，
+ * 所以一場比賽同時只有一條執行緒在改動引擎；座位以 AtomicReferenceArray 在兩條執行緒之間發佈。
+ * 天空物件由伺服器決定：每次生成記進紀錄環，快照補送用戶端尚未確認的部分，用戶端自行推進位置。
+ */
+final class NetSession {
+    /** 送出一個已 flip 的封包 */
+    interface Sender { void send(ByteBuffer b, SocketAddress to) throws IOException; }
+
+    private static final int SPAWN_LOG = 64, MAX_SPAWNS_PER_PACKET = 32, INBOX_CAPACITY = 64;
+    // 生成清單標頭與每筆生成的大小
+    private static final int SPAWN_HEADER = 9, SPAWN_BYTES = 22;
+    // 放不下時依序略過的文字欄位：事件最不要緊，名稱最後才放棄
+    private static final int[] DROP_ORDER = { NetState.F_EVENT, NetState.F_QUESTION, NetState.F_NAMES };
+    private static final NetState BLANK = new NetState();
+
+    /** 一個座位上的用戶端；receivedSeq / lastHeard / bytesIn 屬於收封包執行緒，其餘計數屬於 tick 執行緒 */
+    static final class Peer {
+        final SocketAddress address; final int slot; final String name; final NetSession session;
+        int receivedSeq, appliedSeq;
+        volatile int ackTick = -1;
+        long lastHeard, bytesIn, packetsIn, bytesOut, packetsOut;
+        final NetState[] history = new NetState[NetProtocol.HISTORY];
+        Peer(SocketAddress address, int slot, String name, NetSession session) {
+            this.address = address; this.slot = slot; this.name = name; this.session = session;
+            for (int i = 0; i < history.length; i++) history[i] = new NetState();
+        }
+    }
+
+    private final GameEngine engine;
+    private final int snapshotInterval;
+    private final float dt = 1f / GameEngine.BASE_TICK_RATE;
+    private final AtomicReferenceArray<Peer> seats = new AtomicReferenceArray<>(2);
+    // 佇列的 kind 欄位放座位 (1 或 2)，時間欄位放按鍵序號
+    private final InputQueue inbox = new InputQueue(INBOX_CAPACITY);
+    private final InputQueue.Sink applier = this::applyQueued;
+    private final NetState current = new NetState();
+    // 天空物件生成紀錄環，以累計序號取餘數定位
+    private final int[] logTick = new int[SPAWN_LOG], logKind = new int[SPAWN_LOG], logEpoch = new int[SPAWN_LOG];
+    private final float[] logX = new float[SPAWN_LOG], logY = new float[SPAWN_LOG], logSpeed = new float[SPAWN_LOG];
+    private long spawnSerial, seenSpawns;
+    private int questionSerial; // 已放進快照的題目序號 (0 表示還沒出題)
+    private volatile boolean used; // 曾有玩家加入，全部離開後即可回收
+
+    NetSession(long seed, int snapshotInterval) {
+        this.engine = new GameEngine(seed, 0); // 伺服器不畫粒子
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+        engine.setReadinessBarrier(null);
+        engine.setListener(new GameListener() {
+            @Override
+            public void onRaceFinished(int winner) { event(NetState.EV_RACE, winner, ""); }
+            @Override
+            public void onTurnPassed(int nextPlayer) { event(NetState.EV_TURN, nextPlayer, ""); }
+            @Override
+            public void onRoundResult(boolean correct, String feedback) { event(NetState.EV_RESULT, correct ? 1 : 0, feedback); }
+        });
+    }
+
+    private void event(byte kind, int arg, String text) {
+        current.eventSerial++; current.eventKind = kind; current.eventArg = (byte) arg; current.eventText = (text != null) ? text : "";
+    }
+
+    /** 只能在 tick 執行緒上 (或比賽停止後) 讀取 */
+    public GameEngine getEngine() { return engine; }
+    public Peer seat(int index) { return seats.get(index); }
+    public int playerCount() { return ((seats.get(0) != null) ? 1 : 0) + ((seats.get(1) != null) ? 1 : 0); }
+    public boolean isUsed() { return used; }
+
+    /** 佔一個空位；已滿時回傳 null。同一場的 join / leave 由呼叫端序列化 */
+    Peer join(SocketAddress from, String name) {
+        int free = (seats.get(0) == null) ? 0 : (seats.get(1) == null) ? 1 : -1;
+        if (free < 0) return null;
+        Peer p = new Peer(from, free + 1, name.isBlank() ? "玩家" + (free + 1) : clampName(name), this);
+        p.lastHeard = System.nanoTime();
+        seats.set(free, p);
+        used = true;
+        return p;
+    }
+
+    void leave(Peer p) { seats.compareAndSet(p.slot - 1, p, null); }
+
+    /** 讓出兩個座位 (比賽出錯時由伺服器踢掉雙方)，之後 playerCount 為 0、可被回收 */
+    void evictAll() { seats.set(0, null); seats.set(1, null); }
+
+    /** 去掉前後空白並截到 MAX_NAME 個 code point */
+    static String clampName(String name) {
+        String s = name.strip();
+        if (s.codePointCount(0, s.length()) <= NetProtocol.MAX_NAME) return s;
+        return s.substring(0, s.offsetByCodePoints(0, NetProtocol.MAX_NAME)).strip();
+    }
+
+    /** 收封包執行緒：放入一個按鍵；佇列滿時回傳 false，呼叫端不要推進序號，等用戶端重送 */
+    boolean offer(Peer p, int seq, int code) { return inbox.offer(p.slot, code, seq); }
+
+    void welcome(Peer p, ByteBuffer out, Sender sender) throws IOException {
+        out.clear();
+        out.put(NetProtocol.WELCOME).put((byte) p.slot).putLong(engine.getSeed()).put((byte) GameEngine.BASE_TICK_RATE);
+        out.flip();
+        sender.send(out, p.address);
+    }
+
+    private void applyQueued(int slot, int code, long seq) {
+        Peer p = seats.get(slot - 1);
+        if (p == null) return;
+        p.appliedSeq = (int) seq;
+        switch (code) {
+            case KeyEvent.VK_LEFT: case KeyEvent.VK_RIGHT: case KeyEvent.VK_A: case KeyEvent.VK_D:
+                return; // 步伐一律以座位無關的 STEP 代碼傳送
+            case NetProtocol.STEP_A: engine.handleInput((slot == 1) ? KeyEvent.VK_LEFT : KeyEvent.VK_A); return;
+            case NetProtocol.STEP_B: engine.handleInput((slot == 1) ? KeyEvent.VK_RIGHT : KeyEvent.VK_D); return;
+            case KeyEvent.VK_1: case KeyEvent.VK_2: case KeyEvent.VK_3:
+            case KeyEvent.VK_NUMPAD1: case KeyEvent.VK_NUMPAD2: case KeyEvent.VK_NUMPAD3:
+                if (engine.currentState == GameEngine.State.QUIZ && engine.currentQuizPlayer != slot) return;
+                break;
+            default:
+                if (engine.currentState == GameEngine.State.START && playerCount() < 2) return;
+                break;
+        }
+        engine.handleInput(code);
+    }
+
+    /** 套用佇列中的按鍵、推進一步，輪到時對每個座位送出快照；out 為呼叫端執行緒專用的緩衝區 */
+    void tick(ByteBuffer out, Sender sender) throws IOException {
+        inbox.drain(applier);
+        Peer a = seats.get(0), b = seats.get(1);
+        if (a != null) engine.p1Name = a.name;
+        if (b != null) engine.p2Name = b.name;
+        engine.updateWorld(dt);
+        logSpawn();
+        int tick = (int) engine.getTickIndex();
+        if (tick % snapshotInterval == 0) {
+            capture(tick);
+            if (a != null) sendSnapshot(a, out, sender);
+            if (b != null) sendSnapshot(b, out, sender);
+        }
+    }
+
+    /** 每個 tick 最多生成一個天空物件；生成後同一 tick 又被清空的 (倒數結束) 不必記 */
+    private void logSpawn() {
+        SkyObjectStore sky = engine.skyObjects;
+        if (sky.spawnCount() == seenSpawns) return;
+        seenSpawns = sky.spawnCount();
+        int i = sky.newestIndex();
+        if (i < 0) return;
+        int slot = (int) (++spawnSerial % SPAWN_LOG);
+        logTick[slot] = (int) engine.getTickIndex(); logKind[slot] = sky.kind[i]; logEpoch[slot] = sky.clearCount();
+        logX[slot] = sky.x[i]; logY[slot] = sky.y[i]; logSpeed[slot] = sky.speed[i];
+    }
+
+    private void capture(int tick) {
+        GameEngine e = engine;
+        NetState s = current;
+        s.tick = tick;
+        s.state = (byte) e.currentState.ordinal(); s.round = (byte) e.currentRound; s.difficulty = (byte) e.difficulty.ordinal();
+        s.p1Pos = e.p1Pos; s.p2Pos = e.p2Pos; s.p1Score = (short) e.p1Score; s.p2Score = (short) e.p2Score;
+        s.p1Step = (byte) ((e.getP1LastKey() == KeyEvent.VK_LEFT) ? 0 : (e.getP1LastKey() == KeyEvent.VK_RIGHT) ? 1 : -1);
+        s.p2Step = (byte) ((e.getP2LastKey() == KeyEvent.VK_A) ? 0 : (e.getP2LastKey() == KeyEvent.VK_D) ? 1 : -1);
+        s.countdown = (byte) e.countdownValue; s.winner = (byte) e.winnerOfRace; s.quizPlayer = (byte) e.currentQuizPlayer; s.quizAttempts = (byte) e.quizAttempts;
+        s.p1Name = e.p1Name; s.p2Name = e.p2Name;
+        if (e.getQuestionSerial() != questionSerial) {
+            QuizSystem q = e.getQuizSystem();
+            questionSerial = e.getQuestionSerial();
+            s.questionSerial = questionSerial; s.questionType = (byte) q.getCurrentType().ordinal();
+            s.questionText = q.getQuestionText(); s.options = q.getOptions().toArray(new String[0]);
+        }
+        s.skyEpoch = e.skyObjects.clearCount(); s.spawnSerial = spawnSerial;
+    }
+
+    private void sendSnapshot(Peer peer, ByteBuffer out, Sender sender) throws IOException {
+        NetState base = null;
+        int ack = peer.ackTick;
+        if (ack >= 0 && current.tick - ack < NetProtocol.HISTORY) {
+            NetState h = peer.history[ack % NetProtocol.HISTORY];
+            if (h.tick == ack) base = h;
+        }
+        out.clear();
+        out.put(NetProtocol.SNAPSHOT).putInt(current.tick).putInt((base != null) ? base.tick : -1).putInt(peer.appliedSeq);
+        // 文字欄位讓快照超出一個封包時，先略過較不重要的部分，至少留下生成清單的標頭
+        int mask = current.diff(base), dropped = 0;
+        for (int k = 0; k < DROP_ORDER.length && current.size(mask) > out.remaining() - SPAWN_HEADER; k++) {
+            dropped |= mask & DROP_ORDER[k];
+            mask &= ~DROP_ORDER[k];
+        }
+        current.write(out, mask);
+        // 補送基準之後的生成；沒有基準時只送目前還在畫面上的，讓剛加入的用戶端也看得到
+        int count;
+        if (base != null) count = (int) Math.min(spawnSerial - base.spawnSerial, Math.min(MAX_SPAWNS_PER_PACKET, SPAWN_LOG));
+        else {
+            count = 0;
+            for (long serial = spawnSerial; serial > 0 && count < MAX_SPAWNS_PER_PACKET; serial--, count++) {
+                int i = (int) (serial % SPAWN_LOG); // 越早生成的越靠左，遇到第一個已離開或已清空的就停
+                if (logEpoch[i] != current.skyEpoch || logX[i] - logSpeed[i] * (current.tick - logTick[i]) < -100) break;
+            }
+        }
+        count = Math.min(count, (out.remaining() - SPAWN_HEADER) / SPAWN_BYTES); // 放不下的較早生成就此放棄
+        out.put((byte) count).putLong(spawnSerial - count + 1);
+        for (long serial = spawnSerial - count + 1; serial <= spawnSerial; serial++) {
+            int i = (int) (serial % SPAWN_LOG);
+            out.putInt(logTick[i]).putInt(logEpoch[i]).putShort((short) logKind[i]).putFloat(logX[i]).putFloat(logY[i]).putFloat(logSpeed[i]);
+        }
+        out.flip();
+        peer.bytesOut += out.remaining(); peer.packetsOut++;
+        sender.send(out, peer.address);
+        NetState sent = peer.history[current.tick % NetProtocol.HISTORY];
+        sent.copyFrom(current);
+        if (dropped != 0) sent.copySections((base != null) ? base : BLANK, dropped);
+    }
+}
+
+/**
+ * 單場權威伺服器：單一執行緒以 Selector 收封包，固定 60Hz 推進一個 NetSession。
+ * 開始比賽要等兩位玩家都到齊；P1 為先加入者。多場同時進行請用 MatchServer。
+ * 執行：java -Djava.awt.headless=true -cp ... memoryracing.NetServer [port] [seed] [快照間隔 tick]
+ */
+final class NetServer implements Runnable {
+    private static final long PEER_TIMEOUT_NANOS = 10_000_000_000L;
+
+    private final NetSession session;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final NetLink link;
+    private final NetSession.Sender sender;
+    private final ByteBuffer in = ByteBuffer.allocate(NetProtocol.MAX_PACKET), out = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+    private final Histogram tickNanos = new Histogram();
+    private volatile boolean running = true;
+
+    NetServer(InetSocketAddress bind, long seed, NetLink.Conditions conditions, int snapshotInterval) throws IOException {
+        session = new NetSession(seed, snapshotInterval);
+        channel = DatagramChannel.open();
+        channel.bind(bind);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        link = new NetLink(channel, conditions, seed ^ 0x9E3779B97F4A7C15L);
+        sender = link::send;
+    }
+
+    public int getPort() throws IOException { return ((InetSocketAddress) channel.getLocalAddress()).getPort(); }
+    /** 只能在 run 結束後 (或同一執行緒上) 讀取 */
+    public GameEngine getEngine() { return session.getEngine(); }
+    public Histogram getTickNanos() { return tickNanos; }
+    public void stop() { running = false; selector.wakeup(); }
+
+    @Override
+    public void run() {
+        long period = 1_000_000_000L / GameEngine.BASE_TICK_RATE, next = System.nanoTime();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                long wake = Math.min(next, link.nextDue());
+                if (wake - now > 1_000_000L) selector.select((wake - now) / 1_000_000L);
+                else selector.selectNow();
+                selector.selectedKeys().clear();
+                receiveAll();
+                now = System.nanoTime();
+                link.pump(now);
+                for (int guard = 0; now - next >= 0 && guard < 4; guard++) {
+                    long start = System.nanoTime();
+                    session.tick(out, sender);
+                    tickNanos.record(System.nanoTime() - start);
+                    next += period;
+                }
+                if (now - next > period * 4) next = now; // 落後太多就放棄追趕
+                dropSilentPeers(now);
+            }
+        } catch (IOException e) {
+            System.out.println("伺服器停止: " + e.getMessage());
+        } finally {
+            try { selector.close(); channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            in.clear();
+            SocketAddress from = channel.receive(in);
+            if (from == null) return;
+            in.flip();
+            try { handlePacket(from); }
+            catch (RuntimeException e) { /* 格式錯誤的封包直接丟棄 */ }
+        }
+    }
+
+    private void handlePacket(SocketAddress from) throws IOException {
+        int size = in.remaining();
+        byte type = in.get();
+        NetSession.Peer peer = find(from);
+        if (peer != null) { peer.lastHeard = System.nanoTime(); peer.bytesIn += size; peer.packetsIn++; }
+        if (type == NetProtocol.HELLO) {
+            if (in.get() != NetProtocol.VERSION) { reply(from, NetProtocol.REJECT); return; }
+            String name = NetProtocol.getString(in);
+            if (peer == null) {
+                peer = session.join(from, name);
+                if (peer == null) { reply(from, NetProtocol.REJECT); return; }
+                System.out.println("玩家 " + peer.slot + " 加入: " + peer.name + " (" + from + ")");
+            }
+            session.welcome(peer, out, sender);
+        } else if (type == NetProtocol.INPUT && peer != null) {
+            NetProtocol.readInputs(in, peer);
+        } else if (type == NetProtocol.BYE && peer != null) {
+            System.out.println("玩家 " + peer.slot + " 離開: " + peer.name);
+            session.leave(peer);
+        }
+    }
+
+    private void reply(SocketAddress to, byte type) throws IOException {
+        out.clear();
+        out.put(type);
+        out.flip();
+        link.send(out, to);
+    }
+
+    private NetSession.Peer find(SocketAddress from) {
+        for (int i = 0; i < 2; i++) {
+            NetSession.Peer p = session.seat(i);
+            if (p != null && p.address.equals(from)) return p;
+        }
+        return null;
+    }
+
+    private void dropSilentPeers(long now) {
+        for (int i = 0; i < 2; i++) {
+            NetSession.Peer p = session.seat(i);
+            if (p != null && now - p.lastHeard > PEER_TIMEOUT_NANOS) {
+                System.out.println("玩家 " + p.slot + " 逾時離開: " + p.name);
+                session.leave(p);
+            }
+        }
+    }
+
+    /** 每位用戶端的上下行頻寬與 tick 時間 */
+    public String report(double seconds) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            NetSession.Peer p = session.seat(i);
+            if (p == null) continue;
+            sb.append(String.format("玩家 %d %s：下行 %.2f KB/s (%d 包)，上行 %.2f KB/s (%d 包)%n", p.slot, p.name,
+                    p.bytesOut / seconds / 1024, p.packetsOut, p.bytesIn / seconds / 1024, p.packetsIn));
+        }
+        sb.append(String.format("tick 時間 p50 %.1f µs，p99 %.1f µs，最大 %.1f µs，模擬掉包 %d",
+                tickNanos.percentile(50) / 1e3, tickNanos.percentile(99) / 1e3, tickNanos.max() / 1e3, link.dropped));
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : NetProtocol.DEFAULT_PORT;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+        int interval = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+        NetServer server = new NetServer(new InetSocketAddress(port), seed, NetLink.Conditions.fromSystemProperties(), interval);
+        long start = System.nanoTime();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(server.report((System.nanoTime() - start) / 1e9)), "NetServerReport"));
+        System.out.println("記憶競速伺服器啟動於 port " + server.getPort() + "，seed=" + seed);
+        server.run();
+    }
+}
+
+/**
+ * 連線用戶端：把本機按鍵送給伺服器，並把收到的快照套用到一個只用來顯示的 GameEngine 上 (不呼叫 updateWorld)。
+ * 自己的跑者以伺服器位置加上尚未被確認的步伐預測，按下去立刻就會前進；
+ * 對手的跑者落後伺服器 INTERP_TICKS 播放，在兩份快照之間內插，掉包或抖動時也能平順移動。
+ * 由 GameLoop.setStep 在模擬執行緒上呼叫 step，所有方法都在同一條執行緒 (持有 engine 鎖)。
+ */
+final class NetClient {
+    private static final int INTERP_TICKS = 6, POS_HISTORY = 32, MAX_EXTRAPOLATE_TICKS = 4;
+    private static final long HELLO_RETRY_NANOS = 250_000_000L, KEEPALIVE_NANOS = 100_000_000L;
+
+    private final GameEngine engine = new GameEngine(0);
+    private final DatagramChannel channel;
+    private final NetLink link;
+    private final SocketAddress server;
+    private final String name;
+    private final ByteBuffer in = ByteBuffer.allocate(NetProtocol.MAX_PACKET), out = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+    private final NetState[] received = new NetState[NetProtocol.HISTORY];
+    private final NetState scratch = new NetState(), latest = new NetState();
+    private final boolean[] held = new boolean[256];
+    private final InputQueue.Sink sink = this::onLocalInput;
+    // 尚未被伺服器確認的按鍵，序號從 pendingFirstSeq 起連續
+    private final int[] pending = new int[NetProtocol.MAX_INPUTS];
+    private int pendingFirstSeq = 1, pendingCount;
+    // 對手位置的歷史，供內插
+    private final int[] oppTick = new int[POS_HISTORY];
+    private final float[] oppPos = new float[POS_HISTORY];
+    private int oppCount;
+    private int slot, lastQuestionSerial, lastEventSerial, skyEpoch = -1;
+    private long latestNanos, lastHello, lastSend, appliedSpawn, tickNanos = 1_000_000_000L / GameEngine.BASE_TICK_RATE;
+    private boolean rejected, firstSnapshot = true;
+    long bytesIn, packetsIn, snapshots, staleSnapshots;
+
+    NetClient(InetSocketAddress server, String name, NetLink.Conditions conditions) throws IOException {
+        this.server = server;
+        this.name = name;
+        for (int i = 0; i < received.length; i++) received[i] = new NetState();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        link = new NetLink(channel, conditions, System.nanoTime());
+    }
+
+    public GameEngine getEngine() { return engine; }
+    /** 1 或 2；尚未被伺服器接受時為 0 */
+    public int getSlot() { return slot; }
+    public boolean isRejected() { return rejected; }
+    public long getBytesOut() { return link.bytesOut; }
+
+    /** 推進一步：收快照、送按鍵、推進動畫與天空物件 */
+    public void step(float dt) {
+        long now = System.nanoTime();
+        try {
+            receiveAll();
+            engine.input.drain(sink);
+            if (slot == 0) {
+                if (!rejected && now - lastHello > HELLO_RETRY_NANOS) sendHello(now);
+            } else if (pendingCount > 0 || now - lastSend > KEEPALIVE_NANOS) sendInput(now);
+            link.pump(now);
+        } catch (IOException e) {
+            System.out.println("連線錯誤: " + e.getMessage());
+        }
+        float k = dt * GameEngine.BASE_TICK_RATE;
+        engine.prevP1Pos = engine.p1Pos; engine.prevP2Pos = engine.p2Pos;
+        engine.skyObjects.snapshotPositions();
+        engine.updateAnimations(k);
+        GameEngine.State s = engine.currentState;
+        if (s == GameEngine.State.START || s == GameEngine.State.RACING || s == GameEngine.State.COUNTDOWN) engine.skyObjects.advance(k, -100);
+        updateRunners(now);
+    }
+
+    private void onLocalInput(int kind, int keyCode, long nanos) {
+        boolean pressed = (kind == InputQueue.PRESS);
+        if (keyCode >= 0 && keyCode < held.length) {
+            boolean wasHeld = held[keyCode];
+            held[keyCode] = pressed;
+            if (!pressed || wasHeld) return;
+        } else if (!pressed) return;
+        if (slot == 0 || pendingCount == pending.length) return; // 尚未連上或伺服器太久沒確認
+        int code = keyCode;
+        if (keyCode == KeyEvent.VK_LEFT || keyCode == KeyEvent.VK_A) code = NetProtocol.STEP_A;
+        else if (keyCode == KeyEvent.VK_RIGHT || keyCode == KeyEvent.VK_D) code = NetProtocol.STEP_B;
+        if (engine.currentState == GameEngine.State.RACING && (code == NetProtocol.STEP_A || code == NetProtocol.STEP_B)) {
+            int step = (slot == 1) ? latest.p1Step : latest.p2Step; // 與 updateRunners 相同的交替規則
+            for (int i = pendingCount - 1; i >= 0; i--) {
+                if (pending[i] == NetProtocol.STEP_A || pending[i] == NetProtocol.STEP_B) { step = pending[i] - NetProtocol.STEP_A; break; }
+            }
+            if (code - NetProtocol.STEP_A != step) engine.getListener().onStep(slot);
+        }
+        pending[pendingCount++] = code;
+    }
+
+    private void sendHello(long now) throws IOException {
+        out.clear();
+        out.put(NetProtocol.HELLO).put(NetProtocol.VERSION);
+        NetProtocol.putString(out, name);
+        out.flip();
+        link.send(out, server);
+        lastHello = now;
+    }
+
+    private void sendInput(long now) throws IOException {
+        out.clear();
+        out.put(NetProtocol.INPUT).putInt(latest.tick).putInt(pendingFirstSeq).put((byte) pendingCount);
+        for (int i = 0; i < pendingCount; i++) out.putInt(pending[i]);
+        out.flip();
+        link.send(out, server);
+        lastSend = now;
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            in.clear();
+            SocketAddress from = channel.receive(in);
+            if (from == null) return;
+            in.flip();
+            bytesIn += in.remaining(); packetsIn++;
+            try {
+                byte type = in.get();
+                if (type == NetProtocol.WELCOME && slot == 0) {
+                    slot = in.get();
+                    in.getLong(); // seed：畫面只顯示伺服器的結果，用不到
+                    tickNanos = 1_000_000_000L / in.get();
+                } else if (type == NetProtocol.REJECT && slot == 0) {
+                    if (!rejected) System.out.println("伺服器拒絕連線 (已滿或版本不同)");
+                    rejected = true;
+                } else if (type == NetProtocol.SNAPSHOT && slot != 0) readSnapshot();
+            } catch (RuntimeException e) { /* 格式錯誤的封包直接丟棄 */ }
+        }
+    }
+
+    private void readSnapshot() {
+        int tick = in.getInt(), baseTick = in.getInt(), ackSeq = in.getInt();
+        if (tick <= latest.tick && tick >= 0 && received[tick % NetProtocol.HISTORY].tick == tick) { staleSnapshots++; return; }
+        if (baseTick >= 0) {
+            NetState base = received[baseTick % NetProtocol.HISTORY];
+            if (base.tick != baseTick) { staleSnapshots++; return; } // 基準已被覆蓋，等下一份
+            scratch.copyFrom(base);
+        }
+        scratch.read(in);
+        scratch.tick = tick;
+        received[tick % NetProtocol.HISTORY].copyFrom(scratch);
+        // 伺服器已套用的按鍵不必再送
+        int acked = ackSeq - pendingFirstSeq + 1;
+        if (acked > 0) {
+            acked = Math.min(acked, pendingCount);
+            System.arraycopy(pending, acked, pending, 0, pendingCount - acked);
+            pendingCount -= acked; pendingFirstSeq += acked;
+        }
+        if (tick <= latest.tick) { staleSnapshots++; return; } // 亂序到達的舊快照只當作差分基準
+        snapshots++;
+        latest.copyFrom(scratch);
+        latestNanos = System.nanoTime();
+        apply(latest);
+        readSpawns(tick);
+    }
+
+    /** 把快照套用到顯示用的引擎；事件先於狀態切換觸發，與伺服器端 listener 的順序相同 */
+    private void apply(NetState s) {
+        GameEngine e = engine;
+        if (s.questionSerial != lastQuestionSerial) {
+            lastQuestionSerial = s.questionSerial;
+            e.getQuizSystem().setQuestion(QuizSystem.Type.values()[s.questionType], s.questionText, Arrays.asList(s.options));
+        }
+        if (s.eventSerial != lastEventSerial) {
+            lastEventSerial = s.eventSerial;
+            if (!firstSnapshot) fire(s); // 剛加入時不重播加入前的事件
+        }
+        e.currentRound = s.round; e.difficulty = GameEngine.Difficulty.values()[s.difficulty];
+        boolean countdownChanged = s.countdown != e.countdownValue;
+        GameEngine.State prev = e.currentState;
+        e.p1Score = s.p1Score; e.p2Score = s.p2Score; e.countdownValue = s.countdown;
+        e.winnerOfRace = s.winner; e.currentQuizPlayer = s.quizPlayer; e.quizAttempts = s.quizAttempts;
+        e.p1Name = s.p1Name; e.p2Name = s.p2Name;
+        GameEngine.State next = GameEngine.State.values()[s.state];
+        if (next != e.currentState) {
+            oppCount = 0; // 回合重置時位置會跳回起點，不在新舊回合之間內插
+            if (next == GameEngine.State.GAME_OVER) e.spawnConfetti();
+            e.setState(next);
+        }
+        if (countdownChanged && !firstSnapshot && (next == GameEngine.State.COUNTDOWN || prev == GameEngine.State.COUNTDOWN)) {
+            e.getListener().onCountdown(s.countdown);
+        }
+        if (s.skyEpoch != skyEpoch) { skyEpoch = s.skyEpoch; e.skyObjects.clear(); }
+        float opp = (slot == 1) ? s.p2Pos : s.p1Pos;
+        int i = oppCount++ % POS_HISTORY;
+        oppTick[i] = s.tick; oppPos[i] = opp;
+        firstSnapshot = false;
+    }
+
+    private void fire(NetState s) {
+        GameListener l = engine.getListener();
+        switch (s.eventKind) {
+            case NetState.EV_RACE: engine.raceFinishEffect(s.eventArg); l.onRaceFinished(s.eventArg); break;
+            case NetState.EV_TURN: l.onTurnPassed(s.eventArg); break;
+            case NetState.EV_RESULT:
+                if (s.eventArg == 1) engine.correctAnswerEffect();
+                l.onRoundResult(s.eventArg == 1, s.eventText);
+                break;
+            default: break;
+        }
+    }
+
+    /** 生成紀錄：只加入目前這一輪 (epoch) 且還沒加過的，位置依快照與生成 tick 的差推進 */
+    private void readSpawns(int tick) {
+        int count = in.get() & 0xFF;
+        long serial = in.getLong();
+        for (int n = 0; n < count; n++, serial++) {
+            int spawnTick = in.getInt(), epoch = in.getInt(), kind = in.getShort();
+            float x = in.getFloat(), y = in.getFloat(), speed = in.getFloat();
+            if (serial <= appliedSpawn || epoch != skyEpoch) continue;
+            appliedSpawn = serial;
+            float nx = x - speed * (tick - spawnTick);
+            if (nx >= -100) engine.skyObjects.spawn(nx, y, speed, kind);
+        }
+    }
+
+    private void updateRunners(long now) {
+        if (latest.tick < 0) return;
+        float own = (slot == 1) ? latest.p1Pos : latest.p2Pos;
+        int step = (slot == 1) ? latest.p1Step : latest.p2Step;
+        if (engine.currentState == GameEngine.State.RACING) {
+            // 依交替規則重放未確認的步伐
+            for (int i = 0; i < pendingCount; i++) {
+                int code = pending[i];
+                if (code != NetProtocol.STEP_A && code != NetProtocol.STEP_B) continue;
+                int s = code - NetProtocol.STEP_A;
+                if (s != step) { own += 8; step = s; }
+            }
+            own = Math.min(own, GameEngine.FINISH_LINE);
+        }
+        float opp = interpolateOpponent(now);
+        if (slot == 1) { engine.p1Pos = own; engine.p2Pos = opp; } else { engine.p2Pos = own; engine.p1Pos = opp; }
+    }
+
+    private float interpolateOpponent(long now) {
+        float fallback = (slot == 1) ? latest.p2Pos : latest.p1Pos;
+        if (oppCount == 0) return fallback;
+        float ahead = Math.min((now - latestNanos) / (float) tickNanos, MAX_EXTRAPOLATE_TICKS);
+        float renderTick = latest.tick + ahead - INTERP_TICKS;
+        int n = Math.min(oppCount, POS_HISTORY);
+        int below = -1, above = -1;
+        for (int j = 0; j < n; j++) {
+            int t = oppTick[j];
+            if (t <= renderTick) { if (below < 0 || t > oppTick[below]) below = j; }
+            else if (above < 0 || t < oppTick[above]) above = j;
+        }
+        if (below < 0) return oppPos[above];
+        if (above < 0) return oppPos[below];
+        float f = (renderTick - oppTick[below]) / (oppTick[above] - oppTick[below]);
+        return oppPos[below] + (oppPos[above] - oppPos[below]) * f;
+    }
+
+    /** 告知伺服器離開 (盡力而為，不經模擬延遲) 並關閉連線 */
+    public void close() {
+        try {
+            if (slot != 0) channel.send(ByteBuffer.wrap(new byte[] {NetProtocol.BYE}), server);
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
+
+// ==========================================
+// 18. 多場伺服器 (MatchServer)
+// ==========================================
+/**
+ * 同時主持大量比賽的伺服器，每場是一個獨立 seed 的 NetSession (各自的 Random 與 QuizSystem)。
+ * 不為每個連線或每場比賽開執行緒：一條 I/O 執行緒以 Selector 收所有封包並兩兩配對玩家，
+ * 一條時鐘執行緒每 1/60 秒把有玩家的比賽分批 (每批 SHARD 場) 交給常駐的工作執行緒推進；
+ * 時鐘與工作執行緒以同一個 Phaser 會合 (開始、完成各一個階段)，每個 tick 不建立任務物件。
+ * 閒置的比賽事先配置好、不 tick，只佔記憶體；兩位玩家都離開 (BYE 或逾時) 後換上新 seed 的比賽回收再用。
+ * 每 5 秒印出進行中場數、每核心場數、tick 延遲與推進時間的分位數，以及每場記憶體。
+ * 執行：java -Djava.awt.headless=true -cp ... memoryracing.MatchServer [port] [場數] [工作執行緒數]
+ */
+final class MatchServer {
+    private static final int SHARD = 32;
+    private static final long PEER_TIMEOUT_NANOS = 10_000_000_000L, HOUSEKEEPING_NANOS = 1_000_000_000L, REPORT_NANOS = 5_000_000_000L;
+    private static final long PERIOD_NANOS = 1_000_000_000L / GameEngine.BASE_TICK_RATE;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int snapshotInterval, workerCount;
+    private final NetSession[] sessions;
+    private final Object lock = new Object(); // 保護 sessions 的替換、空位堆疊與配對
+    private final int[] free;
+    private int freeCount, waiting = -1; // waiting：還缺一位玩家的比賽
+    private long nextSeed, matchesStarted, matchesRecycled;
+    private final Map<SocketAddress, NetSession.Peer> peers = new HashMap<>(); // 只在 I/O 執行緒使用
+    private final ByteBuffer in = ByteBuffer.allocate(NetProtocol.MAX_PACKET), out = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+    private final ThreadLocal<ByteBuffer> workerBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(NetProtocol.MAX_PACKET));
+    private final LongAdder bytesOut = new LongAdder(), packetsOut = new LongAdder(), sendErrors = new LongAdder(), sessionFaults = new LongAdder();
+    private final NetSession.Sender sender; // 工作執行緒共用同一個 channel 送出 (DatagramChannel.send 可並行呼叫)
+    private long bytesIn, packetsIn;
+
+    private final Thread clock;
+    private final Thread[] workers;
+    private final Phaser phaser; // 時鐘加上所有工作執行緒；每個 tick 走兩個階段：開始推進、推進完成
+    private final int shards;
+    private final AtomicInteger nextShard = new AtomicInteger(), activeCount = new AtomicInteger();
+    private final Histogram tickLag = new Histogram(), tickBusy = new Histogram();
+    private final LongAdder sessionTicks = new LongAdder(), sessionTickNanos = new LongAdder();
+    private long tickCount;
+    private volatile int lastActive; // 上一個 tick 推進的比賽數，供報告讀取
+    private volatile long idleBytesPerSession, idleLive; // recordIdleMemory 量過之前為 0
+    private volatile boolean running = true;
+
+    MatchServer(InetSocketAddress bind, int sessionCount, int workerCount, int snapshotInterval, long seed) throws IOException {
+        this.snapshotInterval = snapshotInterval;
+        this.workerCount = workerCount;
+        this.nextSeed = seed;
+        sessions = new NetSession[sessionCount];
+        free = new int[sessionCount];
+        for (int i = 0; i < sessionCount; i++) { sessions[i] = new NetSession(nextSeed++, snapshotInterval); free[i] = sessionCount - 1 - i; }
+        freeCount = sessionCount;
+        shards = (sessionCount + SHARD - 1) / SHARD;
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+        channel.bind(bind);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        sender = (buf, to) -> {
+            int n = buf.remaining();
+            if (channel.send(buf, to) == 0) sendErrors.increment();
+            bytesOut.add(n); packetsOut.increment();
+        };
+        phaser = new Phaser(workerCount + 1);
+        ThreadFactory workerThreads = daemon("MatchWorker");
+        workers = new Thread[workerCount];
+        for (int w = 0; w < workerCount; w++) workers[w] = workerThreads.newThread(this::workerLoop);
+        clock = daemon("MatchClock").newThread(this::clockLoop);
+    }
+
+    /**
+     * 量出閒置比賽每場佔的記憶體：before 為建構前以 liveHeap(true) 量到的值。
+     * 會強制 GC，只能在 run 之前 (main 啟動時) 呼叫。
+     */
+    void recordIdleMemory(long before) {
+        if (clock.getState() != Thread.State.NEW) throw new IllegalStateException("比賽已開始推進");
+        idleLive = liveHeap(true);
+        idleBytesPerSession = (idleLive - before) / Math.max(1, sessions.length);
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** 堆積中存活物件的大小：force 時先做完整 GC (只在啟動時)，否則取各記憶體池上次 GC 後的用量 */
+    static long liveHeap(boolean force) {
+        if (force) { System.gc(); System.gc(); return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory(); }
+        long used = 0;
+        for (java.lang.management.MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP && pool.getCollectionUsage() != null) used += pool.getCollectionUsage().getUsed();
+        }
+        return used;
+    }
+
+    public int getPort() throws IOException { return ((InetSocketAddress) channel.getLocalAddress()).getPort(); }
+    public void stop() { running = false; selector.wakeup(); }
+
+    /** I/O 迴圈；時鐘與工作執行緒在這裡啟動，迴圈結束時一起停止 */
+    public void run() throws IOException {
+        long startNanos = System.nanoTime();
+        for (Thread w : workers) w.start();
+        clock.start();
+        long nextHousekeeping = startNanos + HOUSEKEEPING_NANOS, nextReport = startNanos + REPORT_NANOS, reportStart = startNanos;
+        try {
+            while (running) {
+                selector.select(100);
+                selector.selectedKeys().clear();
+                receiveAll();
+                long now = System.nanoTime();
+                if (now - nextHousekeeping >= 0) { dropSilentPeers(now); nextHousekeeping = now + HOUSEKEEPING_NANOS; }
+                if (now - nextReport >= 0) {
+                    System.out.println(report((now - reportStart) / 1e9));
+                    reportStart = now; nextReport = now + REPORT_NANOS;
+                }
+            }
+        } finally {
+            clock.interrupt();
+            phaser.forceTermination(); // 等在會合點的工作執行緒立即返回並結束
+            selector.close();
+            channel.close();
+        }
+    }
+
+    // ---------- 時鐘與工作執行緒 ----------
+
+    /** 固定頻率的時鐘：落後時不睡直接補 tick，延遲即實際開始時間與排定時間的差 */
+    private void clockLoop() {
+        long next = System.nanoTime();
+        while (running && !Thread.currentThread().isInterrupted()) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) { LockSupport.parkNanos(wait); continue; }
+            tickAll(-wait);
+            next += PERIOD_NANOS;
+        }
+    }
+
+    private void tickAll(long lag) {
+        long start = System.nanoTime();
+        tickLag.record(lag);
+        tickCount++;
+        if (tickCount % GameEngine.BASE_TICK_RATE == 0) recycleFinished();
+        nextShard.set(0);
+        activeCount.set(0);
+        phaser.arriveAndAwaitAdvance(); // 放工作執行緒開始
+        phaser.arriveAndAwaitAdvance(); // 等全部推進完
+        lastActive = activeCount.get();
+        tickBusy.record(System.nanoTime() - start);
+    }
+
+    /** 常駐的工作執行緒：每個 tick 等時鐘放行、推進分到的批次，再回報完成；Phaser 終止時結束 */
+    private void workerLoop() {
+        while (phaser.arriveAndAwaitAdvance() >= 0) {
+            runShards();
+            if (phaser.arriveAndAwaitAdvance() < 0) return;
+        }
+    }
+
+    /** 工作執行緒輪流領取一批比賽推進，快的執行緒自然多做幾批 */
+    private void runShards() {
+        ByteBuffer buf = workerBuffers.get();
+        int active = 0;
+        long busy = 0;
+        for (int s; (s = nextShard.getAndIncrement()) < shards; ) {
+            int end = Math.min(sessions.length, (s + 1) * SHARD);
+            for (int i = s * SHARD; i < end; i++) {
+                NetSession session = sessions[i];
+                if (session.playerCount() == 0) continue;
+                long t0 = System.nanoTime();
+                try { session.tick(buf, sender); }
+                catch (IOException e) { sendErrors.increment(); }
+                catch (RuntimeException e) { evict(i, session, e); } // 只犧牲出錯的這場，同批其他比賽照常推進
+                busy += System.nanoTime() - t0;
+                active++;
+            }
+        }
+        activeCount.addAndGet(active);
+        sessionTicks.add(active);
+        sessionTickNanos.add(busy);
+    }
+
+    /** 踢掉出錯比賽的玩家；沒人的比賽不再推進，下次 recycleFinished 換成新的 */
+    private void evict(int index, NetSession session, RuntimeException e) {
+        sessionFaults.increment();
+        System.err.println("比賽 " + index + " 推進失敗，已踢出玩家: " + e);
+        synchronized (lock) {
+            session.evictAll();
+            if (waiting == index) waiting = -1;
+        }
+    }
+
+    /** 在兩個 tick 之間換掉已結束 (曾有玩家、現在沒人) 的比賽 */
+    private void recycleFinished() {
+        synchronized (lock) {
+            for (int i = 0; i < sessions.length; i++) {
+                NetSession s = sessions[i];
+                if (!s.isUsed() || s.playerCount() != 0) continue;
+                sessions[i] = new NetSession(nextSeed++, snapshotInterval);
+                free[freeCount++] = i;
+                if (waiting == i) waiting = -1;
+                matchesRecycled++;
+            }
+        }
+    }
+
+    // ---------- I/O 執行緒 ----------
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            in.clear();
+            SocketAddress from = channel.receive(in);
+            if (from == null) return;
+            in.flip();
+            bytesIn += in.remaining(); packetsIn++;
+            try { handlePacket(from); }
+            catch (RuntimeException e) { /* 格式錯誤的封包直接丟棄 */ }
+        }
+    }
+
+    private void handlePacket(SocketAddress from) throws IOException {
+        byte type = in.get();
+        NetSession.Peer peer = peers.get(from);
+        if (peer != null && peer.session.seat(peer.slot - 1) != peer) { peers.remove(from); peer = null; } // 比賽出錯已被踢出
+        if (peer != null) peer.lastHeard = System.nanoTime();
+        if (type == NetProtocol.HELLO) {
+            if (in.get() != NetProtocol.VERSION) { reply(from, NetProtocol.REJECT); return; }
+            String name = NetProtocol.getString(in);
+            if (peer == null) {
+                peer = seat(from, name);
+                if (peer == null) { reply(from, NetProtocol.REJECT); return; }
+                peers.put(from, peer);
+            }
+            peer.session.welcome(peer, out, sender);
+        } else if (type == NetProtocol.INPUT && peer != null) {
+            NetProtocol.readInputs(in, peer);
+        } else if (type == NetProtocol.BYE && peer != null) {
+            leave(peer);
+        }
+    }
+
+    /** 先補滿等待中的比賽，否則從閒置的比賽開一場新的；全部滿了回傳 null */
+    private NetSession.Peer seat(SocketAddress from, String name) {
+        synchronized (lock) {
+            if (waiting >= 0) {
+                NetSession s = sessions[waiting];
+                NetSession.Peer p = s.join(from, name);
+                if (s.playerCount() == 2) waiting = -1;
+                if (p != null) return p;
+            }
+            if (freeCount == 0) return null;
+            waiting = free[--freeCount];
+            matchesStarted++;
+            return sessions[waiting].join(from, name);
+        }
+    }
+
+    private void leave(NetSession.Peer peer) {
+        peers.remove(peer.address);
+        synchronized (lock) { peer.session.leave(peer); }
+    }
+
+    private void dropSilentPeers(long now) {
+        List<NetSession.Peer> silent = new ArrayList<>();
+        for (NetSession.Peer p : peers.values()) if (now - p.lastHeard > PEER_TIMEOUT_NANOS) silent.add(p);
+        for (NetSession.Peer p : silent) leave(p);
+    }
+
+    private void reply(SocketAddress to, byte type) throws IOException {
+        out.clear();
+        out.put(type);
+        out.flip();
+        sender.send(out, to);
+    }
+
+    /** 上一段時間的統計，讀完即重設 (由 I/O 執行緒呼叫) */
+    public String report(double seconds) {
+        int cores = Runtime.getRuntime().availableProcessors(), active = lastActive;
+        long ticks = sessionTicks.sumThenReset(), nanos = sessionTickNanos.sumThenReset();
+        double perTick = (ticks == 0) ? 0 : (double) nanos / ticks;
+        // 每核心每秒可用 1e9 ns，每場每秒要推進 60 次
+        double capacity = (perTick == 0) ? 0 : 1e9 / (perTick * GameEngine.BASE_TICK_RATE);
+        long live = liveHeap(false), started, recycled;
+        synchronized (lock) { started = matchesStarted; recycled = matchesRecycled; }
+        String s = String.format("比賽 %d 進行中 / %d 場 (已開 %d、已回收 %d)，玩家 %d，每核心 %.0f 場 (%d 核、%d 工作執行緒)%n"
+                + "  tick 延遲 p50 %.2f ms、p99 %.2f ms、最大 %.2f ms；推進全部 p50 %.2f ms、p99 %.2f ms；每場每 tick %.1f µs，估計每核心上限 %.0f 場%n"
+                + "  記憶體：閒置 %.1f KB/場，進行中約 %.1f KB/場，目前存活 %.1f MB；下行 %.1f KB/s (%d 包)、上行 %.1f KB/s，送出失敗 %d，比賽出錯 %d",
+                active, sessions.length, started, recycled, peers.size(), (double) active / cores, cores, workerCount,
+                tickLag.percentile(50) / 1e6, tickLag.percentile(99) / 1e6, tickLag.max() / 1e6,
+                tickBusy.percentile(50) / 1e6, tickBusy.percentile(99) / 1e6, perTick / 1e3, capacity,
+                idleBytesPerSession / 1024.0, (active == 0) ? 0 : (idleBytesPerSession + (double) Math.max(0, live - idleLive) / active) / 1024.0,
+                live / 1048576.0, bytesOut.sumThenReset() / seconds / 1024, packetsOut.sumThenReset(), bytesIn / seconds / 1024, sendErrors.sum(), sessionFaults.sum());
+        tickLag.reset(); tickBusy.reset(); bytesIn = 0;
+        return s;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : NetProtocol.DEFAULT_PORT;
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 10_000;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long before = liveHeap(true);
+        MatchServer server = new MatchServer(new InetSocketAddress(port), count, threads, 2, System.nanoTime());
+        server.recordIdleMemory(before);
+        System.out.printf("多場伺服器啟動於 port %d：%d 場、%d 工作執行緒，閒置每場 %.1f KB%n",
+                server.getPort(), count, threads, server.idleBytesPerSession / 1024.0);
+        server.run();
+    }
+}
+
+/**
+ * MatchServer 的壓力測試用戶端：單一執行緒以 Selector 管理大量機器人，每個機器人各用一個 UDP 埠。
+ * 機器人的確認 tick 固定送 -1 (要求完整快照)，不必保留快照歷史；玩法與 NetLoopbackTest 相同，
+ * 比賽結束送 BYE 後過一秒重新加入，持續產生負載。印出按鍵從送出到被伺服器確認的往返時間。
+ * 執行：java -cp ... memoryracing.MatchLoadGenerator [主機:port] [機器人數] [秒數] [每秒加入數]
+ */
+final class MatchLoadGenerator {
+    private static final int[] ANSWER_KEYS = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3};
+    private static final long HELLO_RETRY_NANOS = 500_000_000L, KEEPALIVE_NANOS = 100_000_000L, REJOIN_NANOS = 1_000_000_000L;
+
+    /** 一個機器人玩家 */
+    static final class Bot {
+        final DatagramChannel channel;
+        int slot, firstSeq = 1, count, nextStep;
+        final int[] pending = new int[NetProtocol.MAX_INPUTS];
+        final long[] sentAt = new long[NetProtocol.MAX_INPUTS];
+        final NetState state = new NetState();
+        long lastHello, lastSend, joinAt;
+        Bot(DatagramChannel channel) { this.channel = channel; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = (args.length > 0) ? args[0] : "127.0.0.1:" + NetProtocol.DEFAULT_PORT;
+        int botCount = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 60;
+        int joinRate = (args.length > 3) ? Integer.parseInt(args[3]) : 500;
+        int colon = target.lastIndexOf(':');
+        InetSocketAddress server = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+
+        Selector selector = Selector.open();
+        Bot[] bots = new Bot[botCount];
+        long start = System.nanoTime();
+        for (int i = 0; i < botCount; i++) {
+            DatagramChannel ch = DatagramChannel.open();
+            ch.configureBlocking(false);
+            ch.connect(server);
+            bots[i] = new Bot(ch);
+            bots[i].joinAt = start + (long) i * 1_000_000_000L / joinRate;
+            ch.register(selector, SelectionKey.OP_READ, bots[i]);
+        }
+        ByteBuffer in = ByteBuffer.allocate(NetProtocol.MAX_PACKET), out = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+        Random rnd = new Random(1);
+        Histogram rtt = new Histogram();
+        long period = 1_000_000_000L / GameEngine.BASE_TICK_RATE, next = start, end = start + seconds * 1_000_000_000L, nextReport = start + 5_000_000_000L;
+        long snapshots = 0, matches = 0, bytesIn = 0, bytesOut = 0, windowStart = start;
+
+        while (System.nanoTime() - end < 0) {
+            selector.selectNow();
+            for (SelectionKey key : selector.selectedKeys()) {
+                Bot b = (Bot) key.attachment();
+                while (true) {
+                    in.clear();
+                    try { if (b.channel.read(in) <= 0) break; }
+                    catch (PortUnreachableException e) { break; } // 伺服器還沒啟動，繼續重送 HELLO
+                    in.flip();
+                    bytesIn += in.remaining();
+                    byte type = in.get();
+                    if (type == NetProtocol.WELCOME) { if (b.slot == 0) b.slot = in.get(); }
+                    else if (type == NetProtocol.SNAPSHOT && b.slot != 0) {
+                        in.getInt(); in.getInt();
+                        int ack = in.getInt();
+                        b.state.read(in);
+                        snapshots++;
+                        long now = System.nanoTime();
+                        while (b.count > 0 && b.firstSeq <= ack) {
+                            rtt.record(now - b.sentAt[0]);
+                            System.arraycopy(b.pending, 1, b.pending, 0, b.count - 1);
+                            System.arraycopy(b.sentAt, 1, b.sentAt, 0, b.count - 1);
+                            b.count--; b.firstSeq++;
+                        }
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+
+            long now = System.nanoTime();
+            for (Bot b : bots) {
+                if (now - b.joinAt < 0) continue;
+                if (b.slot == 0) {
+                    if (now - b.lastHello > HELLO_RETRY_NANOS) {
+                        out.clear();
+                        out.put(NetProtocol.HELLO).put(NetProtocol.VERSION);
+                        NetProtocol.putString(out, "bot");
+                        out.flip();
+                        bytesOut += b.channel.write(out);
+                        b.lastHello = now;
+                    }
+                    continue;
+                }
+                if (b.state.state == GameEngine.State.GAME_OVER.ordinal()) {
+                    out.clear();
+                    out.put(NetProtocol.BYE).flip();
+                    bytesOut += b.channel.write(out);
+                    matches++;
+                    b.slot = 0; b.count = 0; b.firstSeq = 1; b.state.copyFrom(new NetState()); b.joinAt = now + REJOIN_NANOS;
+                    continue;
+                }
+                int code = act(b, rnd);
+                if (code != 0 && b.count < b.pending.length) { b.pending[b.count] = code; b.sentAt[b.count++] = now; }
+                if (b.count > 0 || now - b.lastSend > KEEPALIVE_NANOS) {
+                    out.clear();
+                    out.put(NetProtocol.INPUT).putInt(-1).putInt(b.firstSeq).put((byte) b.count);
+                    for (int i = 0; i < b.count; i++) out.putInt(b.pending[i]);
+                    out.flip();
+                    bytesOut += b.channel.write(out);
+                    b.lastSend = now;
+                }
+            }
+
+            if (now - nextReport >= 0) {
+                double s = (now - windowStart) / 1e9;
+                int joined = 0;
+                for (Bot b : bots) if (b.slot != 0) joined++;
+                System.out.printf("機器人 %d / %d 已加入，完成 %d 場，快照 %.0f 份/秒，按鍵確認往返 p50 %.1f ms、p99 %.1f ms，下行 %.1f KB/s、上行 %.1f KB/s%n",
+                        joined, botCount, matches, snapshots / s, rtt.percentile(50) / 1e6, rtt.percentile(99) / 1e6, bytesIn / s / 1024, bytesOut / s / 1024);
+                snapshots = 0; bytesIn = 0; bytesOut = 0; rtt.reset(); windowStart = now; nextReport = now + 5_000_000_000L;
+            }
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait); else next = System.nanoTime();
+        }
+        for (Bot b : bots) {
+            if (b.slot != 0) b.channel.write(ByteBuffer.wrap(new byte[] {NetProtocol.BYE}));
+            b.channel.close();
+        }
+        System.out.println("共完成 " + matches + " 場");
+    }
+
+    /** 與 NetLoopbackTest 相同的機器人：開始與回合結束按空白鍵，賽跑時交替連打，輪到自己時隨機作答 */
+    private static int act(Bot b, Random rnd) {
+        NetState s = b.state;
+        switch (GameEngine.State.values()[s.state]) {
+            case START: case ROUND_END: return (rnd.nextInt(30) == 0) ? KeyEvent.VK_SPACE : 0;
+            case RACING: return (rnd.nextInt(100) < 40) ? (((b.nextStep ^= 1) == 0) ? NetProtocol.STEP_A : NetProtocol.STEP_B) : 0;
+            case QUIZ: return (s.quizPlayer == b.slot && rnd.nextInt(20) == 0) ? ANSWER_KEYS[rnd.nextInt(3)] : 0;
+            default: return 0;
+        }
+    }
+}
+
+// ==========================================
+// 19. 畫面內對話框 (DialogLayer / TextEntry)
+// ==========================================
+/**
+ * 取代 JOptionPane 的非阻塞對話框，由 GamePanel 畫在遊戲畫面上，鍵盤焦點一直留在主視窗。
+ * 只在 EDT 上使用 (按鍵、滑鼠與繪製都在 EDT)，模擬執行緒的回呼以 invokeLater 交過來。
+ * 同時只顯示一個：訊息依序排隊、數秒後自動關閉，只攔下關閉它的按鍵與點擊，其餘按鍵照常送進遊戲；
+ * 文字輸入攔下全部鍵盤輸入直到確定或取消。不論哪一種，遊戲與動畫都照常推進。
+ */
+final class DialogLayer {
+    enum Kind { NONE, MESSAGE, TEXT_INPUT }
+
+    public static final long MESSAGE_NANOS = 2_500_000_000L;
+    private static final int MAX_QUEUED = 8;
+
+    private final ArrayDeque<String> queued = new ArrayDeque<>();
+    private final TextEntry entry = new TextEntry(12);
+    private Kind kind = Kind.NONE;
+    private String message, title;
+    private String[] lines = new String[0];
+    private Image icon;
+    private Consumer<String> onConfirm;
+    private long shownAt;
+    /** 輸入框按鈕的位置，由 GamePanel 繪製時更新 */
+    final Rectangle okBtn = new Rectangle(), cancelBtn = new Rectangle();
+
+    /** 顯示一則訊息 (可含換行)；已有對話框時排在後面，排太多時丟棄 */
+    public void showMessage(String text, long now) {
+        if (kind == Kind.NONE) openMessage(text, now);
+        else if (queued.size() < MAX_QUEUED) queued.add(text);
+    }
+
+    /** 開啟文字輸入框；確定且內容去頭尾空白後不為空時呼叫 onConfirm */
+    public void promptText(String title, String initial, Image icon, Consumer<String> onConfirm) {
+        if (kind == Kind.TEXT_INPUT) return;
+        if (kind == Kind.MESSAGE) queued.addFirst(message); // 輸入結束後再繼續顯示
+        kind = Kind.TEXT_INPUT;
+        this.title = title; this.icon = icon; this.onConfirm = onConfirm;
+        entry.set(initial);
+    }
+
+    /** 每幀呼叫：訊息顯示時間到就換下一則 */
+    public void update(long now) {
+        if (kind == Kind.MESSAGE && now - shownAt >= MESSAGE_NANOS) next(now);
+    }
+
+    /** 回傳 true 表示按鍵已被對話框處理，不再送進遊戲 */
+    public boolean keyPressed(int keyCode, long now) {
+        switch (kind) {
+            case MESSAGE:
+                if (keyCode != KeyEvent.VK_ENTER && keyCode != KeyEvent.VK_SPACE && keyCode != KeyEvent.VK_ESCAPE) return false;
+                next(now);
+                return true;
+            case TEXT_INPUT:
+                if (keyCode == KeyEvent.VK_ENTER) confirm(now);
+                else if (keyCode == KeyEvent.VK_ESCAPE) next(now);
+                else entry.keyPressed(keyCode);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** 輸入法送出的文字與一般字元都以 KEY_TYPED 到達 */
+    public boolean keyTyped(char c) {
+        if (kind != Kind.TEXT_INPUT) return false;
+        if (c >= ' ' && c != KeyEvent.VK_DELETE && c != KeyEvent.CHAR_UNDEFINED) entry.insert(c);
+        return true;
+    }
+
+    public boolean click(Point p, long now) {
+        switch (kind) {
+            case MESSAGE: next(now); return true;
+            case TEXT_INPUT:
+                if (okBtn.contains(p)) confirm(now);
+                else if (cancelBtn.contains(p)) next(now);
+                return true;
+            default: return false;
+        }
+    }
+
+    public Kind getKind() { return kind; }
+    public String getMessage() { return message; }
+    public String[] getLines() { return lines; }
+    public String getTitle() { return title; }
+    public Image getIcon() { return icon; }
+    public TextEntry getEntry() { return entry; }
+    /** 目前訊息剩下的顯示時間比例 (1 到 0) */
+    public float remaining(long now) { return Math.max(0f, 1f - (float) (now - shownAt) / MESSAGE_NANOS); }
+
+    private void confirm(long now) {
+        String text = entry.toString().trim();
+        Consumer<String> callback = onConfirm;
+        next(now);
+        if (!text.isEmpty()) callback.accept(text);
+    }
+
+    private void next(long now) {
+        kind = Kind.NONE; onConfirm = null; icon = null;
+        String m = queued.poll();
+        if (m != null) openMessage(m, now);
+    }
+
+    private void openMessage(String text, long now) {
+        kind = Kind.MESSAGE; message = text; lines = text.split("\n"); shownAt = now;
+    }
+}
+
+/**
+ * 單行文字輸入的內容、游標與長度上限 (以 code point 計，表情符號算一個字)，不含繪製。
+ * 內容永遠不含落單的代理字元：keyTyped 分兩次送來的代理對，高位先暫存，等低位到齊才一起放入。
+ */
+final class TextEntry {
+    private final StringBuilder text = new StringBuilder();
+    private final int maxLength;
+    private int caret, codePoints;
+    private char pendingHigh; // 等待低位的高位代理字元，0 表示沒有
+    private String value = ""; // 內容不變時回傳同一個參考，TextSlot 以參考比對
+
+    TextEntry(int maxLength) { this.maxLength = maxLength; }
+
+    /** 換成 s 的前 maxLength 個 code point，略過落單的代理字元 */
+    public void set(String s) {
+        text.setLength(0);
+        codePoints = 0; pendingHigh = 0;
+        for (int i = 0; i < s.length() && codePoints < maxLength; ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) continue;
+            text.appendCodePoint(cp);
+            codePoints++;
+        }
+        caret = text.length();
+        value = text.toString();
+    }
+
+    public void insert(char c) {
+        char high = pendingHigh;
+        pendingHigh = 0;
+        if (Character.isHighSurrogate(c)) {
+            if (codePoints < maxLength) pendingHigh = c;
+            return;
+        }
+        if (Character.isLowSurrogate(c)) {
+            if (high == 0) return; // 落單的低位
+            text.insert(caret, high).insert(caret + 1, c);
+            caret += 2;
+        } else {
+            if (codePoints >= maxLength) return;
+            text.insert(caret++, c);
+        }
+        codePoints++;
+        value = text.toString();
+    }
+
+    /** 編輯鍵：Backspace、Delete、左右、Home、End；代理對 (表情符號) 視為一個字 */
+    public void keyPressed(int keyCode) {
+        pendingHigh = 0;
+        switch (keyCode) {
+            case KeyEvent.VK_BACK_SPACE:
+                if (caret > 0) { int from = text.offsetByCodePoints(caret, -1); text.delete(from, caret); caret = from; codePoints--; }
+                break;
+            case KeyEvent.VK_DELETE:
+                if (caret < text.length()) { text.delete(caret, text.offsetByCodePoints(caret, 1)); codePoints--; }
+                break;
+            case KeyEvent.VK_LEFT: if (caret > 0) caret = text.offsetByCodePoints(caret, -1); return;
+            case KeyEvent.VK_RIGHT: if (caret < text.length()) caret = text.offsetByCodePoints(caret, 1); return;
+            case KeyEvent.VK_HOME: caret = 0; return;
+            case KeyEvent.VK_END: caret = text.length(); return;
+            default: return;
+        }
+        value = text.toString();
+    }
+
+    /** 游標位置與長度以 UTF-16 單位計，直接對應 TextLayout */
+    public int getCaret() { return caret; }
+    public int length() { return text.length(); }
+    public int codePointCount() { return codePoints; }
+    @Override
+    public String toString() { return value; }
+}
+
+// ==========================================
+// 20. 機器人與批次模擬 (BotStrategy / SimStats / BatchSimulator)
+// ==========================================
+/**
+ * 無畫面比賽中的機器人玩家，分成跑步與作答兩個階段。每位玩家每場一個實例，可保有自己的狀態；
+ * 隨機性只來自傳入的 rng，同一個 seed 可完整重現。
+ */
+interface BotStrategy {
+    /** 跑步階段每 tick 呼叫 (tick 為比賽開始後的累計 tick)，回傳 true 表示按下下一個步伐鍵 */
+    boolean press(long tick, SplittableRandom rng);
+
+    /** 作答階段：回傳 getOptions() 中選擇的索引，必須介於 getFirstChoice() 與最後一個選項之間 */
+    int answer(GameEngine engine, SplittableRandom rng);
+
+    /**
+     * 依文字描述建立每場用的策略：random[:每tick按鍵機率]、mash:每秒按鍵,抖動,記憶力,記憶廣度，
+     * 或預設的 casual、expert。
+     */
+    static Supplier<BotStrategy> factory(String spec) {
+        int colon = spec.indexOf(':');
+        String name = (colon < 0) ? spec : spec.substring(0, colon);
+        String[] p = (colon < 0) ? new String[0] : spec.substring(colon + 1).split(",");
+        switch (name) {
+            case "random": {
+                double chance = (p.length > 0) ? Double.parseDouble(p[0]) : 0.3;
+                return () -> new RandomBot(chance);
+            }
+            case "casual": return () -> new MashBot(6, 0.35, 0.75, 5);
+            case "expert": return () -> new MashBot(11, 0.12, 0.95, 12);
+            case "mash": {
+                if (p.length != 4) throw new IllegalArgumentException("mash:每秒按鍵,抖動,記憶力,記憶廣度 " + spec);
+                double rate = Double.parseDouble(p[0]), jitter = Double.parseDouble(p[1]), recall = Double.parseDouble(p[2]);
+                int span = Integer.parseInt(p[3]);
+                return () -> new MashBot(rate, jitter, recall, span);
+            }
+            default: throw new IllegalArgumentException("未知的機器人策略: " + spec);
+        }
+    }
+}
+
+/** 每 tick 以固定機率按鍵，作答時完全隨機 (原本 HeadlessMatch 的玩家) */
+final class RandomBot implements BotStrategy {
+    private final double chance;
+
+    RandomBot(double chance) { this.chance = chance; }
+
+    @Override
+    public boolean press(long tick, SplittableRandom rng) { return rng.nextDouble() < chance; }
+
+    @Override
+    public int answer(GameEngine engine, SplittableRandom rng) { return engine.getQuizSystem().getFirstChoice() + rng.nextInt(3); }
+
+    @Override
+    public String toString() { return String.format("random(%.2f/tick)", chance); }
+}
+
+/**
+ * 模擬真人的機器人：以平均 rate 次/秒連打，每次間隔加上比例為 jitter 的常態抖動，每回合起跑前有反應時間。
+ * 作答時以 recall × min(1, span / 本回合出現的圖片數) 的機率記得正確答案，其餘在三個選項中亂猜，
+ * 也就是天空中出現的圖片越多越容易記錯。
+ */
+final class MashBot implements BotStrategy {
+    private static final double REACTION_SECONDS = 0.25;
+
+    private final double rate, jitter, recall;
+    private final int span;
+    private long lastTick = Long.MIN_VALUE, nextPress;
+
+    MashBot(double rate, double jitter, double recall, int span) {
+        this.rate = rate; this.jitter = jitter; this.recall = recall; this.span = span;
+    }
+
+    @Override
+    public boolean press(long tick, SplittableRandom rng) {
+        if (tick != lastTick + 1) nextPress = tick + ticks(REACTION_SECONDS * (0.5 + rng.nextDouble())); // 新的一段跑步
+        lastTick = tick;
+        if (tick < nextPress) return false;
+        nextPress = tick + Math.max(1, ticks((1 + jitter * gaussian(rng)) / rate));
+        return true;
+    }
+
+    @Override
+    public int answer(GameEngine engine, SplittableRandom rng) {
+        QuizSystem quiz = engine.getQuizSystem();
+        double p = recall * Math.min(1.0, (double) span / Math.max(1, engine.roundMemory.size()));
+        int correct = quiz.getCorrectIndex();
+        if (correct >= quiz.getFirstChoice() && rng.nextDouble() < p) return correct;
+        return quiz.getFirstChoice() + rng.nextInt(3);
+    }
+
+    private static long ticks(double seconds) { return Math.round(seconds * GameEngine.BASE_TICK_RATE); }
+
+    /** Box-Muller，只用 SplittableRandom 以維持可重現 */
+    private static double gaussian(SplittableRandom rng) {
+        return Math.sqrt(-2 * Math.log(1 - rng.nextDouble())) * Math.cos(2 * Math.PI * rng.nextDouble());
+    }
+
+    @Override
+    public String toString() { return String.format("mash(%.1f/s, 抖動 %.2f, 記憶力 %.2f, 廣度 %d)", rate, jitter, recall, span); }
+}
+
+/**
+ * 批次模擬的統計：勝負、依難度 × 題型的問答正確率、依難度的比賽階段生成統計。
+ * 每個工作各自累積一份 (不跨執行緒共用)，最後以 add 合併。
+ */
+final class SimStats {
+    private static final int DIFFS = GameEngine.Difficulty.values().length, TYPES = QuizSystem.Type.values().length;
+
+    long matches, ticks, p1Wins, p2Wins, ties;
+    final long[] raceWins = new long[2];
+    // 依難度 × 題型：出題數、第一位作答者答對、該題最後有人答對
+    final long[][] asked = new long[DIFFS][TYPES], firstCorrect = new long[DIFFS][TYPES], solved = new long[DIFFS][TYPES];
+    // 依難度：比賽 (跑步階段) 數、總 tick、生成數、不同圖片數
+    final long[] races = new long[DIFFS], raceTicks = new long[DIFFS], spawns = new long[DIFFS], distinct = new long[DIFFS];
+    final Histogram[] spawnGap = histograms(), firstSpawn = histograms(), spawnsPerRace = histograms();
+
+    private static Histogram[] histograms() {
+        Histogram[] h = new Histogram[DIFFS];
+        for (int i = 0; i < DIFFS; i++) h[i] = new Histogram();
+        return h;
+    }
+
+    /** 以 GameListener 觀察一場比賽；生成沒有回呼，由 afterTick 比對 spawnCount */
+    Probe attach(GameEngine engine) {
+        Probe probe = new Probe(engine);
+        engine.setListener(probe);
+        return probe;
+    }
+
+    final class Probe implements GameListener {
+        private final GameEngine engine;
+        private long raceStart, lastSpawnTick, seenSpawns;
+        private boolean firstAnswer, firstOfRace;
+
+        Probe(GameEngine engine) { this.engine = engine; }
+
+        @Override
+        public void onStateChanged(GameEngine.State from, GameEngine.State to) {
+            int d = engine.difficulty.ordinal();
+            if (to == GameEngine.State.RACING) {
+                raceStart = lastSpawnTick = engine.getTickIndex();
+                seenSpawns = engine.skyObjects.spawnCount();
+                firstOfRace = true;
+            } else if (from == GameEngine.State.RACING) {
+                RoundMemory memory = engine.roundMemory; // startQuiz 之前，本回合紀錄仍在
+                races[d]++; raceTicks[d] += engine.getTickIndex() - raceStart;
+                spawns[d] += memory.size(); distinct[d] += memory.distinctCount();
+                spawnsPerRace[d].record(memory.size());
+            }
+            if (to == GameEngine.State.QUIZ) {
+                asked[d][engine.getQuizSystem().getCurrentType().ordinal()]++;
+                firstAnswer = true;
+            }
+        }
+
+        @Override
+        public void onRaceFinished(int winner) { raceWins[winner - 1]++; }
+
+        @Override
+        public void onAnswer(int player, int optionIdx, boolean correct) {
+            if (firstAnswer && correct) firstCorrect[engine.difficulty.ordinal()][engine.getQuizSystem().getCurrentType().ordinal()]++;
+            firstAnswer = false;
+        }
+
+        @Override
+        public void onRoundResult(boolean correct, String feedback) {
+            if (correct) solved[engine.difficulty.ordinal()][engine.getQuizSystem().getCurrentType().ordinal()]++;
+        }
+
+        void afterTick() {
+            if (engine.currentState != GameEngine.State.RACING) return;
+            long n = engine.skyObjects.spawnCount();
+            if (n == seenSpawns) return;
+            long tick = engine.getTickIndex();
+            (firstOfRace ? firstSpawn : spawnGap)[engine.difficulty.ordinal()].record(tick - lastSpawnTick);
+            seenSpawns = n; lastSpawnTick = tick; firstOfRace = false;
+        }
+
+        void matchEnded(long matchTicks) {
+            matches++; ticks += matchTicks;
+            if (engine.p1Score > engine.p2Score) p1Wins++;
+            else if (engine.p2Score > engine.p1Score) p2Wins++;
+            else ties++;
+        }
+    }
+
+    void add(SimStats o) {
+        matches += o.matches; ticks += o.ticks; p1Wins += o.p1Wins; p2Wins += o.p2Wins; ties += o.ties;
+        for (int i = 0; i < 2; i++) raceWins[i] += o.raceWins[i];
+        for (int d = 0; d < DIFFS; d++) {
+            for (int t = 0; t < TYPES; t++) { asked[d][t] += o.asked[d][t]; firstCorrect[d][t] += o.firstCorrect[d][t]; solved[d][t] += o.solved[d][t]; }
+            races[d] += o.races[d]; raceTicks[d] += o.raceTicks[d]; spawns[d] += o.spawns[d]; distinct[d] += o.distinct[d];
+            spawnGap[d].add(o.spawnGap[d]); firstSpawn[d].add(o.firstSpawn[d]); spawnsPerRace[d].add(o.spawnsPerRace[d]);
+        }
+    }
+}
+
+/**
+ * 在所有核心上平行跑大量無畫面比賽：ForkJoinPool 把場次範圍對半切到每段 LEAF 場，每段各自累積 SimStats 再合併。
+ * 第 i 場的 seed 固定為 seed + i，結果與執行緒數無關。跑完寫出文字報告，供調整難度與作為引擎的負載測試。
+ * 執行：java -Djava.awt.headless=true -cp project/target/classes memoryracing.BatchSimulator
+ *       [場數] [seed] [P1 策略] [P2 策略] [報告檔] [執行緒數]
+ */
+final class BatchSimulator {
+    private static final int LEAF = 512;
+    private static final long PROGRESS_SECONDS = 10;
+
+    private final Supplier<BotStrategy> p1, p2;
+    private final long seed;
+    private final LongAdder done = new LongAdder();
+
+    BatchSimulator(Supplier<BotStrategy> p1, Supplier<BotStrategy> p2, long seed) {
+        this.p1 = p1; this.p2 = p2; this.seed = seed;
+    }
+
+    /** 場次 [lo, hi) */
+    private final class Range extends RecursiveTask<SimStats> {
+        private static final long serialVersionUID = 1L;
+        private final long lo, hi;
+
+        Range(long lo, long hi) { this.lo = lo; this.hi = hi; }
+
+        @Override
+        protected SimStats compute() {
+            if (hi - lo <= LEAF) {
+                SimStats stats = new SimStats();
+                for (long i = lo; i < hi; i++) HeadlessMatch.run(seed + i, p1.get(), p2.get(), stats);
+                done.add(hi - lo);
+                return stats;
+            }
+            long mid = (lo + hi) >>> 1;
+            Range left = new Range(lo, mid);
+            left.fork();
+            SimStats right = new Range(mid, hi).compute();
+            SimStats stats = left.join();
+            stats.add(right);
+            return stats;
+        }
+    }
+
+    /** 在 pool 上跑 matches 場，每隔一段時間印出進度 */
+    public SimStats run(ForkJoinPool pool, long matches) throws InterruptedException, ExecutionException {
+        ForkJoinTask<SimStats> task = pool.submit(new Range(0, matches));
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                return task.get(PROGRESS_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                long n = done.sum();
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf("  %d / %d 場 (%.1f%%)，%.0f 場/秒%n", n, matches, 100.0 * n / matches, n / elapsed);
+            }
+        }
+    }
+
+    public void writeReport(Writer w, SimStats s, int threads, double wall) throws IOException {
+        double simHours = (double) s.ticks / GameEngine.BASE_TICK_RATE / 3600;
+        w.write("# 記憶競速批次模擬報告\n\n");
+        w.write(String.format("場數 %d，seed %d，執行緒 %d，耗時 %.1f 秒 (%.0f 場/秒，%.2f M tick/秒)，相當於 %.1f 小時的遊戲%n",
+                s.matches, seed, threads, wall, s.matches / wall, s.ticks / wall / 1e6, simHours));
+        w.write("P1: " + p1.get() + "\n");
+        w.write("P2: " + p2.get() + "\n\n");
+
+        long races = s.raceWins[0] + s.raceWins[1];
+        w.write("## 勝負\n");
+        w.write(String.format("總分  P1 勝 %6.2f%%  P2 勝 %6.2f%%  平手 %6.2f%%%n", pct(s.p1Wins, s.matches), pct(s.p2Wins, s.matches), pct(s.ties, s.matches)));
+        w.write(String.format("跑步  P1 先到 %6.2f%%  P2 先到 %6.2f%%%n%n", pct(s.raceWins[0], races), pct(s.raceWins[1], races)));
+
+        w.write("## 問答 (依難度 × 題型)\n");
+        w.write(String.format("%-8s %-9s %10s %10s %10s%n", "難度", "題型", "題數", "首答正確", "最終答對"));
+        for (GameEngine.Difficulty d : GameEngine.Difficulty.values()) {
+            for (QuizSystem.Type t : QuizSystem.Type.values()) {
+                long n = s.asked[d.ordinal()][t.ordinal()];
+                if (n == 0) continue;
+                w.write(String.format("%-8s %-9s %10d %9.2f%% %9.2f%%%n", d, t, n,
+                        pct(s.firstCorrect[d.ordinal()][t.ordinal()], n), pct(s.solved[d.ordinal()][t.ordinal()], n)));
+            }
+        }
+
+        w.write("\n## 天空物件生成 (跑步階段，依難度；時間單位為 1/60 秒的 tick)\n");
+        w.write(String.format("%-8s %8s %14s %14s %8s %18s %22s%n", "難度", "比賽數", "平均長度(秒)", "每場生成 平均", "p50/p99", "首次生成 p50/p99", "生成間隔 p50/p99/max"));
+        for (GameEngine.Difficulty d : GameEngine.Difficulty.values()) {
+            int i = d.ordinal();
+            long n = s.races[i];
+            if (n == 0) continue;
+            Histogram per = s.spawnsPerRace[i], first = s.firstSpawn[i], gap = s.spawnGap[i];
+            w.write(String.format("%-8s %8d %14.2f %14.2f %8s %18s %22s%n", d, n,
+                    (double) s.raceTicks[i] / n / GameEngine.BASE_TICK_RATE, (double) s.spawns[i] / n,
+                    per.percentile(50) + "/" + per.percentile(99), first.percentile(50) + "/" + first.percentile(99),
+                    gap.percentile(50) + "/" + gap.percentile(99) + "/" + gap.max()));
+            w.write(String.format("%-8s 每場不同圖片平均 %.2f 種%n", "", (double) s.distinct[i] / n));
+        }
+    }
+
+    private static double pct(long part, long total) { return (total == 0) ? 0 : 100.0 * part / total; }
+
+    public static void main(String[] args) throws Exception {
+        long matches = (args.length > 0) ? Long.parseLong(args[0]) : 1_000_000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 42;
+        Supplier<BotStrategy> p1 = BotStrategy.factory((args.length > 2) ? args[2] : "expert");
+        Supplier<BotStrategy> p2 = BotStrategy.factory((args.length > 3) ? args[3] : "casual");
+        Path report = Path.of((args.length > 4) ? args[4] : "sim-report.txt");
+        int threads = (args.length > 5) ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        BatchSimulator sim = new BatchSimulator(p1, p2, seed);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        System.out.printf("模擬 %d 場，%d 條執行緒：P1 %s，P2 %s%n", matches, threads, p1.get(), p2.get());
+        long start = System.nanoTime();
+        SimStats stats;
+        try {
+            stats = sim.run(pool, matches);
+        } finally {
+            pool.shutdown();
+        }
+        double wall = (System.nanoTime() - start) / 1e9;
+        try (Writer w = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            sim.writeReport(w, stats, threads, wall);
+        }
+        System.out.printf("完成：%.1f 秒，%.0f 場/秒，P1 勝 %.2f%%，報告寫入 %s%n", wall, stats.matches / wall, pct(stats.p1Wins, stats.matches), report.toAbsolutePath());
+    }
+}
+
+// ==========================================
+// 21. 比賽紀錄與排行榜 (MatchHistory)
+// ==========================================
+/**
+ * 只增不減的比賽紀錄檔，加上依玩家名稱的索引與前 N 名排行榜 (每位玩家的最佳分數)。
+ *
+ * 檔案格式：magic "MRHS"、版本，接著是一連串紀錄，每筆為 標籤、本體長度 (varint)、本體：
+ * NAME 為名稱 id 與 UTF-8；MATCH 為開始時間 (epoch 秒)、seed 與兩位玩家的名稱 id；
+ * ROUND 為回合、難度、題型、先到終點者、跑步 tick、問答結果與回合後兩人分數，屬於前一筆 MATCH，
+ * 最後一回合的回合數加上 0x80。除 seed 外皆為 varint，一場三回合約 50 位元組。
+ *
+ * 檔案操作都在單一背景執行緒上依序進行：建構時只排入開檔工作，開檔只映射檔案並檢查檔頭，
+ * 接著在同一條執行緒上掃描建立索引，遊戲第一幀不必等待。寫入先累積在緩衝區，每回合結束才寫檔並 fsync，
+ * 寫完的紀錄同樣從映射區讀回更新索引。排行榜上的比賽內容直接從映射區讀取。
+ * 尾端寫到一半的紀錄 (例如當機) 在開檔時截掉；中間有損毀的紀錄時不動原檔，只讀入損毀處之前的部分、本次不再寫入。
+ */
+final class MatchHistory {
+    static final int MAGIC = 0x4D524853; // "MRHS"
+    static final byte VERSION = 1;
+    static final int TAG_NAME = 1, TAG_MATCH = 2, TAG_ROUND = 3;
+    /** 問答結果：第一位作答者答對、換人後答對、兩人都答錯 */
+    static final int OUTCOME_FIRST = 0, OUTCOME_SECOND = 1, OUTCOME_MISSED = 2;
+    public static final int LEADERBOARD_SIZE = 10;
+    private static final int HEADER = 5, LAST_ROUND = 0x80;
+
+    /** 一位玩家的累計成績；只在 MatchHistory 的鎖內修改，對外交出 Standing 快照 */
+    private static final class Player {
+        final int id; final String name;
+        int matches, wins, best = -1;
+        long bestMatch;
+        int[] matchOffsets = new int[4]; // 依時間排列的 MATCH 紀錄位置
+        int count;
+
+        Player(int id, String name) { this.id = id; this.name = name; }
+
+        void addMatch(int offset) {
+            if (count == matchOffsets.length) matchOffsets = Arrays.copyOf(matchOffsets, count * 2);
+            matchOffsets[count++] = offset;
+        }
+    }
+
+    /** 排行榜或玩家查詢的結果 */
+    static final class Standing {
+        final String name; final int matches, wins, best;
+        final long bestMatch; // 最佳那場的 MATCH 紀錄位置，可交給 readMatch
+
+        Standing(Player p) { name = p.name; matches = p.matches; wins = p.wins; best = p.best; bestMatch = p.bestMatch; }
+    }
+
+    /** 從映射區讀出的一回合 */
+    static final class Round {
+        final int round, difficulty, quizType, raceWinner, raceTicks, outcome, p1Score, p2Score;
+
+        Round(int round, int difficulty, int quizType, int raceWinner, int raceTicks, int outcome, int p1Score, int p2Score) {
+            this.round = round; this.difficulty = difficulty; this.quizType = quizType; this.raceWinner = raceWinner;
+            this.raceTicks = raceTicks; this.outcome = outcome; this.p1Score = p1Score; this.p2Score = p2Score;
+        }
+    }
+
+    /** 從映射區讀出的一場比賽 */
+    static final class Match {
+        final long startedAt, seed; // startedAt 為 epoch 秒
+        final String p1Name, p2Name;
+        final List<Round> rounds = new ArrayList<>();
+
+        Match(long startedAt, long seed, String p1Name, String p2Name) {
+            this.startedAt = startedAt; this.seed = seed; this.p1Name = p1Name; this.p2Name = p2Name;
+        }
+    }
+
+    /** 以絕對位置讀取映射區，每次查詢各自一個，不影響其他執行緒 */
+    private static final class Cursor {
+        final ByteBuffer b; int pos;
+
+        Cursor(ByteBuffer b, int pos) { this.b = b; this.pos = pos; }
+
+        int u8() { return b.get(pos++) & 0xFF; }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int x = b.get(pos++);
+                v |= (long) (x & 0x7F) << shift;
+                if (x >= 0) return v;
+            }
+            throw new IllegalStateException("varint 過長");
+        }
+
+        int uint() { return (int) varint(); }
+    }
+
+    private final Path path;
+    private final ExecutorService io;
+    // 以下只在 io 執行緒上使用
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    private int recordStart;
+    private final Map<String, Integer> pendingNames = new HashMap<>(); // 已編碼、尚未寫檔的新名稱
+    // 以下受 this 保護
+    private MappedByteBuffer map;
+    private long size;
+    private final List<Player> byId = new ArrayList<>();
+    private final Map<String, Player> byName = new HashMap<>();
+    private final TreeSet<Player> top = new TreeSet<>((a, b) -> (a.best != b.best) ? Integer.compare(b.best, a.best)
+            : (a.bestMatch != b.bestMatch) ? Long.compare(a.bestMatch, b.bestMatch) : a.name.compareTo(b.name));
+    private long matchCount;
+    private int scanMatch = -1;               // 掃描中：目前 MATCH 紀錄的位置
+    private long corruptAt = -1;              // 損毀紀錄的位置；-1 表示沒有
+    private Player scanP1, scanP2;
+    private volatile boolean ready;
+    private volatile int version;             // 索引每次更新加一，畫面據此決定是否重取排行榜
+    private volatile long indexNanos;
+
+    MatchHistory(Path path) {
+        this.path = path;
+        io = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "MatchHistory");
+            t.setDaemon(true);
+            return t;
+        });
+        io.execute(this::open);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "MatchHistoryClose")); // 等待排隊中的寫入
+    }
+
+    /** 依 memoryracing.history 屬性 (預設為 memoryracing.home 下的 history.mrh) 開啟，設為 off 時回傳 null */
+    static MatchHistory openDefault() {
+        String p = System.getProperty("memoryracing.history", Path.of(System.getProperty("memoryracing.home", "."), "history.mrh").toString());
+        return p.equals("off") ? null : new MatchHistory(Path.of(p));
+    }
+
+    /**
+     * 以 GameListener 收集每回合的資料交給 MatchHistory：從開始畫面進入倒數時記下比賽 (名稱此時已定)，
+     * 每回合問答結束時寫入一筆回合紀錄。在模擬執行緒上呼叫，只排入工作，不做 I/O。
+     */
+    static final class Recorder implements GameListener {
+        private final GameEngine engine;
+        private final MatchHistory history;
+        private long raceStart;
+        private int raceWinner, raceTicks, quizType, answers, outcome;
+
+        Recorder(GameEngine engine, MatchHistory history) { this.engine = engine; this.history = history; }
+
+        @Override
+        public void onStateChanged(GameEngine.State from, GameEngine.State to) {
+            if (from == GameEngine.State.START && to == GameEngine.State.COUNTDOWN) {
+                history.matchStarted(System.currentTimeMillis() / 1000, engine.getSeed(), engine.p1Name, engine.p2Name);
+            } else if (to == GameEngine.State.RACING) raceStart = engine.getTickIndex();
+            else if (to == GameEngine.State.QUIZ) {
+                quizType = engine.getQuizSystem().getCurrentType().ordinal();
+                answers = 0; outcome = OUTCOME_MISSED;
+            }
+        }
+
+        @Override
+        public void onRaceFinished(int winner) { raceWinner = winner; raceTicks = (int) (engine.getTickIndex() - raceStart); }
+
+        @Override
+        public void onAnswer(int player, int optionIdx, boolean correct) {
+            answers++;
+            if (correct) outcome = (answers == 1) ? OUTCOME_FIRST : OUTCOME_SECOND;
+        }
+
+        /** 在回合數與難度前進之前呼叫，分數已更新 */
+        @Override
+        public void onRoundResult(boolean correct, String feedback) {
+            history.roundEnded(engine.currentRound, engine.difficulty.ordinal(), quizType, raceWinner, raceTicks, outcome,
+                    engine.p1Score, engine.p2Score, engine.currentRound >= 3);
+        }
+    }
+
+    // ---------- 查詢 (任何執行緒) ----------
+
+    /** 索引是否已建好；之前的查詢只會看到空的結果 */
+    public boolean isReady() { return ready; }
+    public int getVersion() { return version; }
+    /** 開檔到索引建好花的時間 */
+    public long getIndexNanos() { return indexNanos; }
+    public synchronized long getMatchCount() { return matchCount; }
+    public synchronized int getPlayerCount() { return byId.size(); }
+
+    /** 前 n 名 (n 不超過 LEADERBOARD_SIZE) */
+    public synchronized List<Standing> leaderboard(int n) {
+        List<Standing> list = new ArrayList<>(Math.min(n, top.size()));
+        for (Player p : top) {
+            if (list.size() == n) break;
+            list.add(new Standing(p));
+        }
+        return list;
+    }
+
+    /** 玩家的累計成績，沒有紀錄時回傳 null */
+    public synchronized Standing player(String name) {
+        Player p = byName.get(name);
+        return (p == null || p.matches == 0) ? null : new Standing(p);
+    }
+
+    /** 玩家最近 limit 場比賽，新的在前 */
+    public synchronized List<Match> recentMatches(String name, int limit) {
+        Player p = byName.get(name);
+        List<Match> list = new ArrayList<>();
+        if (p == null) return list;
+        for (int i = p.count - 1; i >= 0 && list.size() < limit; i--) list.add(readMatch(p.matchOffsets[i]));
+        return list;
+    }
+
+    /** 讀出 offset 處的 MATCH 與其後屬於它的 ROUND */
+    public synchronized Match readMatch(long offset) {
+        Cursor c = new Cursor(map, (int) offset);
+        if (c.u8() != TAG_MATCH) throw new IllegalArgumentException("不是比賽紀錄: " + offset);
+        c.uint();
+        long startedAt = c.varint(), seed = map.getLong(c.pos);
+        c.pos += 8;
+        Match m = new Match(startedAt, seed, byId.get(c.uint()).name, byId.get(c.uint()).name);
+        while (c.pos < size) {
+            int tag = c.u8(), len = c.uint(), next = c.pos + len;
+            if (tag == TAG_MATCH) break;
+            if (tag == TAG_ROUND) {
+                int round = c.uint();
+                m.rounds.add(new Round(round & ~LAST_ROUND, c.uint(), c.uint(), c.uint(), c.uint(), c.uint(), c.uint(), c.uint()));
+                if ((round & LAST_ROUND) != 0) break;
+            }
+            c.pos = next;
+        }
+        return m;
+    }
+
+    // ---------- 寫入 (模擬執行緒呼叫，排進 io 執行緒) ----------
+
+    /** 比賽開始：名稱在此時決定 */
+    public void matchStarted(long epochSeconds, long seed, String p1Name, String p2Name) {
+        io.execute(() -> {
+            int p1 = nameId(p1Name), p2 = nameId(p2Name);
+            ByteBuffer b = record(TAG_MATCH, 10 + 8 + 10);
+            varint(b, epochSeconds); b.putLong(seed); varint(b, p1); varint(b, p2);
+            endRecord(b);
+        });
+    }
+
+    /** 回合結束：寫檔並 fsync */
+    public void roundEnded(int round, int difficulty, int quizType, int raceWinner, int raceTicks, int outcome, int p1Score, int p2Score, boolean last) {
+        io.execute(() -> {
+            ByteBuffer b = record(TAG_ROUND, 8 * 5);
+            varint(b, round | (last ? LAST_ROUND : 0)); varint(b, difficulty); varint(b, quizType); varint(b, raceWinner);
+            varint(b, raceTicks); varint(b, outcome); varint(b, p1Score); varint(b, p2Score);
+            endRecord(b);
+            flush();
+        });
+    }
+
+    /** 等待排隊中的寫入完成並關檔 (關閉遊戲時由 shutdown hook 呼叫) */
+    public void close() {
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(2, TimeUnit.SECONDS)) System.out.println("比賽紀錄未能在時限內寫完");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------- io 執行緒 ----------
+
+    private void open() {
+        long start = System.nanoTime();
+        try {
+            Path dir = path.toAbsolutePath().getParent();
+            if (dir != null) Files.createDirectories(dir);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long n = channel.size();
+            if (n == 0) {
+                ByteBuffer h = ByteBuffer.allocate(HEADER).putInt(MAGIC).put(VERSION).flip();
+                while (h.hasRemaining()) channel.write(h, HEADER - h.remaining());
+                channel.force(true);
+                n = HEADER;
+            }
+            synchronized (this) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, n);
+                if (n < HEADER || map.getInt(0) != MAGIC || map.get(4) != VERSION) {
+                    System.out.println("比賽紀錄格式不符，不再寫入: " + path);
+                    channel.close(); channel = null;
+                    return;
+                }
+                long end = index(HEADER, n);
+                if (corruptAt >= 0) {
+                    System.out.printf("比賽紀錄在位置 %d 損毀，保留原檔、只讀入之前的 %d 場，本次不再寫入: %s%n", corruptAt, matchCount, path);
+                    channel.close(); channel = null;
+                } else if (end < n) {
+                    System.out.printf("比賽紀錄尾端有 %d 位元組不完整，已截掉%n", n - end);
+                    channel.truncate(end);
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                }
+                size = end;
+            }
+            indexNanos = System.nanoTime() - start;
+            ready = true;
+            version++;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("比賽紀錄無法開啟，本次不記錄: " + e.getMessage());
+            channel = null;
+        }
+    }
+
+    /**
+     * 掃描 [from, to) 的紀錄更新索引 (持有鎖)，回傳最後一筆完整紀錄的結尾。
+     * 標籤或長度讀到一半、或本體超出 to 的是寫到一半的尾端；本體完整卻讀不出來的記在 corruptAt。
+     */
+    private long index(long from, long to) {
+        Cursor c = new Cursor(map, (int) from);
+        long end = from;
+        while (c.pos < to) {
+            int at = c.pos, tag, len;
+            try {
+                tag = c.u8(); len = c.uint();
+            } catch (IndexOutOfBoundsException e) {
+                break; // 寫到一半
+            } catch (IllegalStateException e) {
+                corruptAt = at;
+                break;
+            }
+            int body = c.pos;
+            if (body + (long) len > to) break; // 寫到一半
+            try {
+                switch (tag) {
+                    case TAG_NAME: {
+                        int id = c.uint();
+                        byte[] utf8 = new byte[c.uint()];
+                        map.get(c.pos, utf8);
+                        if (id != byId.size()) throw new IllegalStateException("名稱 id 不連續: " + id);
+                        Player p = new Player(id, new String(utf8, StandardCharsets.UTF_8));
+                        byId.add(p); byName.put(p.name, p);
+                        break;
+                    }
+                    case TAG_MATCH:
+                        scanMatch = at;
+                        c.varint(); c.pos += 8;
+                        scanP1 = byId.get(c.uint()); scanP2 = byId.get(c.uint());
+                        break;
+                    case TAG_ROUND: {
+                        if ((c.uint() & LAST_ROUND) == 0 || scanMatch < 0) break; // 只有最後一回合影響索引
+                        for (int i = 0; i < 5; i++) c.uint();
+                        int p1Score = c.uint(), p2Score = c.uint();
+                        finishMatch(p1Score, p2Score);
+                        break;
+                    }
+                    default: break; // 新版本的紀錄，略過
+                }
+            } catch (IndexOutOfBoundsException | IllegalStateException e) {
+                corruptAt = at; // 保留到上一筆為止
+                break;
+            }
+            c.pos = body + len;
+            end = c.pos;
+        }
+        return end;
+    }
+
+    private void finishMatch(int p1Score, int p2Score) {
+        matchCount++;
+        addResult(scanP1, p1Score, p1Score > p2Score);
+        addResult(scanP2, p2Score, p2Score > p1Score);
+        scanMatch = -1;
+    }
+
+    /** 只有最佳分數改變時才重新排序，排行榜只保留前 LEADERBOARD_SIZE 名 (分數只增不減，掉出去的不會再回來) */
+    private void addResult(Player p, int score, boolean won) {
+        p.matches++;
+        if (won) p.wins++;
+        p.addMatch(scanMatch);
+        if (score <= p.best) return;
+        top.remove(p);
+        p.best = score; p.bestMatch = scanMatch;
+        top.add(p);
+        if (top.size() > LEADERBOARD_SIZE) top.pollLast();
+    }
+
+    private int nameId(String name) {
+        Player p;
+        synchronized (this) { p = byName.get(name); }
+        if (p != null) return p.id;
+        Integer id = pendingNames.get(name);
+        if (id != null) return id;
+        int newId;
+        synchronized (this) { newId = byId.size() + pendingNames.size(); }
+        pendingNames.put(name, newId);
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = record(TAG_NAME, 20 + utf8.length);
+        varint(b, newId); varint(b, utf8.length); b.put(utf8);
+        endRecord(b);
+        return newId;
+    }
+
+    /** 開始一筆紀錄：預留 5 位元組給長度欄位，endRecord 時補上 */
+    private ByteBuffer record(int tag, int maxBody) {
+        if (pending.remaining() < 1 + 5 + maxBody) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 6 + maxBody));
+            pending.flip();
+            pending = bigger.put(pending);
+        }
+        recordStart = pending.position();
+        pending.put((byte) tag);
+        pending.position(recordStart + 1 + 5);
+        return pending;
+    }
+
+    /** 寫入長度並把本體往前移到長度欄位之後 (本體只有數十位元組) */
+    private void endRecord(ByteBuffer b) {
+        int lenAt = recordStart + 1, bodyAt = lenAt + 5, len = b.position() - bodyAt;
+        b.position(lenAt);
+        varint(b, len);
+        System.arraycopy(b.array(), bodyAt, b.array(), b.position(), len);
+        b.position(b.position() + len);
+    }
+
+    private static void varint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) { b.put((byte) ((v & 0x7F) | 0x80)); v >>>= 7; }
+        b.put((byte) v);
+    }
+
+    /** 把緩衝區附加到檔尾並 fsync，寫完從映射區讀回新紀錄更新索引 */
+    private void flush() {
+        if (pending.position() == 0) return;
+        pending.flip();
+        try {
+            if (channel == null) return;
+            long at = size;
+            while (pending.hasRemaining()) at += channel.write(pending, at);
+            channel.force(false);
+            synchronized (this) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, at);
+                size = index(size, at);
+            }
+            if (corruptAt >= 0) {
+                System.out.printf("剛寫入的比賽紀錄在位置 %d 讀不回來，本次不再寫入: %s%n", corruptAt, path);
+                channel.close(); channel = null;
+            }
+            version++;
+        } catch (IOException e) {
+            System.out.println("比賽紀錄寫入失敗: " + e.getMessage());
+        } finally {
+            pending.clear();
+            pendingNames.clear();
+        }
+    }
+
+    /**
+     * 檢視紀錄檔：印出開檔與建立索引的時間、排行榜與指定玩家最近的比賽。
+     * --fill 場數 以亂數附加假的比賽 (一次寫入)，用來測試大型紀錄檔。
+     * 執行：java -cp project/target/classes memoryracing.MatchHistory [檔案] [--fill 場數] [名稱...]
+     */
+    public static void main(String[] args) throws Exception {
+        Path file = Path.of((args.length > 0) ? args[0] : "history.mrh");
+        long start = System.nanoTime();
+        MatchHistory h = new MatchHistory(file);
+        double openMs = (System.nanoTime() - start) / 1e6;
+        int next = 1;
+        if (args.length > 2 && args[1].equals("--fill")) {
+            int n = Integer.parseInt(args[2]);
+            next = 3;
+            h.io.submit(() -> {
+                SplittableRandom r = new SplittableRandom(n);
+                long now = System.currentTimeMillis() / 1000;
+                for (int m = 0; m < n; m++) {
+                    int a = h.nameId("玩家" + r.nextInt(5000)), b = h.nameId("玩家" + r.nextInt(5000)); // 名稱紀錄要在比賽紀錄之前
+                    ByteBuffer rec = h.record(TAG_MATCH, 28);
+                    varint(rec, now - n + m); rec.putLong(r.nextLong()); varint(rec, a); varint(rec, b);
+                    h.endRecord(rec);
+                    int s1 = 0, s2 = 0;
+                    for (int round = 1; round <= 3; round++) {
+                        if (r.nextBoolean()) s1 += 25; else if (r.nextInt(3) > 0) s2 += 25;
+                        rec = h.record(TAG_ROUND, 40);
+                        varint(rec, round | ((round == 3) ? LAST_ROUND : 0)); varint(rec, round - 1); varint(rec, r.nextInt(4));
+                        varint(rec, 1 + r.nextInt(2)); varint(rec, 400 + r.nextInt(400)); varint(rec, r.nextInt(3)); varint(rec, s1); varint(rec, s2);
+                        h.endRecord(rec);
+                    }
+                    if (h.pending.position() > (1 << 20)) h.flush();
+                }
+                h.flush();
+            }).get();
+        }
+        while (!h.isReady() && h.channel != null) Thread.sleep(1);
+        h.io.submit(() -> {}).get(); // 等排隊中的工作做完
+        System.out.printf("%s：%d 場、%d 位玩家、%.1f MB；建構 %.2f ms，開檔與建立索引 %.1f ms (背景執行緒)%n",
+                file, h.getMatchCount(), h.getPlayerCount(), h.size / 1e6, openMs, h.getIndexNanos() / 1e6);
+        List<Standing> board = h.leaderboard(LEADERBOARD_SIZE);
+        for (int i = 0; i < board.size(); i++) {
+            Standing s = board.get(i);
+            System.out.printf("%2d. %-12s 最佳 %4d (%d 場 %d 勝)%n", i + 1, s.name, s.best, s.matches, s.wins);
+        }
+        for (int i = next; i < args.length; i++) {
+            Standing s = h.player(args[i]);
+            if (s == null) { System.out.println(args[i] + "：沒有紀錄"); continue; }
+            System.out.printf("%s：%d 場 %d 勝，最佳 %d%n", s.name, s.matches, s.wins, s.best);
+            for (Match m : h.recentMatches(args[i], 5)) {
+                Round last = m.rounds.get(m.rounds.size() - 1);
+                System.out.printf("  %s  %s %d : %d %s  (%d 回合)%n", Instant.ofEpochSecond(m.startedAt), m.p1Name, last.p1Score, last.p2Score, m.p2Name, m.rounds.size());
+            }
+        }
+        h.close();
+    }
+}
+
+// ==========================================
+// 22. 主動繪製 (CanvasRenderer)
+// ==========================================
+/**
+ * 以 Canvas + BufferStrategy 取代 Swing 的 repaint：GameLoop 每幀投遞一個繪製事件 (前一個還沒執行就不再投遞)，
+ * 在 EDT 上把 1000x700 的邏輯畫面等比縮放進畫布、兩側補黑邊，畫完直接翻頁，
+ * 不經過 RepaintManager 的合併與多一次的雙緩衝複製。繪製仍留在 EDT，DialogLayer 與各快取照舊只有一條執行緒使用。
+ * 全螢幕獨占模式下由顯示卡翻頁並對齊垂直同步；視窗模式在翻頁後以 Toolkit.sync 立即送出。
+ */
+final class CanvasRenderer {
+    private final GamePanel scene;
+    private final int buffers;
+    private final Canvas canvas = new Canvas();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable renderTask = this::render;
+    private BufferStrategy strategy;
+    private boolean fullScreen;
+    // 最近一幀的縮放比例與黑邊寬度，滑鼠座標以此換回邏輯座標
+    private double scale = 1;
+    private int offsetX, offsetY;
+    private long lostFrames;
+
+    CanvasRenderer(GamePanel scene, int buffers) {
+        if (buffers < 2 || buffers > 3) throw new IllegalArgumentException("buffers: " + buffers);
+        this.scene = scene;
+        this.buffers = buffers;
+        canvas.setIgnoreRepaint(true);
+        canvas.setFocusable(false); // 按鍵留給主視窗的 KeyListener
+        canvas.setBackground(Color.BLACK);
+        canvas.setPreferredSize(new Dimension(MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT));
+        canvas.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) { scene.pressAt(toScene(e.getPoint())); }
+        });
+    }
+
+    public Canvas getCanvas() { return canvas; }
+
+    /**
+     * 顯示 frame：全螢幕獨占 (裝置不支援時改為蓋滿螢幕的無邊框視窗) 或一般視窗，
+     * 並把 GameLoop 的畫面更新上限設為螢幕更新率，讓每次翻頁剛好對上一次垂直同步。
+     * 全螢幕時 frame 須在顯示前就 setUndecorated(true)。
+     */
+    void show(JFrame frame, boolean fullScreen) {
+        GraphicsDevice device = frame.getGraphicsConfiguration().getDevice();
+        if (fullScreen && device.isFullScreenSupported()) {
+            frame.setResizable(false);
+            device.setFullScreenWindow(frame);
+            this.fullScreen = true;
+        } else {
+            if (fullScreen) frame.setBounds(device.getDefaultConfiguration().getBounds());
+            frame.setVisible(true);
+        }
+        int hz = device.getDisplayMode().getRefreshRate();
+        if (hz != DisplayMode.REFRESH_RATE_UNKNOWN) scene.getGameLoop().setFrameCap(hz);
+    }
+
+    /** 模擬執行緒：要求畫一幀；上一幀還在排隊就略過，由 FrameStats 記為掉幀 */
+    void requestFrame() {
+        if (scheduled.compareAndSet(false, true)) EventQueue.invokeLater(renderTask);
+    }
+
+    private void render() {
+        scheduled.set(false);
+        if (!canvas.isDisplayable() || canvas.getWidth() <= 0 || canvas.getHeight() <= 0) return;
+        if (strategy == null) strategy = createStrategy();
+        FrameStats stats = scene.getFrameStats();
+        while (true) {
+            do {
+                Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    draw(g);
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            long t = System.nanoTime();
+            strategy.show();
+            Toolkit.getDefaultToolkit().sync();
+            stats.recordPresent(System.nanoTime() - t);
+            if (!strategy.contentsLost()) break;
+            lostFrames++; // 顯示卡重置等情況，整幀重畫
+        }
+    }
+
+    /** 優先要求可翻頁的加速緩衝，不支援時交給 AWT 自行選擇 (視窗模式下通常是複製式) */
+    private BufferStrategy createStrategy() {
+        try {
+            canvas.createBufferStrategy(buffers, new BufferCapabilities(new ImageCapabilities(true),
+                    new ImageCapabilities(true), BufferCapabilities.FlipContents.UNDEFINED));
+        } catch (AWTException e) {
+            canvas.createBufferStrategy(buffers);
+        }
+        return canvas.getBufferStrategy();
+    }
+
+    private void draw(Graphics2D g) {
+        int w = canvas.getWidth(), h = canvas.getHeight();
+        scale = Math.min(w / (double) MemoryRacingGame.WIDTH, h / (double) MemoryRacingGame.HEIGHT);
+        int sw = (int) Math.round(MemoryRacingGame.WIDTH * scale), sh = (int) Math.round(MemoryRacingGame.HEIGHT * scale);
+        offsetX = (w - sw) / 2; offsetY = (h - sh) / 2;
+        if (sw != w || sh != h) { g.setColor(Color.BLACK); g.fillRect(0, 0, w, h); }
+        g.translate(offsetX, offsetY);
+        g.scale(scale, scale);
+        g.clipRect(0, 0, MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT);
+        // SceneLayer 依縮放比例以裝置像素重畫；其餘預先縮放的圖片再放大時用雙線性內插
+        if (scale != 1) g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setColor(scene.getBackground());
+        g.fillRect(0, 0, MemoryRacingGame.WIDTH, MemoryRacingGame.HEIGHT);
+        scene.paintScene(g);
+    }
+
+    /** 畫布座標換成邏輯座標；落在黑邊上的點會超出 1000x700，不會命中任何按鈕 */
+    Point toScene(Point p) {
+        return new Point((int) Math.floor((p.x - offsetX) / scale), (int) Math.floor((p.y - offsetY) / scale));
+    }
+
+    /** 疊加層顯示用，例如 "full flip x3 2560x1440 @2.06" */
+    String describe() {
+        boolean flip = strategy != null && strategy.getCapabilities().isPageFlipping();
+        return String.format("%s %s x%d %dx%d @%.2f%s", fullScreen ? "full" : "window", flip ? "flip" : "blit",
+                buffers, canvas.getWidth(), canvas.getHeight(), scale, (lostFrames > 0) ? " lost " + lostFrames : "");
+    }
+}
+
+// ==========================================
+// 23. 畫質調節 (QualityGovernor)
+// ==========================================
+/**
+ * 依每幀的繪製時間自動切換畫質：最近 WINDOW 幀中有 OVER_LIMIT 幀超出預算就降一級，
+ * 連續一段時間 (預設 HEADROOM_FRAMES 幀) 都在預算一半以內才升一級。升上某級後不久又降回，
+ * 下次要升到該級所需的時間加倍，避免在兩級之間來回切換；每次換級後 COOLDOWN 幀內不再判斷。
+ * 只在 EDT 上使用。粒子只是少畫、模擬照常，因此重播與連線對戰的結果不受畫質影響。
+ */
+final class QualityGovernor {
+    /** 由高到低；particleStride 為每幾個粒子畫一個，spriteScale 為人物與照片預縮放的解析度比例 (再放大到原尺寸) */
+    enum Tier {
+        HIGH(true, 1, 1f), MEDIUM(true, 2, 1f), LOW(false, 2, 0.5f), MINIMAL(false, 4, 0.5f);
+
+        final boolean antialias;
+        final int particleStride;
+        final float spriteScale;
+
+        Tier(boolean antialias, int particleStride, float spriteScale) {
+            this.antialias = antialias;
+            this.particleStride = particleStride;
+            this.spriteScale = spriteScale;
+        }
+    }
+
+    /** 一次換級；time 為 System.currentTimeMillis() */
+    static final class Transition {
+        final long time;
+        final Tier from, to;
+        final String reason;
+
+        Transition(long time, Tier from, Tier to, String reason) {
+            this.time = time; this.from = from; this.to = to; this.reason = reason;
+        }
+
+        @Override
+        public String toString() { return String.format("%tT %s -> %s (%s)", time, from, to, reason); }
+    }
+
+    static final int WINDOW = 30, OVER_LIMIT = 10, COOLDOWN = 60;
+    static final int HEADROOM_FRAMES = 180, MAX_HEADROOM_FRAMES = 3600;
+    private static final long BOUNCE_NANOS = 10_000_000_000L; // 升級後這段時間內又降回視為來回切換
+    private static final int MAX_HISTORY = 32;
+    private static final Tier[] TIERS = Tier.values();
+
+    private final long budgetNanos;
+    private final boolean auto;
+    private Tier tier;
+    private final boolean[] over = new boolean[WINDOW]; // 最近 WINDOW 幀是否超出預算 (環狀)
+    private int head, filled, overCount, calmFrames, cooldown;
+    private final int[] headroomFrames = new int[TIERS.length]; // 升到該級所需的連續低負載幀數
+    private Tier lastUpgrade;
+    private long lastUpgradeAt;
+    private final ArrayDeque<Transition> history = new ArrayDeque<>();
+    private int transitions;
+
+    /** auto 為 false 時固定在 initial，只記錄不調整 (調校各級效果用) */
+    QualityGovernor(Tier initial, long budgetNanos, boolean auto) {
+        if (budgetNanos <= 0) throw new IllegalArgumentException("budget: " + budgetNanos);
+        this.tier = Objects.requireNonNull(initial);
+        this.budgetNanos = budgetNanos;
+        this.auto = auto;
+        Arrays.fill(headroomFrames, HEADROOM_FRAMES);
+    }
+
+    /**
+     * memoryracing.quality 為 auto (預設，從 HIGH 開始) 或固定的等級名稱 (HIGH / MEDIUM / LOW / MINIMAL)；
+     * memoryracing.quality.budget 為每幀繪製預算 (毫秒，預設 16)。
+     */
+    static QualityGovernor fromSystemProperties() {
+        String mode = System.getProperty("memoryracing.quality", "auto");
+        long budget = (long) (Double.parseDouble(System.getProperty("memoryracing.quality.budget", "16")) * 1_000_000);
+        if (mode.equals("auto")) return new QualityGovernor(Tier.HIGH, budget, true);
+        return new QualityGovernor(Tier.valueOf(mode.toUpperCase(Locale.ROOT)), budget, false);
+    }
+
+    /** 每幀畫完後以該幀的繪製時間呼叫；回傳 true 表示換級，從下一幀起生效 */
+    public boolean frame(long paintNanos, long now) {
+        if (!auto) return false;
+        boolean late = paintNanos > budgetNanos;
+        if (filled == WINDOW && over[head]) overCount--;
+        over[head] = late;
+        if (late) overCount++;
+        head = (head + 1) % WINDOW;
+        if (filled < WINDOW) filled++;
+        calmFrames = (paintNanos * 2 <= budgetNanos) ? calmFrames + 1 : 0;
+        if (cooldown > 0) { cooldown--; return false; }
+
+        int t = tier.ordinal();
+        if (overCount >= OVER_LIMIT && t < TIERS.length - 1) {
+            if (tier == lastUpgrade && now - lastUpgradeAt < BOUNCE_NANOS)
+                headroomFrames[t] = Math.min(headroomFrames[t] * 2, MAX_HEADROOM_FRAMES);
+            change(TIERS[t + 1], String.format("%d/%d 幀超過 %.1fms", overCount, WINDOW, budgetNanos / 1e6));
+            return true;
+        }
+        if (t > 0 && calmFrames >= headroomFrames[t - 1]) {
+            lastUpgrade = TIERS[t - 1]; lastUpgradeAt = now;
+            change(lastUpgrade, String.format("連續 %d 幀低於 %.1fms", calmFrames, budgetNanos / 2e6));
+            return true;
+        }
+        return false;
+    }
+
+    private void change(Tier to, String reason) {
+        if (history.size() == MAX_HISTORY) history.removeFirst();
+        Transition tr = new Transition(System.currentTimeMillis(), tier, to, reason);
+        history.addLast(tr);
+        transitions++;
+        System.out.println("畫質 " + tr);
+        tier = to;
+        Arrays.fill(over, false);
+        head = filled = overCount = calmFrames = 0;
+        cooldown = COOLDOWN;
+    }
+
+    public Tier getTier() { return tier; }
+    public boolean isAuto() { return auto; }
+    public long getBudgetNanos() { return budgetNanos; }
+    public int getTransitionCount() { return transitions; }
+    /** 要升到 t 所需的連續低負載幀數 (來回切換後會加倍) */
+    public int getHeadroomFrames(Tier t) { return headroomFrames[t.ordinal()]; }
+    /** 最近 MAX_HISTORY 次換級，由舊到新 */
+    public List<Transition> getHistory() { return new ArrayList<>(history); }
+}
+
+// ==========================================
+// 24. 內容包與照片快取 (ContentPack / PhotoDeck / TextureCache)
+// ==========================================
+/**
+ * 題庫內容：簡單與普通難度的表情符號及其干擾選項，困難難度的任務照片與干擾照片。
+ * 以 memoryracing.content 指定 UTF-8 的 properties 清單載入，未指定時使用內建的預設題庫 (原本寫死的內容)。
+ * 照片欄位可列出個別檔案或以 / 結尾的目錄 (取其中的 .jpg / .jpeg / .png，依檔名排序)，路徑相對於清單所在的目錄：
+ * <pre>
+ * name = 動物園
+ * easy = 🍎 🍌 🍒
+ * easy.distractors = 🍊 🍐 🍇
+ * normal = 🐶 🐱 🐭
+ * normal.distractors = 🦊 🐯 🐵
+ * hard = photos/tasks/
+ * hard.distractors = photos/d1.png photos/d2.png
+ * </pre>
+ * 不含 Swing，伺服器與無畫面模擬也用它決定代號表；連線雙方與重播都必須使用同一份題庫。
+ */
+final class ContentPack {
+    static final ContentPack DEFAULT = new ContentPack("預設", null,
+            new String[]{"🍎", "🍌", "🍒", "🍍", "🍓", "🍑", "🍉"}, new String[]{"🍊", "🍐", "🍇", "🍆", "🥕", "🌽"},
+            new String[]{"🐶", "🐱", "🐭", "🦄", "🐰", "🐷", "🐻", "🐼"}, new String[]{"🦊", "🐯", "🐵", "🦁", "🐸", "🐔"},
+            new String[]{"image/t1.jpg", "image/t2.jpg", "image/t3.jpg", "image/t4.jpg", "image/t5.jpg", "image/t6.jpg", "image/t7.jpg", "image/t8.jpg"},
+            new String[]{"image/d1.png", "image/d2.jpg", "image/d3.jpg", "image/d4.jpg"});
+    private static final int MAX_SPRITES = Short.MAX_VALUE; // 連線快照以 short 傳送天空物件代號
+    private static ContentPack current;
+
+    final String name;
+    private final Path baseDir; // null 表示內建題庫，照片相對於 memoryracing.home 並可從素材包讀取
+    private final String[] easy, easyDistractors, normal, normalDistractors, tasks, distractors;
+
+    private ContentPack(String name, Path baseDir, String[] easy, String[] easyDistractors, String[] normal,
+                        String[] normalDistractors, String[] tasks, String[] distractors) {
+        this.name = name; this.baseDir = baseDir;
+        this.easy = easy; this.easyDistractors = easyDistractors; this.normal = normal; this.normalDistractors = normalDistractors;
+        this.tasks = tasks; this.distractors = distractors;
+    }
+
+    /** memoryracing.content 指定的題庫 (第一次呼叫時載入)，未指定時為 DEFAULT；清單有誤時丟出例外 */
+    static synchronized ContentPack current() {
+        if (current == null) {
+            String path = System.getProperty("memoryracing.content");
+            try {
+                current = (path == null) ? DEFAULT : load(Path.of(path));
+            } catch (IOException e) {
+                throw new IllegalStateException("無法讀取題庫 " + path, e);
+            }
+        }
+        return current;
+    }
+
+    static ContentPack load(Path manifest) throws IOException {
+        Properties p = new Properties();
+        try (Reader r = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            p.load(r);
+        }
+        Path dir = manifest.toAbsolutePath().getParent();
+        ContentPack pack = new ContentPack(p.getProperty("name", manifest.getFileName().toString()), dir,
+                list(p, "easy", 1), list(p, "easy.distractors", 2), list(p, "normal", 1), list(p, "normal.distractors", 2),
+                photos(p, "hard", dir, 1), photos(p, "hard.distractors", dir, 2));
+        requireDistinct(pack.easyDistractors, pack.easy, "easy.distractors");
+        requireDistinct(pack.normalDistractors, pack.normal, "normal.distractors");
+        if (1 + pack.tasks.length + pack.distractors.length + pack.getAllEmoji().size() > MAX_SPRITES)
+            throw new IOException(manifest + " 的圖片超過 " + MAX_SPRITES + " 種");
+        return pack;
+    }
+
+    private static String[] list(Properties p, String key, int min) throws IOException {
+        String v = p.getProperty(key, "").trim();
+        String[] items = v.isEmpty() ? new String[0] : v.split("[\\s,]+");
+        if (items.length < min) throw new IOException(key + " 至少需要 " + min + " 項，只有 " + items.length + " 項");
+        return items;
+    }
+
+    /** 辨識題要兩個錯誤選項：干擾池扣掉與題庫重複的項目後至少要剩兩個 */
+    private static void requireDistinct(String[] dists, String[] pool, String key) throws IOException {
+        Set<String> seen = new HashSet<>(Arrays.asList(pool));
+        int unique = 0;
+        for (String d : new LinkedHashSet<>(Arrays.asList(dists))) if (!seen.contains(d)) unique++;
+        if (unique < 2) throw new IOException(key + " 至少需要 2 項不在題庫中的項目，只有 " + unique + " 項");
+    }
+
+    /** 展開目錄項目；檔案是否存在留到載入照片時才檢查 (缺檔只提示) */
+    private static String[] photos(Properties p, String key, Path dir, int min) throws IOException {
+        List<String> out = new ArrayList<>();
+        for (String item : list(p, key, 1)) {
+            if (!item.endsWith("/")) { out.add(item); continue; }
+            try (Stream<Path> files = Files.list(dir.resolve(item))) {
+                files.map(f -> f.getFileName().toString())
+                     .filter(n -> n.toLowerCase(Locale.ROOT).matches(".*\\.(jpe?g|png)"))
+                     .sorted().forEach(n -> out.add(item + n));
+            }
+        }
+        if (out.size() < min) throw new IOException(key + " 至少需要 " + min + " 張照片，只有 " + out.size() + " 張");
+        return out.toArray(new String[0]);
+    }
+
+    public String[] getPool(GameEngine.Difficulty diff) { return (diff == GameEngine.Difficulty.EASY) ? easy : normal; }
+    public String[] getDistractorPool(GameEngine.Difficulty diff) { return (diff == GameEngine.Difficulty.EASY) ? easyDistractors : normalDistractors; }
+    public int taskCount() { return tasks.length; }
+    public int distractorCount() { return distractors.length; }
+    /** 照片在題庫中的路徑，同時作為 TextureCache 的鍵 */
+    public String taskPhoto(int i) { return tasks[i]; }
+    public String distractorPhoto(int i) { return distractors[i]; }
+    public boolean isBuiltIn() { return baseDir == null; }
+    /** 照片的實際檔案位置 */
+    public File photoFile(String path) {
+        return (baseDir == null) ? new File(System.getProperty("memoryracing.home", "."), path) : baseDir.resolve(path).toFile();
+    }
+
+    /** 所有照片路徑 (任務在前)，打包素材包用 */
+    public List<String> getAllPhotos() {
+        List<String> all = new ArrayList<>(Arrays.asList(tasks));
+        all.addAll(Arrays.asList(distractors));
+        return all;
+    }
+
+    /** 題庫與干擾選項中會出現的表情符號，供 EmojiAtlas 預先點陣化 */
+    public List<String> getAllEmoji() {
+        List<String> all = new ArrayList<>();
+        for (String[] pool : new String[][]{easy, normal, easyDistractors, normalDistractors}) all.addAll(Arrays.asList(pool));
+        return all;
+    }
+
+    @Override
+    public String toString() { return String.format("ContentPack[%s, %d 張任務照片, %d 張干擾照片]", name, tasks.length, distractors.length); }
+}
+
+/**
+ * 困難難度每回合要用的照片：從題庫依序發牌，整副發完才以比賽的亂數重新洗牌，照片多時連續多回合都不重複。
+ * 照片數不超過一手時不洗牌、直接循環發出 (內建題庫正是如此)，亂數用量與改版前相同，舊的重播仍然一致。
+ */
+final class PhotoDeck {
+    private final int[] cards, hand;
+    private int next;
+
+    /** size 張照片，每手 handSize 張；發牌前的一手是前 handSize 張 */
+    PhotoDeck(int size, int handSize) {
+        if (size <= 0 || handSize <= 0) throw new IllegalArgumentException("deck " + size + ", hand " + handSize);
+        cards = new int[size];
+        for (int i = 0; i < size; i++) cards[i] = i;
+        hand = new int[handSize];
+        for (int i = 0; i < handSize; i++) hand[i] = i % size;
+        next = size; // 第一次發牌時洗牌
+    }
+
+    /** 發下一手，回傳內部陣列 (長度為 handSize，照片索引) */
+    int[] deal(Random random) {
+        for (int i = 0; i < hand.length; i++) {
+            if (next == cards.length) {
+                next = 0;
+                if (cards.length > hand.length) shuffle(random);
+            }
+            hand[i] = cards[next++];
+        }
+        return hand;
+    }
+
+    /** 目前這一手 (呼叫端不可修改) */
+    int[] hand() { return hand; }
+
+    private void shuffle(Random random) {
+        for (int i = cards.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1), t = cards[i];
+            cards[i] = cards[j]; cards[j] = t;
+        }
+    }
+}
+
+/**
+ * 照片的 LRU 快取：已解碼的圖片總量以位元組預算為上限，超出時淘汰最久沒用到的 (剛載入的那張一定保留)。
+ * get 在 EDT 上呼叫，未命中時排入背景解碼並回傳 null，這一幀先不畫；prefetch 讓下一回合的照片在倒數時先解碼好。
+ * 解碼失敗的照片記下來不再重試。被淘汰的圖片由 drainEvicted 交給畫面端，一併丟掉以它為來源的預縮放圖。
+ */
+final class TextureCache {
+    /** 依鍵解碼出螢幕相容的圖片；無法解碼時回傳 null (由實作自行提示原因) */
+    interface Decoder { BufferedImage decode(String key) throws IOException; }
+
+    private static final int MAX_EVICTED = 256; // 畫面端沒在清 (無畫面) 時最多暫存的淘汰紀錄
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final long budgetBytes;
+    private final Decoder decoder;
+    private final ExecutorService pool;
+    private final LinkedHashMap<String, BufferedImage> resident = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, CompletableFuture<Void>> loading = new HashMap<>();
+    private final Set<String> failed = new HashSet<>();
+    private final ArrayDeque<Image> evicted = new ArrayDeque<>();
+    private final Histogram decodeTime = new Histogram(); // 微秒
+    private long residentBytes, hits, misses, evictions, loads;
+
+    TextureCache(long budgetBytes, int threads, Decoder decoder) {
+        if (budgetBytes <= 0) throw new IllegalArgumentException("budget: " + budgetBytes);
+        this.budgetBytes = budgetBytes;
+        this.decoder = decoder;
+        AtomicInteger serial = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "TextureLoader-" + serial.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** memoryracing.textures.budget (MB，預設 64) */
+    static long budgetFromSystemProperties() { return Long.getLong("memoryracing.textures.budget", 64) << 20; }
+
+    /** 常駐時回傳圖片並標記為最近使用；未命中時開始背景解碼並回傳 null */
+    public synchronized BufferedImage get(String key) {
+        BufferedImage img = resident.get(key);
+        if (img != null) { hits++; return img; }
+        misses++;
+        load(key);
+        return null;
+    }
+
+    /** 預先解碼 key (已常駐的只標記為最近使用，不算命中)；回傳處理完 (不論成功與否) 時完成的 future */
+    public synchronized CompletableFuture<Void> prefetch(String key) {
+        return (resident.get(key) != null) ? DONE : load(key);
+    }
+
+    public synchronized boolean isResident(String key) { return resident.containsKey(key); }
+
+    private CompletableFuture<Void> load(String key) {
+        if (failed.contains(key)) return DONE;
+        CompletableFuture<Void> f = loading.get(key);
+        if (f == null) {
+            f = CompletableFuture.runAsync(() -> decode(key), pool); // decode 要等這裡放開鎖才會移除
+            loading.put(key, f);
+        }
+        return f;
+    }
+
+    private void decode(String key) {
+        long t0 = System.nanoTime();
+        BufferedImage img = null;
+        try {
+            img = decoder.decode(key);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("照片載入失敗：" + key + " (" + e.getMessage() + ")");
+        }
+        synchronized (this) {
+            loading.remove(key);
+            if (img == null) { failed.add(key); return; }
+            decodeTime.record((System.nanoTime() - t0) / 1000);
+            loads++;
+            BufferedImage old = resident.put(key, img);
+            if (old != null) residentBytes -= bytes(old);
+            residentBytes += bytes(img);
+            trim();
+        }
+    }
+
+    /** 從最久沒用到的開始淘汰，直到回到預算內 */
+    private void trim() {
+        Iterator<BufferedImage> it = resident.values().iterator();
+        while (residentBytes > budgetBytes && resident.size() > 1) {
+            BufferedImage img = it.next();
+            it.remove();
+            residentBytes -= bytes(img);
+            evictions++;
+            if (evicted.size() == MAX_EVICTED) evicted.removeFirst();
+            evicted.addLast(img);
+        }
+    }
+
+    static long bytes(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /** 把上次呼叫後被淘汰的圖片交給 sink (EDT 上呼叫) */
+    public void drainEvicted(Consumer<Image> sink) {
+        while (true) {
+            Image img;
+            synchronized (this) { img = evicted.pollFirst(); }
+            if (img == null) return;
+            sink.accept(img);
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized double getHitRate() { return (hits + misses == 0) ? 1 : (double) hits / (hits + misses); }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getLoads() { return loads; }
+    public synchronized long getResidentBytes() { return residentBytes; }
+    public synchronized int getResidentCount() { return resident.size(); }
+    public synchronized int getLoadingCount() { return loading.size(); }
+    public long getBudgetBytes() { return budgetBytes; }
+    /** 每張照片的解碼與轉換耗時 (微秒) */
+    public Histogram getDecodeTime() { return decodeTime; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TextureCache[%d resident, %.1f/%.1f MB, hits=%d, misses=%d, evictions=%d, loads=%d]",
+                resident.size(), residentBytes / 1048576.0, budgetBytes / 1048576.0, hits, misses, evictions, loads);
+    }
+}
+
+// ==========================================
+// 25. 比賽錄影 (FrameCapture)
+// ==========================================
+/**
+ * 把畫面錄成影片供賽後檢討。開啟時每幀先畫進 1000x700 的離屏圖再貼到螢幕，到了擷取時間就把那張圖整個交給編碼執行緒，
+ * EDT 上不複製像素也不做 I/O；圖片來自固定數量的緩衝池，記憶體上限為 緩衝數 x 2.8 MB 加上等待寫出的 JPEG。
+ * 編碼跟不上時依 {@link Drop} 丟幀，不會讓繪製等待：
+ * <ul>
+ * <li>NEWEST：沒有空緩衝就不錄這一幀 (預設)</li>
+ * <li>OLDEST：搶回佇列中最舊、還沒開始編碼的一幀來放新畫面，錄到的畫面較即時</li>
+ * </ul>
+ * MJPEG 格式依擷取時槽寫成固定幀率的串流，被丟掉或畫面沒跟上的時槽重複前一幀，播放時間與實際相同
+ * (例如 ffplay -f mjpeg -framerate 30 檔案)；PNG 格式每幀一個檔，檔名是時槽編號，缺號即為丟掉的幀。
+ * 未開啟時 GamePanel 持有 null，繪製路徑與改版前相同。所有離屏圖共用同一個 GraphicsConfiguration，各快取不會因此失效。
+ */
+final class FrameCapture {
+    enum Format { MJPEG, PNG }
+    enum Drop { NEWEST, OLDEST }
+
+    static final int WIDTH = MemoryRacingGame.WIDTH, HEIGHT = MemoryRacingGame.HEIGHT;
+    private static final float JPEG_QUALITY = 0.85f;
+    private static final long CLOSE_TIMEOUT_NANOS = 5_000_000_000L;
+
+    /** 一格緩衝；marker 為被 OLDEST 搶走的幀留下的記號，只佔時槽不帶畫面 */
+    private static final class Frame {
+        final BufferedImage image;
+        long seq, slot;  // seq 為擷取順序 (連續)，slot 為時間上的時槽
+        int gap;         // 與上一個擷取的幀之間沒錄到的時槽數
+        byte[] jpeg;     // 編碼結果；編碼失敗時為 null，寫出時以前一幀代替
+
+        Frame(BufferedImage image) { this.image = image; }
+    }
+
+    private final Format format;
+    private final Drop drop;
+    private final Path output;      // MJPEG 為檔案，PNG 為目錄
+    private final long intervalNanos;
+    private final int bufferCount;
+    private final ArrayBlockingQueue<Frame> free;
+    private final LinkedBlockingDeque<Frame> filled = new LinkedBlockingDeque<>();
+    private final ConcurrentLinkedQueue<Frame> markers = new ConcurrentLinkedQueue<>();
+    private final BufferedImage scratch = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB); // 不錄的幀畫在這裡
+    private final Thread[] workers;
+    private final AtomicBoolean closed = new AtomicBoolean(), warned = new AtomicBoolean();
+    // EDT 專用
+    private long startNanos = -1, nextSlot, nextSeq;
+    private int pendingGap;
+    // MJPEG 依 seq 排序後寫出，鎖住 ready
+    private final TreeMap<Long, Frame> ready = new TreeMap<>();
+    private OutputStream out;
+    private long nextWrite;
+    private byte[] lastJpeg;
+    // 統計
+    private final LongAdder captured = new LongAdder(), dropped = new LongAdder(), encoded = new LongAdder(), written = new LongAdder();
+    private final Histogram encodeTime = new Histogram(), blitTime = new Histogram(); // 微秒
+
+    FrameCapture(Path output, Format format, Drop drop, int fps, int buffers, int threads) throws IOException {
+        if (fps <= 0 || buffers <= 0 || threads <= 0) throw new IllegalArgumentException("fps " + fps + ", buffers " + buffers + ", threads " + threads);
+        this.output = output; this.format = format; this.drop = drop;
+        intervalNanos = 1_000_000_000L / fps;
+        bufferCount = buffers;
+        if (format == Format.PNG) {
+            Files.createDirectories(output);
+        } else {
+            if (output.getParent() != null) Files.createDirectories(output.getParent());
+            out = new BufferedOutputStream(Files.newOutputStream(output), 1 << 16);
+        }
+        free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) free.add(new Frame(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB)));
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::encodeLoop, "CaptureEncoder-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.MIN_PRIORITY); // 核心不夠時讓 EDT 與模擬執行緒先跑，落後的幀由丟幀策略處理
+            workers[i].start();
+        }
+    }
+
+    /**
+     * -Dmemoryracing.capture=目錄 開啟 (預設 off)；.format (mjpeg | png)、.fps (預設 30)、.buffers (預設 6)、
+     * .threads (預設 2)、.drop (newest | oldest)。檔名同重播以日期時間命名，無法建立時只提示，回傳 null。
+     */
+    static FrameCapture fromSystemProperties() {
+        String dir = System.getProperty("memoryracing.capture", "off");
+        if (dir.equals("off")) return null;
+        Format format = Format.valueOf(System.getProperty("memoryracing.capture.format", "mjpeg").toUpperCase(Locale.ROOT));
+        Drop drop = Drop.valueOf(System.getProperty("memoryracing.capture.drop", "newest").toUpperCase(Locale.ROOT));
+        String name = String.format("match-%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS", new Date()) + ((format == Format.MJPEG) ? ".mjpeg" : "");
+        try {
+            return new FrameCapture(Path.of(dir, name), format, drop, Integer.getInteger("memoryracing.capture.fps", 30),
+                    Integer.getInteger("memoryracing.capture.buffers", 6), Integer.getInteger("memoryracing.capture.threads", 2));
+        } catch (IOException e) {
+            System.out.println("無法開始錄影：" + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * EDT：painter 把一幀畫進離屏圖 (邏輯座標、已填好底色) 後貼到 target 的原點。
+     * 到了下一個時槽就改畫進緩衝池的圖並排入編碼佇列；拿不到緩衝時依丟幀策略處理，絕不等待。
+     */
+    void render(Graphics2D target, Color background, Consumer<Graphics2D> painter) {
+        Frame frame = closed.get() ? null : acquire(System.nanoTime());
+        BufferedImage img = (frame != null) ? frame.image : scratch;
+        Graphics2D g = img.createGraphics();
+        g.addRenderingHints(target.getRenderingHints());
+        g.setColor(background);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        painter.accept(g);
+        g.dispose();
+        long t0 = System.nanoTime();
+        target.drawImage(img, 0, 0, null);
+        if (frame != null) { filled.addLast(frame); captured.increment(); }
+        blitTime.record((System.nanoTime() - t0) / 1000);
+    }
+
+    /** 還沒到下一個時槽時回傳 null；到了但沒有緩衝可用時記為丟幀 */
+    private Frame acquire(long now) {
+        if (startNanos < 0) startNanos = now;
+        long slot = (now - startNanos) / intervalNanos;
+        if (slot < nextSlot) return null;
+        pendingGap += (int) (slot - nextSlot);
+        nextSlot = slot + 1;
+        Frame f = free.poll();
+        if (f == null && drop == Drop.OLDEST && (f = filled.pollFirst()) != null) {
+            if (format == Format.MJPEG) {
+                Frame marker = new Frame(null);
+                marker.seq = f.seq; marker.slot = f.slot; marker.gap = f.gap + 1;
+                markers.add(marker); // 寫出時以前一幀補上被搶走的時槽
+            }
+            captured.decrement();
+            dropped.increment();
+        }
+        if (f == null) { dropped.increment(); pendingGap++; return null; }
+        f.seq = nextSeq++; f.slot = slot; f.gap = pendingGap; f.jpeg = null;
+        pendingGap = 0;
+        return f;
+    }
+
+    private void encodeLoop() {
+        ImageWriter jpeg = null;
+        ImageWriteParam param = null;
+        if (format == Format.MJPEG) {
+            jpeg = ImageIO.getImageWritersByFormatName("jpeg").next();
+            param = jpeg.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 17);
+        try {
+            while (true) {
+                Frame f = filled.takeFirst();
+                long t0 = System.nanoTime();
+                try {
+                    if (format == Format.PNG) {
+                        ImageIO.write(f.image, "png", output.resolve(String.format("frame-%06d.png", f.slot)).toFile());
+                    } else {
+                        bytes.reset();
+                        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(bytes)) {
+                            jpeg.setOutput(ios);
+                            jpeg.write(null, new IIOImage(f.image, null, null), param);
+                        }
+                        f.jpeg = bytes.toByteArray();
+                    }
+                    encodeTime.record((System.nanoTime() - t0) / 1000);
+                    encoded.increment();
+                } catch (IOException e) {
+                    warn("編碼失敗", e);
+                }
+                if (format == Format.PNG) { written.increment(); free.add(f); }
+                else append(f);
+            }
+        } catch (InterruptedException e) {
+            // close() 結束工作執行緒
+        } finally {
+            if (jpeg != null) jpeg.dispose();
+        }
+    }
+
+    /** 把編好的幀放進排序區，依 seq 連續寫出；寫出後才歸還緩衝，等待寫出的 JPEG 數量也受緩衝數限制 */
+    private void append(Frame f) {
+        synchronized (ready) {
+            if (f != null) ready.put(f.seq, f);
+            for (Frame m; (m = markers.poll()) != null; ) ready.put(m.seq, m);
+            Map.Entry<Long, Frame> e;
+            while ((e = ready.firstEntry()) != null && e.getKey() == nextWrite) {
+                ready.pollFirstEntry();
+                nextWrite++;
+                Frame next = e.getValue();
+                int repeats = next.gap + ((next.jpeg == null && next.image != null) ? 1 : 0);
+                try {
+                    for (int i = 0; i < repeats && lastJpeg != null; i++) { out.write(lastJpeg); written.increment(); }
+                    if (next.jpeg != null) { out.write(next.jpeg); written.increment(); lastJpeg = next.jpeg; }
+                } catch (IOException ex) {
+                    warn("寫入失敗", ex);
+                }
+                next.jpeg = null;
+                if (next.image != null) free.add(next);
+            }
+        }
+    }
+
+    private void warn(String what, Exception e) {
+        if (warned.compareAndSet(false, true)) System.out.println("錄影" + what + "：" + output + " (" + e.getMessage() + ")");
+    }
+
+    /** 停止擷取，等佇列中的幀寫完 (最多 5 秒) 後關檔並印出摘要；可重複呼叫 */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+        while (free.size() < bufferCount && System.nanoTime() < deadline) LockSupport.parkNanos(10_000_000L);
+        for (Thread t : workers) t.interrupt();
+        if (out != null) {
+            synchronized (ready) {
+                append(null);
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    warn("寫入失敗", e);
+                }
+            }
+        }
+        System.out.println("錄影結束：" + this);
+    }
+
+    public long getCaptured() { return captured.sum(); }
+    public long getDropped() { return dropped.sum(); }
+    public long getEncoded() { return encoded.sum(); }
+    /** 寫出的影格數，MJPEG 含補上的重複幀 */
+    public long getWritten() { return written.sum(); }
+    public int getQueued() { return filled.size(); }
+    public int getBufferCount() { return bufferCount; }
+    /** 每幀的編碼耗時 (微秒，工作執行緒上) */
+    public Histogram getEncodeTime() { return encodeTime; }
+    /** EDT 上把離屏圖貼到畫面並排入佇列的耗時 (微秒) */
+    public Histogram getBlitTime() { return blitTime; }
+
+    /** 疊加層顯示用，例如 "capture mjpeg 30fps  120 drop 3  queue 1/6  enc 9.8ms" */
+    String describe() {
+        return String.format("capture %s %dfps  %d drop %d  queue %d/%d  enc %.1fms", format.name().toLowerCase(Locale.ROOT),
+                1_000_000_000L / intervalNanos, getCaptured(), getDropped(), getQueued(), bufferCount, encodeTime.percentile(50) / 1e3);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s  %d 幀 (丟棄 %d)，寫出 %d 幀，編碼 p50 %.1fms / p99 %.1fms，緩衝 %d x %.1f MB",
+                output, getCaptured(), getDropped(), getWritten(), encodeTime.percentile(50) / 1e3, encodeTime.percentile(99) / 1e3,
+                bufferCount, WIDTH * HEIGHT * 4 / 1048576.0);
+    }
+}
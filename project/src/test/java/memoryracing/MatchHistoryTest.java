@@ -0,0 +1,105 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatchHistoryTest {
+    @TempDir Path dir;
+
+    /** 開檔並等背景執行緒做完排隊中的工作 (close 之後查詢仍可用) */
+    private static MatchHistory open(Path file) {
+        MatchHistory h = new MatchHistory(file);
+        h.close();
+        return h;
+    }
+
+    /** 寫入一場三回合的比賽，P1 最後得 p1Score 分 */
+    private static void playMatch(Path file, String p1, String p2, int p1Score) {
+        MatchHistory h = new MatchHistory(file);
+        h.matchStarted(1_700_000_000L, 42, p1, p2);
+        for (int round = 1; round <= 3; round++) h.roundEnded(round, round - 1, 0, 1, 500, MatchHistory.OUTCOME_FIRST, p1Score * round / 3, 25, round == 3);
+        h.close();
+    }
+
+    @Test
+    void recordsSurviveReopen() {
+        Path file = dir.resolve("history.mrh");
+        playMatch(file, "甲", "乙", 75);
+        playMatch(file, "丙", "甲", 50);
+        MatchHistory h = open(file);
+        assertEquals(2, h.getMatchCount());
+        assertEquals(3, h.getPlayerCount());
+        assertEquals(75, h.leaderboard(1).get(0).best);
+        assertEquals(2, h.player("甲").matches);
+        MatchHistory.Match last = h.recentMatches("甲", 1).get(0);
+        assertEquals("丙", last.p1Name);
+        assertEquals(3, last.rounds.size());
+    }
+
+    @Test
+    void incompleteTailIsTruncatedAndWritingResumes() throws IOException {
+        Path file = dir.resolve("history.mrh");
+        playMatch(file, "甲", "乙", 75);
+        long complete = Files.size(file);
+        playMatch(file, "丙", "丁", 100);
+        // 模擬當機：第二場最後一回合只寫了一半
+        byte[] all = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(all, all.length - 3));
+
+        MatchHistory h = open(file);
+        assertEquals(1, h.getMatchCount());
+        assertTrue(Files.size(file) > complete && Files.size(file) < all.length - 3, "只截掉不完整的那筆回合紀錄");
+        assertNull(h.player("丙"));
+
+        playMatch(file, "丙", "甲", 100);
+        h = open(file);
+        assertEquals(2, h.getMatchCount());
+        assertEquals(100, h.player("丙").best);
+    }
+
+    @Test
+    void corruptRecordInTheMiddleKeepsTheFileAndStopsWriting() throws IOException {
+        Path file = dir.resolve("history.mrh");
+        playMatch(file, "甲", "乙", 75);
+        long good = Files.size(file);
+        // 名稱 id 不連續的 NAME 紀錄，之後還有一場完整的比賽
+        Files.write(file, new byte[] {MatchHistory.TAG_NAME, 3, 99, 1, 'x'}, StandardOpenOption.APPEND);
+        Path other = dir.resolve("other.mrh");
+        playMatch(other, "甲", "乙", 50);
+        byte[] rest = Files.readAllBytes(other);
+        Files.write(file, Arrays.copyOfRange(rest, 5, rest.length), StandardOpenOption.APPEND); // 略過檔頭
+        byte[] before = Files.readAllBytes(file);
+        assertTrue(before.length > good);
+
+        MatchHistory h = open(file);
+        assertEquals(1, h.getMatchCount());
+        assertEquals(75, h.player("甲").best);
+        assertArrayEquals(before, Files.readAllBytes(file), "損毀處之後的紀錄不可被截掉");
+
+        playMatch(file, "丙", "丁", 100);
+        assertArrayEquals(before, Files.readAllBytes(file), "有損毀時不可再寫入");
+    }
+
+    @Test
+    void recordHeaderCutInsideLengthIsTreatedAsIncomplete() throws IOException {
+        Path file = dir.resolve("history.mrh");
+        playMatch(file, "甲", "乙", 75);
+        long good = Files.size(file);
+        Files.write(file, ByteBuffer.allocate(2).put((byte) MatchHistory.TAG_ROUND).put((byte) 0x80).array(), StandardOpenOption.APPEND);
+        MatchHistory h = open(file);
+        assertEquals(1, h.getMatchCount());
+        assertEquals(good, Files.size(file));
+    }
+}
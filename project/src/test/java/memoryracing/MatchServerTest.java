@@ -0,0 +1,60 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatchServerTest {
+    @Test
+    void pairedClientsReceiveSnapshotsAndStopJoinsAllThreads() throws Exception {
+        MatchServer server = new MatchServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 40, 2, 2, 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread io = new Thread(() -> {
+            try { server.run(); } catch (Throwable t) { failure.set(t); }
+        }, "MatchServerTest");
+        io.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        NetClient a = new NetClient(address, "甲", NetLink.Conditions.NONE), b = new NetClient(address, "乙", NetLink.Conditions.NONE);
+        float dt = 1f / GameEngine.BASE_TICK_RATE;
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while ((a.snapshots < 30 || b.snapshots < 30) && System.nanoTime() < deadline) {
+            a.step(dt); b.step(dt);
+            LockSupport.parkNanos(1_000_000_000L / GameEngine.BASE_TICK_RATE);
+        }
+        a.close(); b.close();
+        server.stop();
+        io.join(5000);
+        assertFalse(io.isAlive(), "I/O 迴圈沒有結束");
+        assertNull(failure.get());
+        assertTrue(a.snapshots >= 30 && b.snapshots >= 30, a.snapshots + " / " + b.snapshots);
+        assertEquals(3, a.getSlot() + b.getSlot(), "兩人應配進同一場的 P1 與 P2");
+        // 時鐘與工作執行緒在 Phaser 終止後應自行結束
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (!t.getName().startsWith("MatchWorker") && !t.getName().startsWith("MatchClock")) continue;
+            t.join(5000);
+            assertFalse(t.isAlive(), t.getName() + " 沒有結束");
+        }
+    }
+
+    @Test
+    void idleMemoryCannotBeMeasuredOnceRunning() throws Exception {
+        MatchServer server = new MatchServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, 1, 2, 1);
+        Thread io = new Thread(() -> {
+            try { server.run(); } catch (Exception ignored) {}
+        });
+        io.start();
+        Thread.sleep(200); // 等 run 啟動時鐘
+        assertThrows(IllegalStateException.class, () -> server.recordIdleMemory(0));
+        server.stop();
+        io.join(5000);
+    }
+}
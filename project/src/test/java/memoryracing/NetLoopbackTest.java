@@ -0,0 +1,89 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.event.KeyEvent;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 在本機啟動伺服器與兩個機器人用戶端，經 NetLink 模擬延遲、抖動與掉包跑完整場比賽，
+ * 最後檢查兩個用戶端的回合、分數與狀態都和伺服器一致，並印出頻寬與伺服器 tick 時間。
+ * 約需 30 秒 (伺服器以實際時間 60Hz 推進)。
+ */
+class NetLoopbackTest {
+    private static final int[] ANSWER_KEYS = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3};
+    private static final long TIMEOUT_NANOS = 300_000_000_000L;
+
+    @Test
+    void clientsAgreeWithServerUnderLatencyAndLoss() throws Exception {
+        int latency = 50, jitter = 10;
+        double loss = 5;
+        long seed = 42;
+        NetLink.Conditions conditions = new NetLink.Conditions(latency, jitter, loss);
+
+        NetServer server = new NetServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), seed, conditions, 2);
+        Thread serverThread = new Thread(server, "NetServer");
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        NetClient[] clients = {new NetClient(address, "機器人甲", conditions), new NetClient(address, "機器人乙", conditions)};
+        Random bots = new Random(seed);
+        int[] nextStep = new int[2];
+        float dt = 1f / GameEngine.BASE_TICK_RATE;
+        long period = 1_000_000_000L / GameEngine.BASE_TICK_RATE, start = System.nanoTime(), next = start, overTicks = 0;
+
+        // 兩邊都看到比賽結束後再多跑一秒，讓最後的快照送達
+        while (overTicks < GameEngine.BASE_TICK_RATE && serverThread.isAlive() && System.nanoTime() - start < TIMEOUT_NANOS) {
+            for (int i = 0; i < clients.length; i++) bot(clients[i], bots, nextStep, i);
+            for (NetClient c : clients) c.step(dt);
+            if (clients[0].getEngine().currentState == GameEngine.State.GAME_OVER && clients[1].getEngine().currentState == GameEngine.State.GAME_OVER) overTicks++;
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.stop();
+        serverThread.join();
+
+        GameEngine truth = server.getEngine();
+        System.out.printf("伺服器：%s 回合 %d，%s %d : %d %s，%.1f 秒 (單向延遲 %d±%d ms，掉包 %.1f%%)%n",
+                truth.currentState, truth.currentRound, truth.p1Name, truth.p1Score, truth.p2Score, truth.p2Name, seconds, latency, jitter, loss);
+        System.out.println(server.report(seconds));
+        assertEquals(GameEngine.State.GAME_OVER, truth.currentState, "伺服器沒有跑完比賽");
+        for (NetClient c : clients) {
+            GameEngine e = c.getEngine();
+            System.out.printf("用戶端 %d：%s 回合 %d，%d : %d，收到 %d 份快照 (%d 份過期)，下行 %.2f KB/s，上行 %.2f KB/s%n",
+                    c.getSlot(), e.currentState, e.currentRound, e.p1Score, e.p2Score, c.snapshots, c.staleSnapshots,
+                    c.bytesIn / seconds / 1024, c.getBytesOut() / seconds / 1024);
+            c.close();
+            assertEquals(truth.currentState, e.currentState, "用戶端 " + c.getSlot() + " 的狀態");
+            assertEquals(truth.currentRound, e.currentRound, "用戶端 " + c.getSlot() + " 的回合");
+            assertEquals(truth.p1Score, e.p1Score, "用戶端 " + c.getSlot() + " 的 P1 分數");
+            assertEquals(truth.p2Score, e.p2Score, "用戶端 " + c.getSlot() + " 的 P2 分數");
+            assertTrue(c.snapshots > 0);
+        }
+    }
+
+    /** 機器人：開始畫面與回合結束按空白鍵，賽跑時交替連打，輪到自己時隨機作答 */
+    private static void bot(NetClient client, Random rnd, int[] nextStep, int i) {
+        GameEngine e = client.getEngine();
+        int key;
+        switch (e.currentState) {
+            case START: case ROUND_END: key = (rnd.nextInt(30) == 0) ? KeyEvent.VK_SPACE : 0; break;
+            case RACING:
+                key = (rnd.nextInt(100) < 40) ? ((nextStep[i] ^= 1) == 0 ? KeyEvent.VK_LEFT : KeyEvent.VK_RIGHT) : 0;
+                break;
+            case QUIZ: key = (e.currentQuizPlayer == client.getSlot() && rnd.nextInt(20) == 0) ? ANSWER_KEYS[rnd.nextInt(3)] : 0; break;
+            default: key = 0; break;
+        }
+        if (key == 0) return;
+        long now = System.nanoTime();
+        e.input.offer(InputQueue.PRESS, key, now);
+        e.input.offer(InputQueue.RELEASE, key, now);
+    }
+}
@@ -0,0 +1,61 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ParticleRendererTest {
+    private static final int W = 200, H = 100;
+    private static final int GOLD = ParticleSystem.PALETTE[ParticleSystem.GOLD].getRGB() & 0xffffff;
+
+    private static int render(ParticleRenderer r, ParticleSystem ps, int stride, BufferedImage canvas, int px, int py) {
+        Graphics2D g = canvas.createGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, W, H);
+        r.draw(g, ps, stride);
+        g.dispose();
+        return canvas.getRGB(px, py) & 0xffffff;
+    }
+
+    @Test
+    void particleIsDrawnAndItsOldPositionCleared() {
+        ParticleSystem ps = new ParticleSystem(4, new SplittableRandom(1));
+        ParticleRenderer r = new ParticleRenderer(W, H);
+        BufferedImage canvas = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        ps.sparkle(50, 50, 1);
+        assertEquals(GOLD, render(r, ps, 1, canvas, 50, 50));
+
+        ps.x[0] = 150;
+        assertEquals(0, render(r, ps, 1, canvas, 50, 50), "上一幀的位置應已清除");
+        assertEquals(GOLD, canvas.getRGB(150, 50) & 0xffffff);
+    }
+
+    @Test
+    void particlesOnTheEdgeAreClippedNotSkipped() {
+        ParticleSystem ps = new ParticleSystem(4, new SplittableRandom(1));
+        ParticleRenderer r = new ParticleRenderer(W, H);
+        BufferedImage canvas = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        ps.sparkle(0, 0, 1);
+        ps.sparkle(W - 1, H - 1, 1);
+        ps.sparkle(-100, 50, 1); // 完全在畫面外
+        assertEquals(GOLD, render(r, ps, 1, canvas, 0, 0));
+        assertEquals(GOLD, canvas.getRGB(W - 1, H - 1) & 0xffffff);
+    }
+
+    @Test
+    void strideSkipsParticlesWithoutTouchingTheSimulation() {
+        ParticleSystem ps = new ParticleSystem(4, new SplittableRandom(1));
+        ParticleRenderer r = new ParticleRenderer(W, H);
+        BufferedImage canvas = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        ps.sparkle(50, 50, 2);
+        ps.x[1] = 150;
+        assertEquals(0, render(r, ps, 2, canvas, 150, 50));
+        assertEquals(GOLD, canvas.getRGB(50, 50) & 0xffffff);
+        assertEquals(2, ps.size());
+    }
+}
@@ -0,0 +1,79 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuizSystemTest {
+    @TempDir Path dir;
+
+    private ContentPack pack(String easy, String easyDistractors) throws IOException {
+        Path manifest = dir.resolve("pack.properties");
+        Files.writeString(manifest, "easy = " + easy + "\neasy.distractors = " + easyDistractors
+                + "\nnormal = N1 N2\nnormal.distractors = M1 M2\nhard = t.jpg\nhard.distractors = d1.jpg d2.jpg\n", StandardCharsets.UTF_8);
+        return ContentPack.load(manifest);
+    }
+
+    /** 出一題簡單辨識題並檢查：三個不重複的選項、答案在其中、錯誤選項本回合都沒出現過 (allowSeen 時不檢查) */
+    private static void checkIdentify(QuizSystem quiz, SpriteRegistry sprites, RoundMemory memory, Random rand, boolean allowSeen) {
+        quiz.generateQuestion(GameEngine.Difficulty.EASY, memory, sprites, rand);
+        List<String> options = quiz.getOptions();
+        assertEquals(3, options.size(), options.toString());
+        assertEquals(0, quiz.getFirstChoice());
+        assertEquals(3, new HashSet<>(options).size(), options.toString());
+        int correct = quiz.getCorrectIndex();
+        assertTrue(correct >= 0, options.toString());
+        for (int i = 0; i < options.size(); i++) {
+            if (i == correct || allowSeen) continue;
+            assertEquals(0, memory.count(sprites.intern(options.get(i))), "看過的 " + options.get(i) + " 被當成錯誤選項");
+        }
+    }
+
+    @Test
+    void identifySkipsDistractorsSeenThisRound() throws IOException {
+        ContentPack pack = pack("A B C", "A B X Y");
+        GameEngine engine = new GameEngine(1, 0, pack);
+        QuizSystem quiz = engine.getQuizSystem();
+        SpriteRegistry sprites = new SpriteRegistry(pack.taskCount(), pack.distractorCount());
+        quiz.internDistractors(sprites);
+        Random rand = new Random(7);
+        for (int t = 0; t < 500; t++) {
+            RoundMemory memory = new RoundMemory(sprites.size(), 16);
+            for (String s : pack.getPool(GameEngine.Difficulty.EASY)) if (rand.nextBoolean()) memory.record(sprites.intern(s));
+            if (memory.isEmpty()) memory.record(sprites.intern("A"));
+            checkIdentify(quiz, sprites, memory, rand, false);
+        }
+    }
+
+    @Test
+    void identifyStillOffersThreeOptionsWhenUnseenDistractorsRunOut() {
+        QuizSystem quiz = new QuizSystem();
+        SpriteRegistry sprites = new SpriteRegistry(ContentPack.DEFAULT.taskCount(), ContentPack.DEFAULT.distractorCount());
+        quiz.internDistractors(sprites);
+        String[] dists = ContentPack.DEFAULT.getDistractorPool(GameEngine.Difficulty.EASY);
+        Random rand = new Random(3);
+        for (int unseen = 0; unseen <= 2; unseen++) {
+            RoundMemory memory = new RoundMemory(sprites.size(), 16);
+            memory.record(sprites.intern(ContentPack.DEFAULT.getPool(GameEngine.Difficulty.EASY)[0]));
+            for (int i = 0; i < dists.length - unseen; i++) memory.record(sprites.intern(dists[i]));
+            for (int t = 0; t < 50; t++) checkIdentify(quiz, sprites, memory, rand, unseen < 2);
+        }
+    }
+
+    @Test
+    void loadRejectsDistractorPoolCoveredByQuestionPool() {
+        IOException e = assertThrows(IOException.class, () -> pack("A B C", "A B C X"));
+        assertTrue(e.getMessage().contains("easy.distractors"), e.getMessage());
+    }
+}
@@ -0,0 +1,79 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayTest {
+    private static final int[] P1_KEYS = {KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT}, P2_KEYS = {KeyEvent.VK_A, KeyEvent.VK_D};
+    private static final int[] ANSWER_KEYS = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3};
+    private static final long MAX_TICKS = 1_000_000;
+
+    @TempDir Path dir;
+
+    /** 和 HeadlessMatch 相同的隨機玩家，一邊錄製一邊跑完整場 */
+    private static GameEngine playRecorded(long seed, ReplayRecorder recorder) {
+        GameEngine engine = new GameEngine(seed, 0);
+        engine.p1Name = "甲🏎"; engine.p2Name = "乙";
+        engine.setRecorder(recorder);
+        SplittableRandom rng = new SplittableRandom(seed);
+        int p1Key = 0, p2Key = 0;
+        engine.handleInput(KeyEvent.VK_SPACE);
+        for (long t = 0; engine.currentState != GameEngine.State.GAME_OVER && t < MAX_TICKS; t++) {
+            switch (engine.currentState) {
+                case RACING:
+                    if (rng.nextInt(10) < 3) engine.handleInput(P1_KEYS[p1Key ^= 1]);
+                    if (rng.nextInt(10) < 3) engine.handleInput(P2_KEYS[p2Key ^= 1]);
+                    break;
+                case QUIZ: if (rng.nextInt(20) == 0) engine.handleInput(ANSWER_KEYS[rng.nextInt(3)]); break;
+                case ROUND_END: engine.handleInput(KeyEvent.VK_SPACE); break;
+                default: break;
+            }
+            engine.tick();
+        }
+        return engine;
+    }
+
+    @Test
+    void replayReproducesTheMatch() throws IOException {
+        Path file = dir.resolve("replays/match.mrr");
+        ReplayRecorder recorder = new ReplayRecorder(file, ReplayRecorder.DEFAULT_CAPACITY);
+        GameEngine live = playRecorded(7, recorder);
+        assertEquals(GameEngine.State.GAME_OVER, live.currentState);
+        assertEquals(Files.size(file), recorder.getBytesWritten());
+
+        Replay replay = Replay.read(file);
+        assertEquals(7, replay.seed);
+        assertEquals("甲🏎", replay.p1Name);
+        ReplayPlayer player = new ReplayPlayer(replay);
+        for (long t = 0; !player.isEnded() && t < MAX_TICKS; t++) player.step();
+        GameEngine replayed = player.getEngine();
+        assertTrue(player.isEnded());
+        assertEquals(3, player.getCheckpointCount());
+        assertEquals(live.p1Score, replayed.p1Score);
+        assertEquals(live.p2Score, replayed.p2Score);
+        assertEquals(live.currentRound, replayed.currentRound);
+    }
+
+    @Test
+    void noFileIsCreatedBeforeTheFirstRoundEnds() {
+        Path file = dir.resolve("replays/unused.mrr");
+        ReplayRecorder recorder = new ReplayRecorder(file, ReplayRecorder.DEFAULT_CAPACITY);
+        GameEngine engine = new GameEngine(1, 0);
+        engine.setRecorder(recorder);
+        engine.handleInput(KeyEvent.VK_SPACE);
+        for (int i = 0; i < 300; i++) engine.tick();
+        recorder.close();
+        assertFalse(Files.exists(file));
+        assertFalse(Files.exists(file.getParent()));
+    }
+}
@@ -0,0 +1,84 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.event.KeyEvent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class TextEntryTest {
+    private static final String CAR = "🏎", CORN = "🌽"; // 各是一個代理對
+
+    /** 模擬 keyTyped：代理對分兩次送來 */
+    private static void type(TextEntry e, String s) {
+        for (int i = 0; i < s.length(); i++) e.insert(s.charAt(i));
+    }
+
+    private static void assertNoLoneSurrogate(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c)) assertFalse(i + 1 == s.length() || !Character.isLowSurrogate(s.charAt(++i)), "落單的高位: " + s);
+            else assertFalse(Character.isLowSurrogate(c), "落單的低位: " + s);
+        }
+    }
+
+    @Test
+    void capCountsEmojiAsOneCharacter() {
+        TextEntry e = new TextEntry(3);
+        type(e, "a" + CAR + CORN + "b");
+        assertEquals("a" + CAR + CORN, e.toString());
+        assertEquals(3, e.codePointCount());
+        assertEquals(5, e.getCaret());
+    }
+
+    @Test
+    void pairArrivingAtTheCapIsDroppedWhole() {
+        TextEntry e = new TextEntry(2);
+        type(e, "ab" + CAR);
+        assertEquals("ab", e.toString());
+        type(e, "c");
+        assertEquals("ab", e.toString());
+    }
+
+    @Test
+    void setNeverSplitsAPair() {
+        TextEntry e = new TextEntry(2);
+        e.set("x" + CAR + "y");
+        assertEquals("x" + CAR, e.toString());
+        e.set(CAR + CORN + CAR);
+        assertEquals(CAR + CORN, e.toString());
+        assertNoLoneSurrogate(e.toString());
+    }
+
+    @Test
+    void loneSurrogatesAreNeverStored() {
+        TextEntry e = new TextEntry(5);
+        e.insert(CAR.charAt(1));              // 沒有高位的低位
+        e.insert(CAR.charAt(0)); e.insert('z'); // 高位之後不是低位
+        e.set("q" + CAR.charAt(0));
+        assertEquals("q", e.toString());
+        e.insert(CAR.charAt(0));
+        e.keyPressed(KeyEvent.VK_LEFT);      // 編輯鍵丟掉暫存的高位
+        e.insert(CAR.charAt(1));
+        assertEquals("q", e.toString());
+        type(e, CORN);
+        assertEquals(CORN + "q", e.toString());
+        assertNoLoneSurrogate(e.toString());
+    }
+
+    @Test
+    void deletingAPairFreesOneSlot() {
+        TextEntry e = new TextEntry(2);
+        type(e, "a" + CAR);
+        e.keyPressed(KeyEvent.VK_BACK_SPACE);
+        assertEquals("a", e.toString());
+        type(e, CORN);
+        assertEquals("a" + CORN, e.toString());
+        e.keyPressed(KeyEvent.VK_HOME);
+        e.keyPressed(KeyEvent.VK_DELETE);
+        type(e, "b");
+        assertEquals("b" + CORN, e.toString());
+        assertEquals(2, e.codePointCount());
+    }
+}
@@ -0,0 +1,40 @@
+package memoryracing;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextureCacheTest {
+    @Test
+    void photosAreDownscaledAtDecode() {
+        BufferedImage fitted = GameAssets.fitPhoto(new BufferedImage(3000, 1500, BufferedImage.TYPE_INT_RGB), null);
+        assertEquals(GameAssets.PHOTO_MAX_SIZE, fitted.getWidth());
+        assertEquals(GameAssets.PHOTO_MAX_SIZE / 2, fitted.getHeight());
+        BufferedImage small = GameAssets.fitPhoto(new BufferedImage(80, 60, BufferedImage.TYPE_INT_RGB), null);
+        assertEquals(80, small.getWidth());
+    }
+
+    @Test
+    void budgetIsRaisedToHoldOneRound() {
+        assertEquals(GameAssets.ROUND_PHOTO_BYTES, GameAssets.photoBudget(1 << 20));
+        assertEquals(64L << 20, GameAssets.photoBudget(64L << 20));
+    }
+
+    @Test
+    void oneRoundOfLargePhotosStaysResident() {
+        int round = GameEngine.HARD_ROUND_PHOTOS + GameEngine.HARD_ROUND_DISTRACTORS;
+        TextureCache cache = new TextureCache(GameAssets.photoBudget(0), 2,
+                key -> GameAssets.fitPhoto(new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB), null));
+        CompletableFuture<?>[] loads = new CompletableFuture<?>[round];
+        for (int i = 0; i < round; i++) loads[i] = cache.prefetch("photo" + i);
+        CompletableFuture.allOf(loads).join();
+        assertEquals(round, cache.getResidentCount());
+        assertEquals(0, cache.getEvictions());
+        for (int i = 0; i < round; i++) assertTrue(cache.get("photo" + i) != null);
+        assertEquals(1.0, cache.getHitRate());
+    }
+}